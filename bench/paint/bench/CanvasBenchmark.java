@@ -0,0 +1,109 @@
+package paint.bench;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the operations on the whole canvas: the snapshot every edit
+ * starts with, which replaced copying the whole image, wiping the canvas,
+ * and painting the component. The canvas is covered with a filled box first,
+ * so every tile has pixels.
+ *
+ * The component is painted into an image the size of a screen, as a window
+ * only paints what is visible. The steady state paint only draws the
+ * blended tiles, and the dirty paint blends the visible region of the layers
+ * again first, as after a stroke across the whole view.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true", "-Xmx3g"})
+public class CanvasBenchmark {
+
+    @Param({"1", "16", "64"})
+    public int megapixels;
+
+    @Param({"true", "false"})
+    public boolean antialiasing;
+
+    private PaintHarness paint;
+    private BufferedImage screen;
+    private Graphics2D g;
+    private Rectangle view;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        paint = new PaintHarness(megapixels);
+        paint.setAntiAliasing(antialiasing);
+        paint.fillCanvas();
+        view = new Rectangle(Math.min(1920, paint.getWidth()),
+                Math.min(1080, paint.getHeight()));
+        screen = new BufferedImage(view.width, view.height,
+                BufferedImage.TYPE_INT_RGB);
+        g = screen.createGraphics();
+        g.setClip(view);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        g.dispose();
+    }
+
+    @Benchmark
+    public Object snapshot() {
+        return paint.snapshot();
+    }
+
+    @Benchmark
+    public void paint() {
+        paint.paint(g);
+    }
+
+    @Benchmark
+    public void paintDirty() {
+        paint.invalidate(view);
+        paint.paint(g);
+    }
+
+    /**
+     * A canvas that is covered again before each time it is wiped
+     */
+    @State(Scope.Thread)
+    public static class Covered {
+
+        private PaintHarness paint;
+
+        @Setup(Level.Trial)
+        public void setUp(CanvasBenchmark b) {
+            paint = new PaintHarness(b.megapixels);
+            paint.setAntiAliasing(b.antialiasing);
+        }
+
+        @Setup(Level.Invocation)
+        public void cover() {
+            paint.fillCanvas();
+        }
+    }
+
+    @Benchmark
+    public void clear(Covered covered) {
+        covered.paint.clear();
+    }
+}
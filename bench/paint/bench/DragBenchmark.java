@@ -0,0 +1,67 @@
+package paint.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures what a mouse drag costs with each drawing tool. Each invocation
+ * is a whole stroke: the mouse is pressed, dragged through a zigzag and
+ * released. The score is per drag event, so it includes each event's share
+ * of the drawing done when the stroke is released, which is where the
+ * buffered points of the pencil, eraser and line repeater are drawn and the
+ * shapes are committed.
+ *
+ * A new component is made for every iteration, so the document and the undo
+ * history do not grow for the whole run.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true", "-Xmx3g"})
+public class DragBenchmark {
+
+    //the number of points in each drag
+    private static final int POINTS = 64;
+
+    @Param({"PENCIL", "ERASER", "LINE_REPEATER", "LINE", "BOX", "ELLIPSE",
+        "ISOSCELES", "RIGHT_TRIANGLE", "DIAMOND", "PENTAGON"})
+    public String tool;
+
+    @Param({"1", "16", "64"})
+    public int megapixels;
+
+    @Param({"true", "false"})
+    public boolean antialiasing;
+
+    private PaintHarness paint;
+    private int[] drag;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        paint = new PaintHarness(megapixels);
+        paint.setTool(tool);
+        paint.setAntiAliasing(antialiasing);
+        drag = PaintHarness.zigzag(paint.getWidth(), paint.getHeight(),
+                POINTS);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(POINTS)
+    public void drag() {
+        paint.drag(drag);
+    }
+}
@@ -0,0 +1,237 @@
+package paint.bench;
+
+import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.awt.event.InputEvent;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseListener;
+import java.awt.event.MouseMotionListener;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import javax.swing.JComponent;
+import javax.swing.SwingUtilities;
+
+/**
+ * Drives a painting component for the benchmarks. JMH does not generate
+ * benchmarks for classes in the default package, where the program is, and
+ * classes in a package cannot name classes in the default package, so the
+ * component is made and configured by reflection and drawn on through its
+ * own mouse listeners.
+ *
+ * The pencil, eraser and line repeater start a frame timer on the event
+ * dispatch thread while a stroke is in progress, so strokes are run on that
+ * thread as they are in the program. Everything else is called on the
+ * benchmark thread, since nothing else touches the component then.
+ */
+final class PaintHarness {
+
+    private static final Class<?> PAINTING_COMPONENT
+            = find("PaintingComponent");
+    private static final Class<?> LAYER_STACK = find("LayerStack");
+    private static final Class<?> TILED_CANVAS = find("TiledCanvas");
+    private static final Method SET_DRAW_MODE = method(PAINTING_COMPONENT,
+            "setDrawMode", byte.class);
+    private static final Method SET_ANTI_ALIASING = method(PAINTING_COMPONENT,
+            "setAntiAliasing", boolean.class);
+    private static final Method CLEAR = method(PAINTING_COMPONENT, "clear");
+    private static final Method GET_LAYERS = method(PAINTING_COMPONENT,
+            "getLayers");
+    private static final Method GET_ACTIVE_CANVAS = method(LAYER_STACK,
+            "getActiveCanvas");
+    private static final Method INVALIDATE = method(LAYER_STACK, "invalidate",
+            TILED_CANVAS, Rectangle.class);
+    private static final Method SNAPSHOT = method(TILED_CANVAS, "snapshot");
+
+    private final JComponent component;
+    private final int width, height;
+    private final MouseListener[] mouseListeners;
+    private final MouseMotionListener[] motionListeners;
+
+    /**
+     * Creates a painting component with a square canvas
+     *
+     * @param megapixels the number of millions of pixels on the canvas
+     */
+    PaintHarness(int megapixels) {
+        width = (int) Math.round(Math.sqrt(megapixels * 1e6));
+        height = width;
+        try {
+            component = (JComponent) PAINTING_COMPONENT
+                    .getConstructor(int.class, int.class)
+                    .newInstance(width, height);
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException(ex);
+        }
+        //A component that was never laid out has no size and paints nothing
+        component.setSize(width, height);
+        mouseListeners = component.getMouseListeners();
+        motionListeners = component.getMouseMotionListeners();
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    /**
+     * Selects a tool
+     *
+     * @param tool the name of the tool constant of the painting component,
+     * such as PENCIL
+     */
+    void setTool(String tool) {
+        try {
+            invoke(SET_DRAW_MODE, component,
+                    PAINTING_COMPONENT.getField(tool).getByte(null));
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalArgumentException(tool, ex);
+        }
+    }
+
+    void setAntiAliasing(boolean antialiasing) {
+        invoke(SET_ANTI_ALIASING, component, antialiasing);
+    }
+
+    /**
+     * Presses the mouse at the first point, drags it through the others and
+     * releases it at the last, on the event dispatch thread
+     *
+     * @param points the points as x, y pairs
+     */
+    void drag(final int[] points) {
+        onEventThread(new Runnable() {
+            @Override
+            public void run() {
+                MouseEvent e = event(MouseEvent.MOUSE_PRESSED, points[0],
+                        points[1]);
+                for (MouseListener l : mouseListeners) {
+                    l.mousePressed(e);
+                }
+                for (int i = 2; i < points.length; i += 2) {
+                    e = event(MouseEvent.MOUSE_DRAGGED, points[i],
+                            points[i + 1]);
+                    for (MouseMotionListener l : motionListeners) {
+                        l.mouseDragged(e);
+                    }
+                }
+                e = event(MouseEvent.MOUSE_RELEASED,
+                        points[points.length - 2], points[points.length - 1]);
+                for (MouseListener l : mouseListeners) {
+                    l.mouseReleased(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Covers the whole canvas with a filled box, so every tile has pixels
+     */
+    void fillCanvas() {
+        setTool("BOX");
+        drag(new int[]{0, 0, width - 1, height - 1});
+    }
+
+    /**
+     * Wipes the active layer
+     */
+    void clear() {
+        invoke(CLEAR, component);
+    }
+
+    /**
+     * @return a snapshot of the active layer, as an edit starts with
+     */
+    Object snapshot() {
+        return invoke(SNAPSHOT, activeCanvas());
+    }
+
+    /**
+     * Marks a region of the active layer changed, so the layers are blended
+     * again there when the component is next painted
+     *
+     * @param r the region
+     */
+    void invalidate(Rectangle r) {
+        invoke(INVALIDATE, invoke(GET_LAYERS, component), activeCanvas(), r);
+    }
+
+    /**
+     * Paints the component as Swing would
+     *
+     * @param g the graphics context, clipped to the visible region
+     */
+    void paint(Graphics g) {
+        component.paint(g);
+    }
+
+    /**
+     * Makes a drag that zigzags across the middle of the canvas
+     *
+     * @param width the width of the canvas
+     * @param height the height of the canvas
+     * @param count the number of points
+     * @return the points as x, y pairs
+     */
+    static int[] zigzag(int width, int height, int count) {
+        int span = Math.min(512, Math.min(width, height) / 2);
+        int left = (width - span) / 2, top = (height - span) / 2;
+        int[] points = new int[count * 2];
+        for (int i = 0; i < count; i++) {
+            points[2 * i] = left + i * span / Math.max(1, count - 1);
+            points[2 * i + 1] = top + (i % 2 == 0 ? 0 : span)
+                    + (i / 2) % 8 * span / 16;
+        }
+        return points;
+    }
+
+    private MouseEvent event(int id, int x, int y) {
+        return new MouseEvent(component, id, System.currentTimeMillis(),
+                InputEvent.BUTTON1_DOWN_MASK, x, y, 1, false,
+                MouseEvent.BUTTON1);
+    }
+
+    private Object activeCanvas() {
+        return invoke(GET_ACTIVE_CANVAS, invoke(GET_LAYERS, component));
+    }
+
+    private static void onEventThread(Runnable r) {
+        try {
+            SwingUtilities.invokeAndWait(r);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(ex);
+        } catch (InvocationTargetException ex) {
+            throw new IllegalStateException(ex.getCause());
+        }
+    }
+
+    private static Object invoke(Method m, Object target, Object... args) {
+        try {
+            return m.invoke(target, args);
+        } catch (IllegalAccessException ex) {
+            throw new IllegalStateException(ex);
+        } catch (InvocationTargetException ex) {
+            throw new IllegalStateException(ex.getCause());
+        }
+    }
+
+    private static Class<?> find(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException ex) {
+            throw new IllegalStateException("Compile the program first", ex);
+        }
+    }
+
+    private static Method method(Class<?> c, String name,
+            Class<?>... parameters) {
+        try {
+            return c.getMethod(name, parameters);
+        } catch (NoSuchMethodException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
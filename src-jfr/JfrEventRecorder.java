@@ -0,0 +1,71 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Records the events as Java Flight Recorder events. The events are only
+ * made when a recording is taking them, so this costs nothing otherwise.
+ *
+ * This class is compiled separately, and only on Java 11 or later; see
+ * build.xml. EventRecorder loads it by reflection.
+ */
+public class JfrEventRecorder extends EventRecorder {
+
+    @Override
+    public void latency(String tool, long toRaster, long toScreen) {
+        LatencyEvent e = new LatencyEvent();
+        if (e.isEnabled()) {
+            e.tool = tool;
+            e.toRaster = toRaster;
+            e.toScreen = toScreen;
+            e.commit();
+        }
+    }
+
+    @Override
+    public void setting(String name, String value) {
+        SettingEvent e = new SettingEvent();
+        if (e.isEnabled()) {
+            e.name = name;
+            e.value = value;
+            e.commit();
+        }
+    }
+
+    @Name("paint.InputLatency")
+    @Label("Input Latency")
+    @Category("Paint")
+    @Description("How long a mouse event took to reach the canvas and the "
+            + "screen")
+    static class LatencyEvent extends Event {
+
+        @Label("Tool")
+        String tool;
+
+        @Label("To Canvas")
+        @Description("From the event to its pixels being drawn on the "
+                + "canvas, or -1 if it drew nothing on the canvas")
+        @Timespan(Timespan.NANOSECONDS)
+        long toRaster;
+
+        @Label("To Screen")
+        @Description("From the event to its pixels being painted")
+        @Timespan(Timespan.NANOSECONDS)
+        long toScreen;
+    }
+
+    @Name("paint.Setting")
+    @Label("Setting Changed")
+    @Category("Paint")
+    static class SettingEvent extends Event {
+
+        @Label("Name")
+        String name;
+
+        @Label("Value")
+        String value;
+    }
+}
@@ -0,0 +1,379 @@
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.imageio.ImageIO;
+
+/**
+ * Renders drawing scripts into PNG images without a display. Each script is
+ * either a saved document (.spd) or a text file with one command per line:
+ *
+ * <pre>
+ * SIZE 800 600                 canvas size, before any drawing
+ * BACKGROUND ffffff            background color, before any drawing
+ * COLOR ff0000                 primary color
+ * SECONDARY 00ff00             secondary color
+ * THICKNESS 3                  line thickness
+ * ANTIALIAS off                anti-aliasing, on by default, before any
+ *                              drawing
+ * BOX 10 10 200 120 fill       a line or shape from one corner to the other,
+ *                              filled with the secondary color if "fill"
+ * PENCIL 10 10 20 30 40 20     a pencil, eraser or line repeater stroke
+ *                              through the points
+ * FILL 50 50 10                flood fill at a point, with a tolerance
+ * CLEAR                        fill the canvas with the background
+ * FILTER grayscale, blur 4     filters, in order, as read by Filter.parse
+ * </pre>
+ *
+ * The shape commands are LINE, BOX, ELLIPSE, ISOSCELES, RIGHT_TRIANGLE,
+ * DIAMOND and PENTAGON, and the stroke commands are PENCIL, ERASER and
+ * LINE_REPEATER. Blank lines and lines starting with # are ignored.
+ *
+ * Usage: java BatchRenderer [-threads n] [-scale s] [-out directory]
+ * script...
+ *
+ * The scripts are rendered at the same time on a pool of threads, and the
+ * number of images rendered per second is reported at the end.
+ */
+public class BatchRenderer {
+
+    private static final int DEFAULT_WIDTH = 800, DEFAULT_HEIGHT = 600;
+    private static final Map<String, Byte> TOOLS = new HashMap<String, Byte>();
+    //scripts draw everything on the background layer
+    private static final int LAYER = Document.BACKGROUND_LAYER;
+
+    static {
+        TOOLS.put("ERASER", PaintingComponent.ERASER);
+        TOOLS.put("PENCIL", PaintingComponent.PENCIL);
+        TOOLS.put("LINE", PaintingComponent.LINE);
+        TOOLS.put("BOX", PaintingComponent.BOX);
+        TOOLS.put("ELLIPSE", PaintingComponent.ELLIPSE);
+        TOOLS.put("ISOSCELES", PaintingComponent.ISOSCELES);
+        TOOLS.put("RIGHT_TRIANGLE", PaintingComponent.RIGHT_TRIANGLE);
+        TOOLS.put("DIAMOND", PaintingComponent.DIAMOND);
+        TOOLS.put("PENTAGON", PaintingComponent.PENTAGON);
+        TOOLS.put("LINE_REPEATER", PaintingComponent.LINE_REPEATER);
+        TOOLS.put("FILL", PaintingComponent.FILL);
+        TOOLS.put("CLEAR", Document.CLEAR);
+    }
+
+    private BatchRenderer() {
+    }
+
+    /**
+     * Renders the scripts named on the command line
+     *
+     * @param args the options and scripts
+     */
+    public static void main(String[] args) throws InterruptedException {
+        System.setProperty("java.awt.headless", "true");
+        int threads = Runtime.getRuntime().availableProcessors();
+        double scale = 1;
+        File outDir = null;
+        List<File> scripts = new ArrayList<File>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-threads") && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-scale") && i + 1 < args.length) {
+                scale = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("-out") && i + 1 < args.length) {
+                outDir = new File(args[++i]);
+            } else {
+                scripts.add(new File(args[i]));
+            }
+        }
+        if (scripts.isEmpty()) {
+            System.out.println("Usage: java BatchRenderer [-threads n] "
+                    + "[-scale s] [-out directory] script...");
+            return;
+        }
+        if (outDir != null) {
+            outDir.mkdirs();
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        final AtomicInteger rendered = new AtomicInteger();
+        List<Future<?>> results = new ArrayList<Future<?>>();
+        long start = System.nanoTime();
+        for (final File script : scripts) {
+            final File out = new File(outDir != null ? outDir
+                    : script.getAbsoluteFile().getParentFile(),
+                    baseName(script) + ".png");
+            final double s = scale;
+            results.add(pool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        ImageIO.write(render(script, s), "png", out);
+                        rendered.incrementAndGet();
+                        System.out.println("Rendered " + script + " to " + out);
+                    } catch (IOException ex) {
+                        Logger.getLogger(BatchRenderer.class.getName())
+                                .log(Level.SEVERE, script.toString(), ex);
+                    }
+                }
+            }));
+        }
+        for (Future<?> f : results) {
+            try {
+                f.get();
+            } catch (ExecutionException ex) {
+                Logger.getLogger(BatchRenderer.class.getName())
+                        .log(Level.SEVERE, null, ex.getCause());
+            }
+        }
+        pool.shutdown();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d of %d images in %.2f s on %d threads "
+                + "(%.1f images/s)%n", rendered.get(), scripts.size(),
+                seconds, threads, rendered.get() / seconds);
+    }
+
+    /**
+     * Renders a script or saved document into an image
+     *
+     * @param script the script, or a document if its name ends with .spd
+     * @param scale the size of the image relative to the canvas
+     * @return the image
+     * @throws IOException if the script cannot be read or is invalid
+     */
+    public static BufferedImage render(File script, double scale)
+            throws IOException {
+        Document doc;
+        TiledCanvas canvas = null;
+        boolean antialias = true;
+        if (script.getName().endsWith(".spd")) {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(script)));
+            try {
+                doc = Document.read(in);
+            } finally {
+                in.close();
+            }
+        } else {
+            BufferedReader in = new BufferedReader(new FileReader(script));
+            try {
+                Script s = new Script();
+                s.read(in);
+                doc = s.doc;
+                canvas = s.canvas;
+                antialias = s.antialias;
+            } finally {
+                in.close();
+            }
+        }
+        //A text script was drawn as it was read, and only needs redrawing
+        //from the document at another scale
+        if (canvas == null || scale != 1) {
+            canvas = new TiledCanvas((int) Math.ceil(doc.getWidth() * scale),
+                    (int) Math.ceil(doc.getHeight() * scale),
+                    BufferedImage.TYPE_INT_RGB,
+                    new Color(doc.getBackground(), true));
+            canvas.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                    antialias ? RenderingHints.VALUE_ANTIALIAS_ON
+                            : RenderingHints.VALUE_ANTIALIAS_OFF);
+            DocumentRenderer.render(doc, canvas, scale);
+        }
+        return canvas.toImage();
+    }
+
+    //The name of a file without its extension
+    private static String baseName(File f) {
+        String name = f.getName();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    /**
+     * Reads a text script into a document, drawing each operation on a canvas
+     * as it is read so that flood fills see what was drawn before them
+     */
+    private static class Script {
+
+        private Document doc;
+        private TiledCanvas canvas;
+        private int width = DEFAULT_WIDTH, height = DEFAULT_HEIGHT;
+        private Color background = Color.WHITE;
+        private int primary = Color.BLACK.getRGB();
+        private int secondary = Color.YELLOW.getRGB();
+        private float thickness = 1;
+        private boolean antialias = true;
+        private int[] pts = new int[16];
+        private int lineNumber = 0;
+
+        private void read(BufferedReader in) throws IOException {
+            String line;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] words = line.split("\\s+");
+                try {
+                    command(words[0].toUpperCase(),
+                            Arrays.copyOfRange(words, 1, words.length));
+                } catch (NumberFormatException ex) {
+                    throw error("bad number in \"" + line + "\"");
+                }
+            }
+            start();
+        }
+
+        private void command(String name, String[] words) throws IOException {
+            if (name.equals("SIZE") || name.equals("BACKGROUND")
+                    || name.equals("ANTIALIAS")) {
+                if (doc != null) {
+                    throw error(name + " must come before any drawing");
+                }
+                if (name.equals("SIZE")) {
+                    width = Integer.parseInt(word(words, 0));
+                    height = Integer.parseInt(word(words, 1));
+                    if (width <= 0 || height <= 0) {
+                        throw error("SIZE must be positive");
+                    }
+                } else if (name.equals("ANTIALIAS")) {
+                    antialias = !word(words, 0).equalsIgnoreCase("off");
+                } else {
+                    background = new Color(parseColor(word(words, 0)), true);
+                }
+            } else if (name.equals("COLOR")) {
+                primary = parseColor(word(words, 0));
+            } else if (name.equals("SECONDARY")) {
+                secondary = parseColor(word(words, 0));
+            } else if (name.equals("THICKNESS")) {
+                thickness = Float.parseFloat(word(words, 0));
+            } else if (name.equals("FILTER")) {
+                start();
+                Filter[] filters;
+                try {
+                    filters = Filter.parse(join(words));
+                } catch (IllegalArgumentException ex) {
+                    throw error(ex.getMessage());
+                }
+                FilterEngine.apply(canvas, filters);
+                int[] codes = Filter.encode(filters);
+                doc.add(LAYER, Document.FILTER, primary, secondary, thickness,
+                        false, codes, codes.length);
+            } else if (TOOLS.containsKey(name)) {
+                start();
+                draw(name, TOOLS.get(name), words);
+            } else {
+                throw error("unknown command " + name);
+            }
+        }
+
+        //Creates the document and canvas once the size and background are
+        //known
+        private void start() {
+            if (doc == null) {
+                doc = new Document(width, height, background.getRGB());
+                canvas = new TiledCanvas(width, height,
+                        BufferedImage.TYPE_INT_RGB, background);
+                canvas.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                        antialiasHint());
+            }
+        }
+
+        private void draw(String name, byte tool, String[] words)
+                throws IOException {
+            if (tool == Document.CLEAR) {
+                canvas.fill(background);
+                doc.add(LAYER, tool, primary, secondary, thickness, false, pts,
+                        0);
+                return;
+            }
+            if (tool == PaintingComponent.FILL) {
+                int tolerance = words.length > 2 ? Integer.parseInt(words[2])
+                        : 0;
+                FloodFill fill = new FloodFill(canvas, tolerance);
+                if (fill.fill(Integer.parseInt(word(words, 0)),
+                        Integer.parseInt(word(words, 1)), primary) != null) {
+                    int[] runs = fill.getRuns();
+                    doc.add(LAYER, tool, primary, secondary, thickness, false,
+                            runs, runs.length);
+                }
+                return;
+            }
+            boolean filled = false;
+            int n = 0;
+            for (String w : words) {
+                if (w.equalsIgnoreCase("fill")) {
+                    filled = true;
+                } else {
+                    if (n == pts.length) {
+                        pts = Arrays.copyOf(pts, n * 2);
+                    }
+                    pts[n++] = Integer.parseInt(w);
+                }
+            }
+            boolean stroke = tool == PaintingComponent.PENCIL
+                    || tool == PaintingComponent.ERASER
+                    || tool == PaintingComponent.LINE_REPEATER;
+            if (n % 2 != 0 || n < 2 || (!stroke && n != 4)) {
+                throw error("wrong number of coordinates for " + name);
+            }
+            final int op = doc.add(LAYER, tool, primary, secondary, thickness,
+                    filled, pts, n);
+            final Color bg = background;
+            Rectangle bounds = doc.getBounds(op);
+            canvas.paint(bounds, new TiledCanvas.Painter() {
+                @Override
+                public void paint(Graphics2D g) {
+                    DocumentRenderer.draw(g, doc, op, bg);
+                }
+            });
+        }
+
+        private String join(String[] words) {
+            StringBuilder sb = new StringBuilder();
+            for (String w : words) {
+                sb.append(w).append(' ');
+            }
+            return sb.toString();
+        }
+
+        private Object antialiasHint() {
+            return antialias ? RenderingHints.VALUE_ANTIALIAS_ON
+                    : RenderingHints.VALUE_ANTIALIAS_OFF;
+        }
+
+        private String word(String[] words, int i) throws IOException {
+            if (i >= words.length) {
+                throw error("missing argument");
+            }
+            return words[i];
+        }
+
+        //Parses a color as hex RGB, or ARGB if it has eight digits
+        private int parseColor(String s) {
+            String hex = s.startsWith("#") ? s.substring(1) : s;
+            long value = Long.parseLong(hex, 16);
+            return hex.length() == 8 ? (int) value : (int) value | 0xff000000;
+        }
+
+        private IOException error(String message) {
+            return new IOException("Line " + lineNumber + ": " + message);
+        }
+    }
+}
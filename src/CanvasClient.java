@@ -0,0 +1,360 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import javax.swing.SwingUtilities;
+
+/**
+ * A connection to a CanvasServer, through which a painting component
+ * shares its background layer. The messages from the server are read on a
+ * thread of their own, which also decompresses the tiles, and handed to a
+ * listener on the event dispatch thread. The messages to the server are
+ * compressed and written on another thread in the order they were sent, so
+ * drawing never waits on the network.
+ */
+public class CanvasClient {
+
+    private static final int CONNECT_TIMEOUT = 5000;
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final Listener listener;
+    private final ExecutorService sender;
+    private volatile boolean closed = false;
+    //the size of the canvas and its background, from the WELCOME
+    private int tileCount, background;
+    //the number of the last message of the server seen, and of the last
+    //message of this client it acknowledged
+    private volatile long sequence, acknowledged;
+
+    /**
+     * Receives what the server sends. Every method is called on the event
+     * dispatch thread.
+     */
+    public interface Listener {
+
+        /**
+         * Called first, before the snapshot of the canvas arrives
+         *
+         * @param width the width of the shared canvas
+         * @param height the height of the shared canvas
+         * @param background the background color as ARGB
+         */
+        void connected(int width, int height, int background);
+
+        /**
+         * Called with tiles of the canvas, either of the snapshot or sent by
+         * another client
+         *
+         * @param indices the index of each tile
+         * @param pixels the pixels of each tile, as TiledCanvas.setTilePixels
+         * takes them
+         */
+        void tilesReceived(int[] indices, int[][] pixels);
+
+        /**
+         * Called with an operation another client drew on the canvas
+         *
+         * @param op the operation
+         */
+        void operationReceived(CanvasProtocol.Operation op);
+
+        /**
+         * Called when the server numbered a message this client sent. The
+         * messages are acknowledged in the order they were sent, after every
+         * message of another client the server numbered before them.
+         *
+         * @param sequence the number of the message
+         */
+        void acknowledged(long sequence);
+
+        /**
+         * Called when everything drawn before the client joined has arrived
+         *
+         * @param sequence the number of the last message drawn
+         */
+        void caughtUp(long sequence);
+
+        /**
+         * Called if the connection fails, but not when it is closed
+         *
+         * @param ex the reason
+         */
+        void disconnected(IOException ex);
+    }
+
+    private CanvasClient(Socket socket, Listener listener) throws IOException {
+        this.socket = socket;
+        this.listener = listener;
+        in = new DataInputStream(new BufferedInputStream(
+                socket.getInputStream()));
+        out = new DataOutputStream(new BufferedOutputStream(
+                socket.getOutputStream()));
+        sender = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Canvas client sender");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Connects to a server and starts reading what it sends
+     *
+     * @param host the host of the server
+     * @param port the port of the server
+     * @param listener the listener
+     * @return the client
+     * @throws IOException if the server cannot be reached
+     */
+    public static CanvasClient connect(String host, int port,
+            Listener listener) throws IOException {
+        Socket socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+        final CanvasClient client = new CanvasClient(socket, listener);
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                client.read();
+            }
+        }, "Canvas client reader");
+        reader.setDaemon(true);
+        reader.start();
+        return client;
+    }
+
+    /**
+     * @return the number of the last message of this client the server
+     * acknowledged, or 0
+     */
+    public long getAcknowledged() {
+        return acknowledged;
+    }
+
+    /**
+     * @return the number of the last message from the server, or 0
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Sends an operation drawn on the background layer
+     *
+     * @param op the operation
+     */
+    public void send(final CanvasProtocol.Operation op) {
+        submit(new Work() {
+            @Override
+            public void write(DataOutputStream payload) throws IOException {
+                op.write(payload);
+            }
+        }, CanvasProtocol.OP);
+    }
+
+    /**
+     * Sends tiles of the background layer, after they changed in a way the
+     * operations do not describe. They are compressed in the background.
+     *
+     * @param pixels the pixels of each tile of the canvas, as from
+     * TiledCanvas.getTilePixels, or null for the tiles not to send, which
+     * must not be changed afterwards
+     * @param background the background pixel of the canvas
+     */
+    public void sendTiles(final int[][] pixels, final int background) {
+        submit(new Work() {
+            @Override
+            public void write(DataOutputStream payload) throws IOException {
+                Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+                CanvasProtocol.writeTiles(payload, pixels, background,
+                        deflater);
+                deflater.end();
+            }
+        }, CanvasProtocol.TILES);
+    }
+
+    /**
+     * Disconnects from the server. Nothing more is passed to the listener.
+     */
+    public void close() {
+        closed = true;
+        sender.shutdown();
+        try {
+            sender.awaitTermination(CONNECT_TIMEOUT, TimeUnit.MILLISECONDS);
+            socket.close();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (IOException ex) {
+            Logger.getLogger(CanvasClient.class.getName())
+                    .log(Level.SEVERE, null, ex);
+        }
+    }
+
+    //Writes the payload of a message
+    private interface Work {
+
+        void write(DataOutputStream payload) throws IOException;
+    }
+
+    //Writes a message on the sender thread
+    private void submit(final Work work, final byte type) {
+        if (closed) {
+            return;
+        }
+        sender.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                    work.write(CanvasProtocol.beginFrame(buffer, type));
+                    byte[] frame = CanvasProtocol.endFrame(buffer);
+                    out.write(frame);
+                    out.flush();
+                } catch (IOException ex) {
+                    //The reader finds the socket closed and reports it
+                    try {
+                        socket.close();
+                    } catch (IOException e) {
+                        Logger.getLogger(CanvasClient.class.getName())
+                                .log(Level.SEVERE, null, e);
+                    }
+                }
+            }
+        });
+    }
+
+    //Reads messages until the connection closes
+    private void read() {
+        Inflater inflater = new Inflater();
+        try {
+            while (true) {
+                int length = in.readInt();
+                if (length < 1 || length > CanvasProtocol.MAX_FRAME) {
+                    throw new IOException("Bad message length: " + length);
+                }
+                byte type = in.readByte();
+                switch (type) {
+                    case CanvasProtocol.WELCOME:
+                        final int width = in.readInt();
+                        final int height = in.readInt();
+                        background = in.readInt();
+                        int size = TiledCanvas.TILE_SIZE;
+                        tileCount = ((width + size - 1) / size)
+                                * ((height + size - 1) / size);
+                        post(new Runnable() {
+                            @Override
+                            public void run() {
+                                listener.connected(width, height, background);
+                            }
+                        });
+                        break;
+
+                    case CanvasProtocol.OP:
+                        sequence = in.readLong();
+                        final CanvasProtocol.Operation op
+                                = CanvasProtocol.Operation.read(in);
+                        post(new Runnable() {
+                            @Override
+                            public void run() {
+                                listener.operationReceived(op);
+                            }
+                        });
+                        break;
+
+                    case CanvasProtocol.TILES:
+                        sequence = in.readLong();
+                        CanvasProtocol.Tiles tiles = CanvasProtocol.Tiles.read(
+                                in, tileCount);
+                        final int[] indices = new int[tiles.getCount()];
+                        final int[][] pixels = new int[tiles.getCount()][];
+                        for (int i = 0; i < indices.length; i++) {
+                            indices[i] = tiles.getIndex(i);
+                            pixels[i] = tiles.getPixels(i, background,
+                                    inflater);
+                        }
+                        post(new Runnable() {
+                            @Override
+                            public void run() {
+                                listener.tilesReceived(indices, pixels);
+                            }
+                        });
+                        break;
+
+                    case CanvasProtocol.ACK:
+                        final long ack = in.readLong();
+                        acknowledged = ack;
+                        sequence = ack;
+                        post(new Runnable() {
+                            @Override
+                            public void run() {
+                                listener.acknowledged(ack);
+                            }
+                        });
+                        break;
+
+                    case CanvasProtocol.CAUGHT_UP:
+                        final long caughtUp = in.readLong();
+                        post(new Runnable() {
+                            @Override
+                            public void run() {
+                                listener.caughtUp(caughtUp);
+                            }
+                        });
+                        break;
+
+                    default:
+                        throw new IOException("Unexpected message: " + type);
+                }
+            }
+        } catch (final IOException ex) {
+            if (!closed) {
+                closed = true;
+                sender.shutdownNow();
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    Logger.getLogger(CanvasClient.class.getName())
+                            .log(Level.SEVERE, null, e);
+                }
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.disconnected(ex instanceof EOFException
+                                ? new IOException("Closed by the server") : ex);
+                    }
+                });
+            }
+        } finally {
+            inflater.end();
+        }
+    }
+
+    //Calls the listener on the event dispatch thread unless the client was
+    //closed in the meantime
+    private void post(final Runnable r) {
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                if (!closed) {
+                    r.run();
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,259 @@
+import java.awt.Color;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Loads a CanvasServer with many simulated clients drawing at once. Each
+ * client sends pencil strokes at a steady rate and reads everything the
+ * server relays to it, as a painting component would. The test reports how
+ * long the server took to acknowledge each stroke, how many relayed
+ * messages reached the clients, and how long a client joining after the
+ * load takes to catch up.
+ *
+ * Without a server address, a server is started in the same process on a
+ * free port of localhost.
+ *
+ * Usage: java CanvasLoadTest [clients] [seconds] [strokes per second per
+ * client] [host:port]
+ */
+public class CanvasLoadTest {
+
+    private static final int WIDTH = 2000, HEIGHT = 2000;
+    //the points of each stroke
+    private static final int STROKE_POINTS = 16;
+    //Only the clients the server drops are worth logging. The logger is
+    //held here, since a logger nothing refers to may lose its level.
+    private static final Logger SERVER_LOG
+            = Logger.getLogger(CanvasServer.class.getName());
+    private final LatencyHistogram ackLatency = new LatencyHistogram();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong relayed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private CanvasLoadTest() {
+    }
+
+    /**
+     * A simulated client, with a thread reading what the server sends
+     */
+    private class Client implements Runnable {
+
+        private final Socket socket = new Socket();
+        private final OutputStream out;
+        private final DataInputStream in;
+        private final Random random;
+        private final ByteArrayOutputStream buffer
+                = new ByteArrayOutputStream();
+        //when each stroke not yet acknowledged was sent
+        private final ConcurrentLinkedQueue<Long> pending
+                = new ConcurrentLinkedQueue<Long>();
+        private final int[] points = new int[STROKE_POINTS * 2];
+        private volatile boolean closed = false;
+        //for the late joiner: the bytes of tiles and the messages read
+        //before CAUGHT_UP, and when it arrived
+        private long tileBytes, catchUpMessages;
+        private long caughtUpAt = -1;
+        private final Object caughtUpLock = new Object();
+
+        private Client(InetSocketAddress server, long seed) throws IOException {
+            random = new Random(seed);
+            socket.setTcpNoDelay(true);
+            socket.connect(server);
+            out = socket.getOutputStream();
+            in = new DataInputStream(new BufferedInputStream(
+                    socket.getInputStream()));
+            Thread t = new Thread(this, "Load test reader");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        //Sends a random stroke
+        private void stroke() {
+            int x = random.nextInt(WIDTH), y = random.nextInt(HEIGHT);
+            for (int i = 0; i < points.length; i += 2) {
+                x += random.nextInt(21) - 10;
+                y += random.nextInt(21) - 10;
+                points[i] = x;
+                points[i + 1] = y;
+            }
+            CanvasProtocol.Operation op = new CanvasProtocol.Operation(
+                    PaintingComponent.PENCIL, random.nextInt() | 0xff000000,
+                    0, 1 + random.nextInt(4), false, true, points,
+                    points.length);
+            try {
+                synchronized (this) {
+                    op.write(CanvasProtocol.beginFrame(buffer,
+                            CanvasProtocol.OP));
+                    byte[] frame = CanvasProtocol.endFrame(buffer);
+                    pending.add(System.nanoTime());
+                    out.write(frame);
+                }
+                sent.incrementAndGet();
+            } catch (IOException ex) {
+                close();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    int length = in.readInt();
+                    byte type = in.readByte();
+                    if (type == CanvasProtocol.ACK) {
+                        in.readLong();
+                        Long time = pending.poll();
+                        if (time != null) {
+                            ackLatency.record(System.nanoTime() - time);
+                        }
+                        continue;
+                    }
+                    in.skipBytes(length - 1);
+                    if (type == CanvasProtocol.CAUGHT_UP) {
+                        synchronized (caughtUpLock) {
+                            caughtUpAt = System.nanoTime();
+                            caughtUpLock.notifyAll();
+                        }
+                    } else if (caughtUpAt < 0) {
+                        catchUpMessages++;
+                        if (type == CanvasProtocol.TILES) {
+                            tileBytes += length;
+                        }
+                    } else {
+                        relayed.incrementAndGet();
+                    }
+                }
+            } catch (IOException ex) {
+                if (!closed) {
+                    dropped.incrementAndGet();
+                }
+            }
+        }
+
+        //Waits for the catch-up to end and returns when it did
+        private long awaitCaughtUp() throws InterruptedException {
+            synchronized (caughtUpLock) {
+                while (caughtUpAt < 0) {
+                    caughtUpLock.wait();
+                }
+                return caughtUpAt;
+            }
+        }
+
+        private void close() {
+            closed = true;
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                //Already closed
+            }
+        }
+    }
+
+    /**
+     * Runs the test
+     *
+     * @param args the number of clients, how many seconds they draw, how
+     * many strokes each draws a second and the address of the server
+     * @throws Exception if the server cannot be started or reached
+     */
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        int clientCount = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int rate = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        CanvasServer server = null;
+        InetSocketAddress address;
+        if (args.length > 3) {
+            int colon = args[3].lastIndexOf(':');
+            address = new InetSocketAddress(args[3].substring(0, colon),
+                    Integer.parseInt(args[3].substring(colon + 1)));
+        } else {
+            SERVER_LOG.setLevel(Level.WARNING);
+            server = new CanvasServer(0, WIDTH, HEIGHT, Color.WHITE);
+            Thread t = new Thread(server, "Canvas server");
+            t.setDaemon(true);
+            t.start();
+            address = new InetSocketAddress("localhost", server.getPort());
+        }
+        new CanvasLoadTest().run(address, clientCount, seconds, rate);
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    private void run(InetSocketAddress address, int clientCount, int seconds,
+            int rate) throws IOException, InterruptedException {
+        System.out.printf("%d clients drawing %d strokes a second each for "
+                + "%d s on %s%n", clientCount, rate, seconds, address);
+        final List<Client> clients = new ArrayList<Client>();
+        for (int i = 0; i < clientCount; i++) {
+            clients.add(new Client(address, i));
+        }
+        for (Client c : clients) {
+            c.awaitCaughtUp();
+        }
+
+        //The strokes are spread evenly over each second
+        ScheduledExecutorService senders = Executors.newScheduledThreadPool(
+                Math.min(8, clientCount));
+        long period = 1000000000L / rate;
+        for (int i = 0; i < clientCount; i++) {
+            final Client c = clients.get(i);
+            senders.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    if (!c.closed) {
+                        c.stroke();
+                    }
+                }
+            }, period * i / clientCount, period, TimeUnit.NANOSECONDS);
+        }
+        long start = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        senders.shutdownNow();
+        senders.awaitTermination(5, TimeUnit.SECONDS);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        //Let the relayed strokes drain before counting them
+        Thread.sleep(1000);
+
+        System.out.printf("Strokes sent:      %d (%.0f/s)%n", sent.get(),
+                sent.get() / elapsed);
+        System.out.printf("Relayed messages:  %d (%.0f/s)%n", relayed.get(),
+                relayed.get() / elapsed);
+        System.out.printf("Acknowledged in:   p50 %.2f ms, p99 %.2f ms, "
+                + "p99.9 %.2f ms, max %.2f ms%n",
+                ackLatency.getPercentile(0.5) / 1e6,
+                ackLatency.getPercentile(0.99) / 1e6,
+                ackLatency.getPercentile(0.999) / 1e6,
+                ackLatency.getMax() / 1e6);
+        System.out.printf("Clients dropped:   %d%n", dropped.get());
+
+        //A client joining now gets the snapshot and the log after it
+        long joinStart = System.nanoTime();
+        Client late = new Client(address, clientCount);
+        long joined = late.awaitCaughtUp();
+        System.out.printf("Late join:         %.1f ms, %d messages, "
+                + "%d KB of tiles%n", (joined - joinStart) / 1e6,
+                late.catchUpMessages, late.tileBytes / 1024);
+        late.close();
+        for (Client c : clients) {
+            c.close();
+        }
+    }
+}
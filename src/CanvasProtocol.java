@@ -0,0 +1,405 @@
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The messages CanvasServer and CanvasClient exchange to share the
+ * background layer of a canvas. Each message is a frame: its length as an
+ * int, counting the type byte and the payload, the type byte, and the
+ * payload.
+ *
+ * A client sends the operations it adds to the background layer, and tiles
+ * it changed in ways the operations cannot describe, such as a loaded image.
+ * The server numbers every message it accepts, in one sequence for all the
+ * clients, and relays it with its number to the other clients; the sender
+ * gets an ACK with the number instead. A client that joins gets a WELCOME
+ * with the size of the canvas, the tiles of a snapshot of it, every message
+ * after the snapshot, and then CAUGHT_UP.
+ *
+ * Tiles are sent as the XOR of their pixels with the background, which is
+ * 0 wherever the tile was not drawn on, compressed with Deflater. The blank
+ * tiles of a snapshot are not sent at all.
+ */
+public class CanvasProtocol {
+
+    public static final int DEFAULT_PORT = 5151;
+    //The largest frame either side accepts, so a broken peer cannot make
+    //the other allocate without bound
+    public static final int MAX_FRAME = 64 * 1024 * 1024;
+    //The most ints of points an operation may have
+    public static final int MAX_POINTS = 4 * 1024 * 1024;
+
+    //Server to client: the canvas width, height and background as ints
+    public static final byte WELCOME = 1;
+    //Client to server: an Operation. Server to client: the sequence number
+    //as a long, then the Operation.
+    public static final byte OP = 2;
+    //Client to server: the tile count as an int, then for each tile its
+    //index and the length of its data as ints, then the data. Server to
+    //client: the sequence number as a long, then the same.
+    public static final byte TILES = 3;
+    //Server to client: the sequence number given to the last message the
+    //client sent, as a long
+    public static final byte ACK = 4;
+    //Server to client: the sequence number of the last message of the
+    //catch-up of a joining client, as a long
+    public static final byte CAUGHT_UP = 5;
+
+    private CanvasProtocol() {
+    }
+
+    /**
+     * An operation on the background layer, as Document stores it
+     */
+    public static class Operation {
+
+        private final byte tool;
+        private final int primary, secondary;
+        private final float thickness;
+        private final boolean fill, antialias;
+        private final int[] points;
+
+        /**
+         * @param tool the tool; the tools of PaintingComponent except the
+         * select tool, Document.CLEAR or Document.FILTER
+         * @param primary the primary color as ARGB
+         * @param secondary the secondary color as ARGB
+         * @param thickness the line thickness
+         * @param fill whether shapes are filled with the secondary color
+         * @param antialias whether the operation is drawn anti-aliased
+         * @param pts the points as x, y pairs, which are copied
+         * @param pointCount the number of ints of pts to use
+         */
+        public Operation(byte tool, int primary, int secondary,
+                float thickness, boolean fill, boolean antialias, int[] pts,
+                int pointCount) {
+            this.tool = tool;
+            this.primary = primary;
+            this.secondary = secondary;
+            this.thickness = thickness;
+            this.fill = fill;
+            this.antialias = antialias;
+            points = new int[pointCount];
+            System.arraycopy(pts, 0, points, 0, pointCount);
+        }
+
+        /**
+         * @param tool a tool
+         * @return whether operations of the tool may be shared: the drawing
+         * tools, clear and filters. Images, moves, deletes and resizes stay
+         * on the canvas they were made on.
+         */
+        public static boolean isShared(byte tool) {
+            return (tool >= PaintingComponent.ERASER
+                    && tool <= PaintingComponent.FILL)
+                    || tool == Document.CLEAR || tool == Document.FILTER;
+        }
+
+        /**
+         * @return the tool
+         */
+        public byte getTool() {
+            return tool;
+        }
+
+        /**
+         * @return whether the operation is drawn anti-aliased
+         */
+        public boolean isAntialiased() {
+            return antialias;
+        }
+
+        /**
+         * Adds the operation to a document
+         *
+         * @param doc the document
+         * @param layer the id of the layer
+         * @return the index of the operation
+         */
+        public int addTo(Document doc, int layer) {
+            return doc.add(layer, tool, primary, secondary, thickness, fill,
+                    points, points.length);
+        }
+
+        /**
+         * Draws the operation on a canvas with the anti-aliasing it was drawn
+         * with, whatever the canvas uses, so it looks the same on every
+         * client
+         *
+         * @param doc the document the operation was added to
+         * @param index the index addTo returned
+         * @param canvas the canvas of the layer
+         * @return the region the operation changed
+         */
+        public Rectangle apply(Document doc, int index, TiledCanvas canvas) {
+            Object hint = canvas.getRenderingHints().get(
+                    RenderingHints.KEY_ANTIALIASING);
+            canvas.setRenderingHint(RenderingHints.KEY_ANTIALIASING, antialias
+                    ? RenderingHints.VALUE_ANTIALIAS_ON
+                    : RenderingHints.VALUE_ANTIALIAS_OFF);
+            Rectangle r = DocumentRenderer.apply(doc, index, canvas);
+            if (hint == null) {
+                hint = RenderingHints.VALUE_ANTIALIAS_DEFAULT;
+            }
+            canvas.setRenderingHint(RenderingHints.KEY_ANTIALIASING, hint);
+            return r;
+        }
+
+        /**
+         * Writes the operation
+         *
+         * @param out the stream
+         * @throws IOException if the stream cannot be written
+         */
+        public void write(DataOutputStream out) throws IOException {
+            out.writeByte(tool);
+            out.writeInt(primary);
+            out.writeInt(secondary);
+            out.writeFloat(thickness);
+            out.writeBoolean(fill);
+            out.writeBoolean(antialias);
+            out.writeInt(points.length);
+            for (int p : points) {
+                out.writeInt(p);
+            }
+        }
+
+        /**
+         * Reads an operation written by write
+         *
+         * @param in the stream
+         * @return the operation
+         * @throws IOException if the stream cannot be read or the operation
+         * is not one that may be shared
+         */
+        public static Operation read(DataInputStream in) throws IOException {
+            byte tool = in.readByte();
+            int primary = in.readInt();
+            int secondary = in.readInt();
+            float thickness = in.readFloat();
+            boolean fill = in.readBoolean();
+            boolean antialias = in.readBoolean();
+            int count = in.readInt();
+            if (!isShared(tool) || count < 0 || count > MAX_POINTS
+                    || count % 2 != 0 || !(thickness >= 0 && thickness < 1e4)) {
+                throw new IOException("Bad operation: tool " + tool + ", "
+                        + count + " points");
+            }
+            int[] pts = new int[count];
+            for (int i = 0; i < count; i++) {
+                pts[i] = in.readInt();
+            }
+            return new Operation(tool, primary, secondary, thickness, fill,
+                    antialias, pts, count);
+        }
+    }
+
+    /**
+     * Starts a frame in a buffer. The length is filled in by endFrame.
+     *
+     * @param buffer the buffer, which is reset
+     * @param type the type of the message
+     * @return the stream to write the payload to, over the buffer
+     * @throws IOException never, as the stream writes to memory
+     */
+    public static DataOutputStream beginFrame(ByteArrayOutputStream buffer,
+            byte type) throws IOException {
+        buffer.reset();
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeInt(0);
+        out.writeByte(type);
+        return out;
+    }
+
+    /**
+     * Ends a frame started by beginFrame
+     *
+     * @param buffer the buffer
+     * @return the frame
+     */
+    public static byte[] endFrame(ByteArrayOutputStream buffer) {
+        byte[] frame = buffer.toByteArray();
+        int length = frame.length - 4;
+        frame[0] = (byte) (length >>> 24);
+        frame[1] = (byte) (length >>> 16);
+        frame[2] = (byte) (length >>> 8);
+        frame[3] = (byte) length;
+        return frame;
+    }
+
+    /**
+     * Compresses the pixels of a tile
+     *
+     * @param pixels the pixels, as from TiledCanvas.getTilePixels
+     * @param background the background pixel
+     * @param deflater the compressor, which is reset
+     * @return the data
+     */
+    public static byte[] encodeTile(int[] pixels, int background,
+            Deflater deflater) {
+        byte[] raw = new byte[pixels.length * 4];
+        for (int i = 0, j = 0; i < pixels.length; i++, j += 4) {
+            int p = pixels[i] ^ background;
+            raw[j] = (byte) (p >>> 24);
+            raw[j + 1] = (byte) (p >>> 16);
+            raw[j + 2] = (byte) (p >>> 8);
+            raw[j + 3] = (byte) p;
+        }
+        deflater.reset();
+        deflater.setInput(raw);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+        byte[] chunk = new byte[8192];
+        while (!deflater.finished()) {
+            out.write(chunk, 0, deflater.deflate(chunk));
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decompresses the pixels of a tile compressed by encodeTile
+     *
+     * @param data the data
+     * @param background the background pixel
+     * @param inflater the decompressor, which is reset
+     * @return the TILE_SIZE * TILE_SIZE pixels
+     * @throws IOException if the data is not a tile
+     */
+    public static int[] decodeTile(byte[] data, int background,
+            Inflater inflater) throws IOException {
+        int size = TiledCanvas.TILE_SIZE * TiledCanvas.TILE_SIZE;
+        byte[] raw = new byte[size * 4];
+        inflater.reset();
+        inflater.setInput(data);
+        try {
+            int n = 0;
+            while (n < raw.length && !inflater.finished()) {
+                int read = inflater.inflate(raw, n, raw.length - n);
+                if (read == 0 && inflater.needsInput()) {
+                    break;
+                }
+                n += read;
+            }
+            if (n != raw.length) {
+                throw new IOException("Truncated tile");
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException(ex);
+        }
+        int[] pixels = new int[size];
+        for (int i = 0, j = 0; i < size; i++, j += 4) {
+            pixels[i] = ((raw[j] & 0xff) << 24 | (raw[j + 1] & 0xff) << 16
+                    | (raw[j + 2] & 0xff) << 8 | (raw[j + 3] & 0xff))
+                    ^ background;
+        }
+        return pixels;
+    }
+
+    /**
+     * Writes tiles as the TILES payload, without a sequence number
+     *
+     * @param out the stream
+     * @param pixels the pixels of each tile of a canvas, as from
+     * TiledCanvas.getTilePixels, or null for the tiles not to write
+     * @param background the background pixel of the canvas
+     * @param deflater the compressor
+     * @throws IOException if the stream cannot be written
+     */
+    public static void writeTiles(DataOutputStream out, int[][] pixels,
+            int background, Deflater deflater) throws IOException {
+        int count = 0;
+        for (int[] p : pixels) {
+            if (p != null) {
+                count++;
+            }
+        }
+        out.writeInt(count);
+        for (int i = 0; i < pixels.length; i++) {
+            if (pixels[i] != null) {
+                byte[] data = encodeTile(pixels[i], background, deflater);
+                out.writeInt(i);
+                out.writeInt(data.length);
+                out.write(data);
+            }
+        }
+    }
+
+    /**
+     * The tiles of a TILES message, still compressed
+     */
+    public static class Tiles {
+
+        private final int[] indices;
+        private final byte[][] data;
+
+        private Tiles(int[] indices, byte[][] data) {
+            this.indices = indices;
+            this.data = data;
+        }
+
+        /**
+         * Reads the TILES payload written by writeTiles
+         *
+         * @param in the stream
+         * @param tileCount the number of tiles of the canvas
+         * @return the tiles
+         * @throws IOException if the stream cannot be read or a tile is not
+         * on the canvas
+         */
+        public static Tiles read(DataInputStream in, int tileCount)
+                throws IOException {
+            int count = in.readInt();
+            if (count < 0 || count > tileCount) {
+                throw new IOException("Bad tile count: " + count);
+            }
+            int[] indices = new int[count];
+            byte[][] data = new byte[count][];
+            for (int i = 0; i < count; i++) {
+                indices[i] = in.readInt();
+                int length = in.readInt();
+                if (indices[i] < 0 || indices[i] >= tileCount || length < 0
+                        || length > MAX_FRAME) {
+                    throw new IOException("Bad tile: " + indices[i]);
+                }
+                data[i] = new byte[length];
+                in.readFully(data[i]);
+            }
+            return new Tiles(indices, data);
+        }
+
+        /**
+         * @return the number of tiles
+         */
+        public int getCount() {
+            return indices.length;
+        }
+
+        /**
+         * @param i the number of a tile in the message
+         * @return the index of the tile on the canvas
+         */
+        public int getIndex(int i) {
+            return indices[i];
+        }
+
+        /**
+         * Decompresses the pixels of a tile
+         *
+         * @param i the number of a tile in the message
+         * @param background the background pixel of the canvas
+         * @param inflater the decompressor
+         * @return the pixels
+         * @throws IOException if the data is not a tile
+         */
+        public int[] getPixels(int i, int background, Inflater inflater)
+                throws IOException {
+            return decodeTile(data[i], background, inflater);
+        }
+    }
+}
@@ -0,0 +1,489 @@
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Shares the background layer of a canvas between the clients connected to
+ * it, speaking CanvasProtocol. Every client is served by one thread, which
+ * waits on a Selector for any of them to be readable or writable, so a
+ * client that is slow to read only costs the memory of the messages queued
+ * for it. A client that falls more than MAX_QUEUED bytes behind is dropped.
+ *
+ * The messages are kept in a log, numbered in the order they arrive, and
+ * relayed to every other client as they arrive. The server also keeps a
+ * snapshot of the canvas with its tiles compressed, so a client that joins
+ * is sent the snapshot and the messages after it rather than the whole log.
+ * The canvas is only brought up to date, and the tiles changed since the
+ * last snapshot compressed again, when a client joins after SNAPSHOT_INTERVAL
+ * messages or the log grows past MAX_LOG bytes; the log before the new
+ * snapshot is then dropped.
+ *
+ * Usage: java CanvasServer [port] [width] [height]
+ */
+public class CanvasServer implements Runnable {
+
+    //how many messages a joining client may have to catch up on before the
+    //snapshot is taken again
+    private static final int SNAPSHOT_INTERVAL = 256;
+    //the most bytes of messages kept in the log, and queued for one client
+    private static final long MAX_LOG = 64L * 1024 * 1024;
+    private static final long MAX_QUEUED = 32L * 1024 * 1024;
+    private static final int READ_BUFFER = 64 * 1024;
+
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final List<Connection> clients = new ArrayList<Connection>();
+    private volatile boolean stopped = false;
+    //the canvas as of the snapshot, its compressed tiles and the TILES
+    //message made of them, and which tiles changed since it was taken
+    private final TiledCanvas canvas;
+    private final byte[][] snapshotTiles;
+    private byte[] snapshotFrame;
+    private final boolean[] changed;
+    //the number of the last message and of the last message in the snapshot
+    private long sequence = 0, snapshotSequence = 0;
+    //the messages after the snapshot as they were relayed, their size, and
+    //the operations among them
+    private final List<byte[]> log = new ArrayList<byte[]>();
+    private long logBytes = 0;
+    private Document pending;
+    //the clients sent messages since the queues were last written, and the
+    //messages written to a client at once
+    private final List<Connection> flushes = new ArrayList<Connection>();
+    private final ByteBuffer[] gather = new ByteBuffer[64];
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater inflater = new Inflater();
+
+    /**
+     * A connected client, with the bytes read from it that do not yet make a
+     * whole message and the messages waiting to be written to it
+     */
+    private static class Connection {
+
+        private final SocketChannel channel;
+        private ByteBuffer in = ByteBuffer.allocate(READ_BUFFER);
+        private final ArrayDeque<ByteBuffer> out = new ArrayDeque<ByteBuffer>();
+        private long queued = 0;
+        //whether the client is among the queues to write
+        private boolean flushing = false;
+        //how many bytes may be queued: MAX_QUEUED beyond the catch-up
+        private long limit;
+        private SelectionKey key;
+
+        private Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * Creates a server listening on a port of every address of the machine.
+     * It serves nothing until it is run.
+     *
+     * @param port the port, or 0 for any free port
+     * @param width the width of the canvas
+     * @param height the height of the canvas
+     * @param background the background color
+     * @throws IOException if the port cannot be listened on
+     */
+    public CanvasServer(int port, int width, int height, Color background)
+            throws IOException {
+        pending = new Document(width, height, background.getRGB());
+        canvas = DocumentRenderer.createLayerCanvas(pending,
+                pending.getLayer(0), width, height, null);
+        snapshotTiles = new byte[canvas.getColumns() * canvas.getRows()][];
+        changed = new boolean[snapshotTiles.length];
+        snapshotFrame = tilesFrame();
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.socket().setReuseAddress(true);
+        server.socket().bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * @return the port the server listens on
+     */
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * Serves the clients until stop is called
+     */
+    @Override
+    public void run() {
+        try {
+            while (!stopped) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys()
+                        .iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    Connection c = (Connection) key.attachment();
+                    try {
+                        if (key.isAcceptable()) {
+                            accept();
+                            continue;
+                        }
+                        if (key.isReadable()) {
+                            read(c);
+                        }
+                        if (c.key.isValid() && key.isWritable()) {
+                            write(c);
+                        }
+                    } catch (IOException ex) {
+                        Logger.getLogger(CanvasServer.class.getName()).log(
+                                Level.WARNING, "Client dropped: {0}",
+                                ex.getMessage());
+                        if (c != null) {
+                            close(c);
+                        }
+                    }
+                }
+                flush();
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(CanvasServer.class.getName())
+                    .log(Level.SEVERE, null, ex);
+        } finally {
+            for (Connection c : new ArrayList<Connection>(clients)) {
+                close(c);
+            }
+            try {
+                server.close();
+                selector.close();
+            } catch (IOException ex) {
+                Logger.getLogger(CanvasServer.class.getName())
+                        .log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Stops the server and disconnects every client. May be called from
+     * any thread.
+     */
+    public void stop() {
+        stopped = true;
+        selector.wakeup();
+    }
+
+    //Accepts a client and sends it the snapshot and the log after it
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Connection c = new Connection(channel);
+        c.key = channel.register(selector, SelectionKey.OP_READ, c);
+        clients.add(c);
+        Logger.getLogger(CanvasServer.class.getName()).log(Level.INFO,
+                "Client joined: {0}",
+                channel.socket().getRemoteSocketAddress());
+
+        if (log.size() >= SNAPSHOT_INTERVAL) {
+            try {
+                takeSnapshot();
+            } catch (IOException ex) {
+                //The key is the server's, so the client is closed here
+                Logger.getLogger(CanvasServer.class.getName()).log(
+                        Level.WARNING, "Client dropped: {0}",
+                        ex.getMessage());
+                close(c);
+                return;
+            }
+        }
+        c.limit = MAX_QUEUED + snapshotFrame.length + logBytes;
+        DataOutputStream out = CanvasProtocol.beginFrame(buffer,
+                CanvasProtocol.WELCOME);
+        out.writeInt(canvas.getWidth());
+        out.writeInt(canvas.getHeight());
+        out.writeInt(pending.getBackground());
+        send(c, CanvasProtocol.endFrame(buffer));
+        send(c, snapshotFrame);
+        for (byte[] frame : log) {
+            send(c, frame);
+        }
+        send(c, sequenceFrame(CanvasProtocol.CAUGHT_UP, sequence));
+    }
+
+    //Reads what a client sent and handles every whole message in it
+    private void read(Connection c) throws IOException {
+        if (c.channel.read(c.in) < 0) {
+            Logger.getLogger(CanvasServer.class.getName()).log(Level.INFO,
+                    "Client left: {0}",
+                    c.channel.socket().getRemoteSocketAddress());
+            close(c);
+            return;
+        }
+        c.in.flip();
+        while (c.in.remaining() >= 4) {
+            int length = c.in.getInt(c.in.position());
+            if (length < 1 || length > CanvasProtocol.MAX_FRAME) {
+                throw new IOException("Bad message length: " + length);
+            }
+            if (c.in.remaining() < 4 + length) {
+                if (c.in.capacity() < 4 + length) {
+                    ByteBuffer larger = ByteBuffer.allocate(4 + length);
+                    larger.put(c.in);
+                    c.in = larger;
+                    return;
+                }
+                break;
+            }
+            c.in.getInt();
+            byte type = c.in.get();
+            byte[] payload = new byte[length - 1];
+            c.in.get(payload);
+            receive(c, type, payload);
+            if (!c.key.isValid()) {
+                return;
+            }
+        }
+        c.in.compact();
+    }
+
+    //Numbers a message from a client, logs it and relays it
+    private void receive(Connection sender, byte type, byte[] payload)
+            throws IOException {
+        DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(payload));
+        CanvasProtocol.Operation op = null;
+        if (type == CanvasProtocol.OP) {
+            op = CanvasProtocol.Operation.read(in);
+        } else if (type == CanvasProtocol.TILES) {
+            //The tiles are decompressed now, so tiles that cannot be drawn
+            //are never numbered, relayed or logged
+            CanvasProtocol.Tiles tiles = CanvasProtocol.Tiles.read(in,
+                    snapshotTiles.length);
+            for (int i = 0; i < tiles.getCount(); i++) {
+                tiles.getPixels(i, canvas.getBackgroundPixel(), inflater);
+            }
+        } else {
+            throw new IOException("Unexpected message: " + type);
+        }
+        if (in.available() > 0) {
+            throw new IOException("Bad message of type " + type);
+        }
+        if (op != null) {
+            op.addTo(pending, Document.BACKGROUND_LAYER);
+        }
+        sequence++;
+        DataOutputStream out = CanvasProtocol.beginFrame(buffer, type);
+        out.writeLong(sequence);
+        out.write(payload);
+        byte[] frame = CanvasProtocol.endFrame(buffer);
+        log.add(frame);
+        logBytes += frame.length;
+
+        byte[] ack = sequenceFrame(CanvasProtocol.ACK, sequence);
+        for (Connection c : new ArrayList<Connection>(clients)) {
+            send(c, c == sender ? ack : frame);
+        }
+        if (logBytes > MAX_LOG) {
+            takeSnapshot();
+        }
+    }
+
+    //Queues a message for a client. The queue is written once every
+    //message read this time round has been handled.
+    private void send(Connection c, byte[] frame) {
+        if (!c.key.isValid()) {
+            return;
+        }
+        c.out.add(ByteBuffer.wrap(frame));
+        c.queued += frame.length;
+        if (c.queued > c.limit) {
+            Logger.getLogger(CanvasServer.class.getName()).log(
+                    Level.WARNING, "Client dropped: {0} bytes queued",
+                    c.queued);
+            close(c);
+        } else if (!c.flushing) {
+            c.flushing = true;
+            flushes.add(c);
+        }
+    }
+
+    //Writes the queues of the clients sent messages to
+    private void flush() {
+        for (Connection c : flushes) {
+            c.flushing = false;
+            if (c.key.isValid()) {
+                try {
+                    write(c);
+                } catch (IOException ex) {
+                    Logger.getLogger(CanvasServer.class.getName()).log(
+                            Level.WARNING, "Client dropped: {0}",
+                            ex.getMessage());
+                    close(c);
+                }
+            }
+        }
+        flushes.clear();
+    }
+
+    //Writes queued messages, many to a call, until the client takes no
+    //more, and waits for it to be writable again if any are left
+    private void write(Connection c) throws IOException {
+        while (!c.out.isEmpty()) {
+            int n = 0;
+            for (ByteBuffer b : c.out) {
+                gather[n++] = b;
+                if (n == gather.length) {
+                    break;
+                }
+            }
+            c.channel.write(gather, 0, n);
+            boolean full = gather[n - 1].hasRemaining();
+            Arrays.fill(gather, 0, n, null);
+            while (!c.out.isEmpty() && !c.out.peek().hasRemaining()) {
+                c.queued -= c.out.poll().capacity();
+            }
+            if (full) {
+                c.key.interestOps(SelectionKey.OP_READ
+                        | SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+        c.key.interestOps(SelectionKey.OP_READ);
+    }
+
+    private void close(Connection c) {
+        clients.remove(c);
+        c.key.cancel();
+        c.out.clear();
+        try {
+            c.channel.close();
+        } catch (IOException ex) {
+            Logger.getLogger(CanvasServer.class.getName())
+                    .log(Level.SEVERE, null, ex);
+        }
+    }
+
+    //Brings the canvas up to date with the log, compresses the tiles that
+    //changed and drops the log
+    private void takeSnapshot() throws IOException {
+        int op = 0;
+        for (byte[] frame : log) {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                    frame, 13, frame.length - 13));
+            if (frame[4] == CanvasProtocol.TILES) {
+                CanvasProtocol.Tiles tiles = CanvasProtocol.Tiles.read(in,
+                        snapshotTiles.length);
+                for (int i = 0; i < tiles.getCount(); i++) {
+                    canvas.setTilePixels(tiles.getIndex(i), tiles.getPixels(i,
+                            canvas.getBackgroundPixel(), inflater));
+                    changed[tiles.getIndex(i)] = true;
+                }
+                continue;
+            }
+            markChanged(CanvasProtocol.Operation.read(in).apply(pending,
+                    op++, canvas));
+        }
+        for (int i = 0; i < changed.length; i++) {
+            if (changed[i]) {
+                snapshotTiles[i] = canvas.isBlank(i) ? null
+                        : CanvasProtocol.encodeTile(canvas.getTilePixels(i),
+                                canvas.getBackgroundPixel(), deflater);
+                changed[i] = false;
+            }
+        }
+        snapshotSequence = sequence;
+        snapshotFrame = tilesFrame();
+        log.clear();
+        logBytes = 0;
+        pending = new Document(canvas.getWidth(), canvas.getHeight(),
+                pending.getBackground());
+    }
+
+    //Marks the tiles a region covers changed since the snapshot
+    private void markChanged(Rectangle r) {
+        int size = TiledCanvas.TILE_SIZE;
+        Rectangle c = r.intersection(new Rectangle(canvas.getWidth(),
+                canvas.getHeight()));
+        if (c.isEmpty()) {
+            return;
+        }
+        for (int row = c.y / size; row <= (c.y + c.height - 1) / size; row++) {
+            for (int col = c.x / size; col <= (c.x + c.width - 1) / size;
+                    col++) {
+                changed[row * canvas.getColumns() + col] = true;
+            }
+        }
+    }
+
+    //The TILES message of the snapshot
+    private byte[] tilesFrame() throws IOException {
+        DataOutputStream out = CanvasProtocol.beginFrame(buffer,
+                CanvasProtocol.TILES);
+        out.writeLong(snapshotSequence);
+        int count = 0;
+        for (byte[] data : snapshotTiles) {
+            if (data != null) {
+                count++;
+            }
+        }
+        out.writeInt(count);
+        for (int i = 0; i < snapshotTiles.length; i++) {
+            if (snapshotTiles[i] != null) {
+                out.writeInt(i);
+                out.writeInt(snapshotTiles[i].length);
+                out.write(snapshotTiles[i]);
+            }
+        }
+        return CanvasProtocol.endFrame(buffer);
+    }
+
+    //A message of a sequence number alone
+    private byte[] sequenceFrame(byte type, long n) throws IOException {
+        DataOutputStream out = CanvasProtocol.beginFrame(buffer, type);
+        out.writeLong(n);
+        return CanvasProtocol.endFrame(buffer);
+    }
+
+    /**
+     * Runs a server until the process is killed
+     *
+     * @param args the port and the size of the canvas
+     * @throws IOException if the port cannot be listened on
+     */
+    public static void main(String[] args) throws IOException {
+        System.setProperty("java.awt.headless", "true");
+        int port = args.length > 0 ? Integer.parseInt(args[0])
+                : CanvasProtocol.DEFAULT_PORT;
+        int width = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        int height = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+        CanvasServer s = new CanvasServer(port, width, height, Color.WHITE);
+        Logger.getLogger(CanvasServer.class.getName()).log(Level.INFO,
+                "Sharing a {0} x {1} canvas on port {2,number,#}",
+                new Object[]{width, height, s.getPort()});
+        s.run();
+    }
+}
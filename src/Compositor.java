@@ -0,0 +1,180 @@
+import java.util.logging.Logger;
+
+/**
+ * Blends rows of packed ARGB pixels onto rows of canvas pixels. The source
+ * pixels are not premultiplied; the destination pixels are treated as opaque
+ * and keep their top byte, which suits the TYPE_INT_RGB canvas tiles.
+ *
+ * Each channel becomes B * a + D * (1 - a), where D is the destination
+ * channel, a is the source alpha times the opacity and B is the blend mode
+ * applied to the source and destination channels. Every product is rounded
+ * to the nearest whole value the same way, so all the implementations give
+ * exactly the same pixels.
+ *
+ * The default is the vector implementation when it can be loaded and the
+ * scalar one otherwise. The system property paint.compositor set to "scalar"
+ * or "vector" picks one when the program starts, and setDefault changes it
+ * while it runs.
+ */
+public abstract class Compositor {
+
+    //The blend modes
+    public static final int SRC_OVER = 0;
+    public static final int MULTIPLY = 1;
+    public static final int SCREEN = 2;
+    public static final int ADD = 3;
+    public static final int DARKEN = 4;
+    public static final int LIGHTEN = 5;
+    public static final int DIFFERENCE = 6;
+    public static final String[] MODE_NAMES = {"Normal", "Multiply",
+        "Screen", "Add", "Darken", "Lighten", "Difference"};
+    //the class of the vector implementation, in its own source root
+    private static final String VECTOR_CLASS = "VectorCompositor";
+    private static final Compositor SCALAR = new Scalar();
+    private static final Compositor VECTOR = loadVector();
+    private static volatile Compositor defaultCompositor = initialDefault();
+
+    protected Compositor() {
+    }
+
+    /**
+     * Blends a row of source pixels onto a row of destination pixels
+     *
+     * @param src the source pixels, in the default ARGB format
+     * @param srcOffset the index of the first source pixel
+     * @param dst the destination pixels, which are changed
+     * @param dstOffset the index of the first destination pixel
+     * @param length the number of pixels
+     * @param mode the blend mode
+     * @param opacity how much of the source shows, from 0 to 255
+     */
+    public abstract void composite(int[] src, int srcOffset, int[] dst,
+            int dstOffset, int length, int mode, int opacity);
+
+    /**
+     * @return a short name for the implementation
+     */
+    public abstract String getName();
+
+    /**
+     * @return the implementation that runs on any Java version
+     */
+    public static Compositor scalar() {
+        return SCALAR;
+    }
+
+    /**
+     * @return the implementation that uses the vector API, or null if it is
+     * not compiled in or the jdk.incubator.vector module was not added
+     */
+    public static Compositor vector() {
+        return VECTOR;
+    }
+
+    /**
+     * @return the implementation used by the canvas
+     */
+    public static Compositor getDefault() {
+        return defaultCompositor;
+    }
+
+    /**
+     * Changes the implementation used by the canvas
+     *
+     * @param c the implementation
+     */
+    public static void setDefault(Compositor c) {
+        defaultCompositor = c;
+    }
+
+    //Multiplies two values from 0 to 255 as fractions of 255, rounding to
+    //the nearest value
+    static int mul255(int a, int b) {
+        int t = a * b + 128;
+        return (t + (t >> 8)) >> 8;
+    }
+
+    //Loads the vector implementation if it was compiled and can run
+    private static Compositor loadVector() {
+        try {
+            return (Compositor) Class.forName(VECTOR_CLASS)
+                    .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError ex) {
+            return null;
+        }
+    }
+
+    private static Compositor initialDefault() {
+        String name = System.getProperty("paint.compositor", "");
+        if (name.equals("scalar")) {
+            return SCALAR;
+        }
+        if (VECTOR == null && name.equals("vector")) {
+            Logger.getLogger(Compositor.class.getName()).warning(
+                    "Vector compositing is not available; run with "
+                    + "--add-modules jdk.incubator.vector on Java 16 or "
+                    + "later");
+        }
+        return VECTOR != null ? VECTOR : SCALAR;
+    }
+
+    /**
+     * Blends one pixel at a time
+     */
+    private static class Scalar extends Compositor {
+
+        @Override
+        public void composite(int[] src, int srcOffset, int[] dst,
+                int dstOffset, int length, int mode, int opacity) {
+            for (int i = 0; i < length; i++) {
+                int s = src[srcOffset + i];
+                int a = mul255(s >>> 24, opacity);
+                if (a == 0) {
+                    continue;
+                }
+                int d = dst[dstOffset + i];
+                if (a == 255 && mode == SRC_OVER) {
+                    dst[dstOffset + i] = d & 0xff000000 | s & 0x00ffffff;
+                    continue;
+                }
+                int r = channel(mode, s >> 16 & 0xff, d >> 16 & 0xff, a);
+                int g = channel(mode, s >> 8 & 0xff, d >> 8 & 0xff, a);
+                int b = channel(mode, s & 0xff, d & 0xff, a);
+                dst[dstOffset + i] = d & 0xff000000 | r << 16 | g << 8 | b;
+            }
+        }
+
+        //Blends one channel
+        private static int channel(int mode, int s, int d, int a) {
+            int b;
+            switch (mode) {
+                case MULTIPLY:
+                    b = mul255(s, d);
+                    break;
+                case SCREEN:
+                    b = s + d - mul255(s, d);
+                    break;
+                case ADD:
+                    b = Math.min(255, s + d);
+                    break;
+                case DARKEN:
+                    b = Math.min(s, d);
+                    break;
+                case LIGHTEN:
+                    b = Math.max(s, d);
+                    break;
+                case DIFFERENCE:
+                    b = Math.abs(s - d);
+                    break;
+                default:
+                    b = s;
+            }
+            return mul255(b, a) + mul255(d, 255 - a);
+        }
+
+        @Override
+        public String getName() {
+            return "scalar";
+        }
+    }
+}
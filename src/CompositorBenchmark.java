@@ -0,0 +1,127 @@
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Measures how fast the compositors blend rows of pixels, and compares them
+ * with Java2D drawing an image with AlphaComposite.SrcOver, the only one of
+ * the blend modes Java2D has. It also checks that the vector compositor
+ * gives the same pixels as the scalar one.
+ *
+ * Usage: java [--add-modules jdk.incubator.vector] CompositorBenchmark
+ * [size] [rounds]
+ */
+public class CompositorBenchmark {
+
+    private CompositorBenchmark() {
+    }
+
+    /**
+     * Runs the benchmark
+     *
+     * @param args the size of the square image and the number of timed
+     * rounds
+     */
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 2048;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        //A source with every level of alpha, over an opaque destination
+        BufferedImage src = new BufferedImage(size, size,
+                BufferedImage.TYPE_INT_ARGB);
+        BufferedImage dst = new BufferedImage(size, size,
+                BufferedImage.TYPE_INT_RGB);
+        int[] srcPixels = ((DataBufferInt) src.getRaster().getDataBuffer())
+                .getData();
+        int[] dstPixels = ((DataBufferInt) dst.getRaster().getDataBuffer())
+                .getData();
+        Random random = new Random(1);
+        for (int i = 0; i < srcPixels.length; i++) {
+            srcPixels[i] = random.nextInt();
+            dstPixels[i] = random.nextInt() & 0x00ffffff;
+        }
+        int[] original = dstPixels.clone();
+
+        Compositor vector = Compositor.vector();
+        if (vector == null) {
+            System.out.println("Vector compositor not available; run with "
+                    + "--add-modules jdk.incubator.vector on Java 16 or "
+                    + "later to include it");
+        }
+        System.out.printf("%d x %d pixels, %d rounds%n", size, size, rounds);
+
+        //Java2D only does the normal mode
+        Graphics2D g = dst.createGraphics();
+        g.setComposite(AlphaComposite.SrcOver);
+        report("Java2D", "Normal", time(g, src, rounds, dstPixels, original),
+                size);
+        g.dispose();
+
+        for (int mode = 0; mode < Compositor.MODE_NAMES.length; mode++) {
+            int[] scalarResult = null;
+            for (Compositor c : new Compositor[]{Compositor.scalar(), vector}) {
+                if (c == null) {
+                    continue;
+                }
+                double seconds = time(c, mode, srcPixels, dstPixels,
+                        original, size, rounds);
+                report(c.getName(), Compositor.MODE_NAMES[mode], seconds,
+                        size);
+                if (scalarResult == null) {
+                    scalarResult = dstPixels.clone();
+                } else if (!Arrays.equals(scalarResult, dstPixels)) {
+                    System.out.println("  pixels differ from scalar");
+                }
+            }
+        }
+    }
+
+    //Times Java2D drawing the source image, returning seconds per round
+    private static double time(Graphics2D g, BufferedImage src, int rounds,
+            int[] dst, int[] original) {
+        g.drawImage(src, 0, 0, null);
+        long total = 0;
+        for (int r = 0; r < rounds; r++) {
+            System.arraycopy(original, 0, dst, 0, dst.length);
+            long start = System.nanoTime();
+            g.drawImage(src, 0, 0, null);
+            total += System.nanoTime() - start;
+        }
+        return total / 1e9 / rounds;
+    }
+
+    //Times a compositor blending the source row by row, returning seconds
+    //per round
+    private static double time(Compositor c, int mode, int[] src, int[] dst,
+            int[] original, int size, int rounds) {
+        //The first rounds let the JIT compile the loops
+        for (int r = 0; r < 10; r++) {
+            composite(c, mode, src, dst, size);
+        }
+        long total = 0;
+        for (int r = 0; r < rounds; r++) {
+            System.arraycopy(original, 0, dst, 0, dst.length);
+            long start = System.nanoTime();
+            composite(c, mode, src, dst, size);
+            total += System.nanoTime() - start;
+        }
+        return total / 1e9 / rounds;
+    }
+
+    private static void composite(Compositor c, int mode, int[] src,
+            int[] dst, int size) {
+        for (int y = 0; y < size; y++) {
+            c.composite(src, y * size, dst, y * size, size, mode, 255);
+        }
+    }
+
+    private static void report(String name, String mode, double seconds,
+            int size) {
+        System.out.printf("%-22s %-10s %8.2f ms %8.1f Mpixels/s%n", name,
+                mode, seconds * 1000, (double) size * size / seconds / 1e6);
+    }
+}
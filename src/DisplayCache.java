@@ -0,0 +1,165 @@
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.VolatileImage;
+
+/**
+ * A copy of the part of a canvas that is on the screen, in an image the
+ * screen can draw without converting its pixels. The canvas tiles are in
+ * whatever format the canvas was made with, so drawing them on the screen
+ * converts every pixel each time; the copy is only brought up to date where
+ * the canvas changed, and repaints that show nothing new, such as when a
+ * window in front of the canvas moves, draw the copy alone.
+ *
+ * The copy is kept in video memory as a VolatileImage when the screen can
+ * accelerate one. Its contents may be lost at any time, as when the display
+ * mode changes, and are then copied from the canvas again. Otherwise it is a
+ * BufferedImage compatible with the screen. Without a screen, as when the
+ * program runs headless, the canvas is drawn directly.
+ */
+public class DisplayCache {
+
+    //the copy, of one kind or the other, or null before it is made
+    private VolatileImage volatileImage;
+    private BufferedImage compatibleImage;
+    //the canvas and the region of it that is copied, and the part of that
+    //region that is out of date
+    private TiledCanvas source;
+    private final Rectangle area = new Rectangle();
+    private final Rectangle stale = new Rectangle();
+    private final Rectangle draw = new Rectangle();
+
+    /**
+     * Marks a region of the canvas changed, so it is copied again the next
+     * time it is drawn
+     *
+     * @param r the region
+     */
+    public void invalidate(Rectangle r) {
+        Rectangle s = r.intersection(area);
+        if (!s.isEmpty()) {
+            if (stale.isEmpty()) {
+                stale.setBounds(s);
+            } else {
+                stale.add(s);
+            }
+        }
+    }
+
+    /**
+     * Forgets the copy, so it is made again the next time it is drawn
+     */
+    public void flush() {
+        if (volatileImage != null) {
+            volatileImage.flush();
+            volatileImage = null;
+        }
+        compatibleImage = null;
+        source = null;
+        area.setBounds(0, 0, 0, 0);
+        stale.setBounds(0, 0, 0, 0);
+    }
+
+    /**
+     * Draws the part of a canvas inside the clip bounds of a graphics
+     * context, from the copy where it can
+     *
+     * @param g the graphics context, in canvas coordinates
+     * @param canvas the canvas
+     * @param visible the region of the canvas on the screen, which the copy
+     * is made for
+     * @param gc the configuration of the screen, or null if there is none
+     */
+    public void draw(Graphics g, TiledCanvas canvas, Rectangle visible,
+            GraphicsConfiguration gc) {
+        Rectangle clip = g.getClipBounds();
+        Rectangle bounds = new Rectangle(canvas.getWidth(),
+                canvas.getHeight());
+        Rectangle r = visible.intersection(bounds);
+        if (gc == null || clip == null || r.isEmpty()) {
+            canvas.draw(g);
+            return;
+        }
+        if (canvas != source || !r.equals(area)) {
+            //The copy is made again when the canvas is replaced and when it
+            //is scrolled or resized, which needs every pixel drawn anyway
+            if (canvas != source || r.width != area.width
+                    || r.height != area.height) {
+                flush();
+            }
+            source = canvas;
+            area.setBounds(r);
+            stale.setBounds(r);
+        }
+        //A repaint outside the visible region is drawn directly
+        Rectangle.intersect(clip, bounds, draw);
+        if (!area.contains(draw)) {
+            canvas.draw(g);
+            return;
+        }
+
+        if (volatileImage == null && compatibleImage == null) {
+            create(gc);
+        }
+        if (volatileImage != null) {
+            do {
+                int status = volatileImage.validate(gc);
+                if (status == VolatileImage.IMAGE_INCOMPATIBLE) {
+                    volatileImage.flush();
+                    create(gc);
+                    stale.setBounds(area);
+                    if (volatileImage == null) {
+                        break;
+                    }
+                } else if (status == VolatileImage.IMAGE_RESTORED) {
+                    stale.setBounds(area);
+                }
+                update(volatileImage.createGraphics(), canvas);
+                blit(g, volatileImage);
+            } while (volatileImage.contentsLost());
+        }
+        if (volatileImage == null) {
+            update(compatibleImage.createGraphics(), canvas);
+            blit(g, compatibleImage);
+        }
+    }
+
+    //Makes the copy: in video memory if the screen accelerates it, and in
+    //the format of the screen otherwise
+    private void create(GraphicsConfiguration gc) {
+        volatileImage = null;
+        compatibleImage = null;
+        if (gc.getImageCapabilities().isAccelerated()) {
+            volatileImage = gc.createCompatibleVolatileImage(area.width,
+                    area.height);
+        }
+        if (volatileImage == null) {
+            compatibleImage = gc.createCompatibleImage(area.width,
+                    area.height);
+        }
+    }
+
+    //Copies the stale region from the canvas
+    private void update(Graphics2D cg, TiledCanvas canvas) {
+        if (!stale.isEmpty()) {
+            cg.translate(-area.x, -area.y);
+            cg.clipRect(stale.x, stale.y, stale.width, stale.height);
+            canvas.draw(cg);
+            stale.setBounds(0, 0, 0, 0);
+        }
+        cg.dispose();
+    }
+
+    //Draws the part of the copy inside the clip
+    private void blit(Graphics g, Image img) {
+        if (!draw.isEmpty()) {
+            int sx = draw.x - area.x, sy = draw.y - area.y;
+            g.drawImage(img, draw.x, draw.y, draw.x + draw.width,
+                    draw.y + draw.height, sx, sy, sx + draw.width,
+                    sy + draw.height, null);
+        }
+    }
+}
@@ -0,0 +1,794 @@
+import java.awt.BasicStroke;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.imageio.ImageIO;
+
+/**
+ * The operations that were drawn on a canvas, kept so the canvas can be drawn
+ * again at any size or with different settings. Each operation is a tool, its
+ * colors, thickness and fill flag, and a list of points, all kept in
+ * primitive arrays. What the points mean depends on the tool:
+ *
+ * - pencil, eraser and line repeater: the pressed point and every point the
+ * mouse was dragged through
+ * - line and shapes: the pressed point and the released point
+ * - fill: the first and last pixel of each filled run of a row
+ * - clear: no points
+ * - image: the top left and bottom right corners of the image, which is
+ * stored separately
+ * - delete: the index of the operation it hides, as a single int
+ * - filter: the filters applied to the whole canvas, as encoded by Filter
+ * - resize: the new width and height of the canvas
+ *
+ * The size of the canvas is the size the document was created with until a
+ * resize operation changes it, so resizing is undone like any other
+ * operation.
+ *
+ * Every operation is drawn on one of the layers of the document, which it
+ * names by the id of the layer. A layer that is removed keeps its
+ * operations, but they are no longer drawn.
+ *
+ * Operations after the current size were undone and are kept until another
+ * operation is added, so they can be redone. Operations are never changed
+ * once added; a shape is moved by hiding it and adding a moved copy, so
+ * moves and deletes are undone like any other operation.
+ *
+ * The bounds of the operations are kept in a spatial index, so finding the
+ * shape under a point or the operations that draw on a region only looks at
+ * the operations near it.
+ */
+public class Document {
+
+    //Tools that are not in PaintingComponent
+    public static final byte CLEAR = 100;
+    public static final byte IMAGE = 101;
+    public static final byte DELETE = 102;
+    public static final byte FILTER = 103;
+    public static final byte RESIZE = 104;
+    //the id of the layer at the bottom of every document
+    public static final int BACKGROUND_LAYER = 0;
+    //the size of the cells of the spatial index
+    private static final int CELL_SIZE = 64;
+    //how far from a line a click may be and still select it
+    private static final float HIT_WIDTH = 6;
+    //the largest width or height a document read from a file may have,
+    //beyond any canvas the program makes
+    private static final int MAX_SIZE = 65536;
+    private static final int MAGIC_V1 = 0x53504431; //"SPD1", without layers
+    private static final int MAGIC = 0x53504432; //"SPD2"
+    //the size the document was created with, and the size after the last
+    //resize operation that has not been undone
+    private final int initialWidth, initialHeight;
+    private int width, height;
+    private final int background;
+    private int size = 0, count = 0;
+    private byte[] tools = new byte[16];
+    private int[] primaryColors = new int[16];
+    private int[] secondaryColors = new int[16];
+    private float[] thicknesses = new float[16];
+    private boolean[] fills = new boolean[16];
+    //the id of the layer each operation is drawn on
+    private int[] layerIds = new int[16];
+    //where the points of each operation start, with one more entry for the
+    //end of the last operation
+    private int[] pointStarts = new int[17];
+    private int[] points = new int[256];
+    //x, y, width and height of the area each operation draws on
+    private int[] bounds = new int[64];
+    private final List<BufferedImage> images = new ArrayList<BufferedImage>();
+    //the delete operation that hides each operation, or -1
+    private int[] deletedBy = new int[16];
+    //covers the largest size the canvas has had, and is made again when a
+    //resize makes the canvas larger
+    private SpatialIndex index;
+    //the layers from the bottom up, and the id the next layer will get
+    private final List<Layer> layers = new ArrayList<Layer>();
+    private int nextLayerId = BACKGROUND_LAYER + 1;
+
+    /**
+     * Creates an empty document with only a background layer
+     *
+     * @param width the width of the canvas
+     * @param height the height of the canvas
+     * @param background the background color of the canvas as ARGB
+     */
+    public Document(int width, int height, int background) {
+        this.width = width;
+        this.height = height;
+        initialWidth = width;
+        initialHeight = height;
+        this.background = background;
+        index = new SpatialIndex(width, height, CELL_SIZE);
+        Arrays.fill(deletedBy, -1);
+        layers.add(new Layer(BACKGROUND_LAYER, "Background"));
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getBackground() {
+        return background;
+    }
+
+    /**
+     * @return the number of layers
+     */
+    public int getLayerCount() {
+        return layers.size();
+    }
+
+    /**
+     * @param index the position of a layer, counting up from the bottom
+     * @return the layer
+     */
+    public Layer getLayer(int index) {
+        return layers.get(index);
+    }
+
+    /**
+     * @param id the id of a layer
+     * @return the position of the layer counting up from the bottom, or -1
+     * if there is no such layer
+     */
+    public int indexOfLayer(int id) {
+        for (int i = 0; i < layers.size(); i++) {
+            if (layers.get(i).getId() == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Adds a transparent layer
+     *
+     * @param index the position of the new layer, above the background
+     * @param name the name of the layer
+     * @return the layer
+     */
+    public Layer addLayer(int index, String name) {
+        Layer layer = new Layer(nextLayerId++, name);
+        layers.add(Math.max(1, index), layer);
+        return layer;
+    }
+
+    /**
+     * Removes a layer. Its operations stay in the document but are no
+     * longer drawn. The background layer cannot be removed.
+     *
+     * @param index the position of the layer
+     */
+    public void removeLayer(int index) {
+        if (index > 0) {
+            layers.remove(index);
+        }
+    }
+
+    /**
+     * @return the number of operations that have not been undone
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Undoes or redoes operations by changing how many of them are in the
+     * document
+     *
+     * @param size the number of operations, at most the number added
+     */
+    public void setSize(int size) {
+        this.size = size;
+        width = initialWidth;
+        height = initialHeight;
+        for (int op = size - 1; op >= 0; op--) {
+            if (tools[op] == RESIZE) {
+                width = points[pointStarts[op]];
+                height = points[pointStarts[op] + 1];
+                break;
+            }
+        }
+    }
+
+    /**
+     * Adds an operation after the current ones. Operations that were undone
+     * are forgotten.
+     *
+     * @param layer the id of the layer the operation is drawn on
+     * @param tool the tool
+     * @param primary the primary color as ARGB
+     * @param secondary the secondary color as ARGB
+     * @param thickness the line thickness
+     * @param fill whether shapes are filled with the secondary color
+     * @param pts the points as x, y pairs
+     * @param pointCount the number of ints of pts to use
+     * @return the index of the operation
+     */
+    public int add(int layer, byte tool, int primary, int secondary,
+            float thickness, boolean fill, int[] pts, int pointCount) {
+        forgetUndone();
+        return append(layer, tool, primary, secondary, thickness, fill, pts,
+                pointCount);
+    }
+
+    /**
+     * Adds an image operation
+     *
+     * @param layer the id of the layer the image is drawn on
+     * @param image the image
+     * @param x the x coordinate of the image
+     * @param y the y coordinate of the image
+     * @return the index of the operation
+     */
+    public int addImage(int layer, BufferedImage image, int x, int y) {
+        forgetUndone();
+        images.add(image);
+        return append(layer, IMAGE, 0, 0, 0, false, new int[]{x, y,
+            x + image.getWidth(), y + image.getHeight()}, 4);
+    }
+
+    /**
+     * Changes the size of the canvas. Operations are kept where they are, so
+     * the canvas grows or shrinks at the right and bottom edges.
+     *
+     * @param width the new width
+     * @param height the new height
+     * @return the index of the resize operation
+     */
+    public int resize(int width, int height) {
+        forgetUndone();
+        return append(BACKGROUND_LAYER, RESIZE, 0, 0, 0, false,
+                new int[]{width, height}, 2);
+    }
+
+    /**
+     * Hides an operation
+     *
+     * @param op the operation
+     * @return the index of the delete operation
+     */
+    public int delete(int op) {
+        forgetUndone();
+        return append(layerIds[op], DELETE, 0, 0, 0, false, new int[]{op},
+                1);
+    }
+
+    /**
+     * Moves an operation by hiding it and adding a copy of it that is moved
+     *
+     * @param op the operation
+     * @param dx how far to move it right
+     * @param dy how far to move it down
+     * @return the index of the copy
+     */
+    public int move(int op, int dx, int dy) {
+        delete(op);
+        int start = pointStarts[op];
+        int[] pts = new int[getPointCount(op)];
+        for (int i = 0; i < pts.length; i += 2) {
+            pts[i] = points[start + i] + dx;
+            pts[i + 1] = points[start + i + 1] + dy;
+        }
+        return append(layerIds[op], tools[op], primaryColors[op],
+                secondaryColors[op], thicknesses[op], fills[op], pts,
+                pts.length);
+    }
+
+    /**
+     * @param op an operation
+     * @return whether the operation has not been undone or deleted
+     */
+    public boolean isVisible(int op) {
+        return op < size && (deletedBy[op] < 0 || deletedBy[op] >= size);
+    }
+
+    /**
+     * @param op an operation
+     * @return whether the operation is a line or shape that can be selected
+     */
+    public boolean isSelectable(int op) {
+        return tools[op] >= PaintingComponent.LINE
+                && tools[op] <= PaintingComponent.PENTAGON;
+    }
+
+    /**
+     * Finds the topmost line or shape of a layer under a point. A shape is
+     * under the point if it is filled and contains it or if its outline is
+     * near it.
+     *
+     * @param x the x coordinate of the point
+     * @param y the y coordinate of the point
+     * @param layer the id of the layer
+     * @return the operation, or -1 if there is none
+     */
+    public int hitTest(int x, int y, int layer) {
+        if (x < 0 || y < 0 || x >= width || y >= height) {
+            return -1;
+        }
+        int[] items = index.itemsAt(x, y);
+        for (int i = index.countAt(x, y) - 1; i >= 0; i--) {
+            int op = items[i];
+            if (layerIds[op] != layer || !isVisible(op)
+                    || !isSelectable(op)) {
+                continue;
+            }
+            int b = op * 4;
+            if (x < bounds[b] || y < bounds[b + 1]
+                    || x >= bounds[b] + bounds[b + 2]
+                    || y >= bounds[b + 1] + bounds[b + 3]) {
+                continue;
+            }
+            int start = pointStarts[op];
+            Shape shape = DocumentRenderer.createShape(tools[op],
+                    points[start], points[start + 1], points[start + 2],
+                    points[start + 3]);
+            if (fills[op] && tools[op] != PaintingComponent.LINE
+                    && shape.contains(x, y)) {
+                return op;
+            }
+            Shape outline = new BasicStroke(Math.max(HIT_WIDTH,
+                    thicknesses[op])).createStrokedShape(shape);
+            if (outline.contains(x, y)) {
+                return op;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the visible operations that draw on a region, in the order they
+     * were added
+     *
+     * @param region the region
+     * @return the operations
+     */
+    public int[] query(Rectangle region) {
+        int[] found = index.query(region, size);
+        int n = 0;
+        for (int op : found) {
+            if (isVisible(op) && intersects(op, region.x, region.y,
+                    region.width, region.height)) {
+                found[n++] = op;
+            }
+        }
+        return Arrays.copyOf(found, n);
+    }
+
+    /**
+     * Finds the visible operations of one layer that draw on a region, in
+     * the order they were added
+     *
+     * @param region the region
+     * @param layer the id of the layer
+     * @return the operations
+     */
+    public int[] query(Rectangle region, int layer) {
+        int[] found = query(region);
+        int n = 0;
+        for (int op : found) {
+            if (layerIds[op] == layer) {
+                found[n++] = op;
+            }
+        }
+        return Arrays.copyOf(found, n);
+    }
+
+    //Drops the operations after the current size, and the images they used
+    private void forgetUndone() {
+        for (int op = count - 1; op >= size; op--) {
+            if (tools[op] == DELETE) {
+                deletedBy[points[pointStarts[op]]] = -1;
+            } else {
+                index.removeFrom(size, getBounds(op));
+            }
+        }
+        count = size;
+        int n = imageCount(size);
+        while (images.size() > n) {
+            images.remove(images.size() - 1);
+        }
+    }
+
+    //Adds an operation after the last one
+    private int append(int layer, byte tool, int primary, int secondary,
+            float thickness, boolean fill, int[] pts, int pointCount) {
+        if (count == tools.length) {
+            int capacity = count * 2;
+            tools = Arrays.copyOf(tools, capacity);
+            primaryColors = Arrays.copyOf(primaryColors, capacity);
+            secondaryColors = Arrays.copyOf(secondaryColors, capacity);
+            thicknesses = Arrays.copyOf(thicknesses, capacity);
+            fills = Arrays.copyOf(fills, capacity);
+            layerIds = Arrays.copyOf(layerIds, capacity);
+            pointStarts = Arrays.copyOf(pointStarts, capacity + 1);
+            bounds = Arrays.copyOf(bounds, capacity * 4);
+            deletedBy = Arrays.copyOf(deletedBy, capacity);
+            Arrays.fill(deletedBy, count, capacity, -1);
+        }
+        int start = pointStarts[count];
+        if (start + pointCount > points.length) {
+            points = Arrays.copyOf(points,
+                    Math.max(points.length * 2, start + pointCount));
+        }
+        System.arraycopy(pts, 0, points, start, pointCount);
+        tools[count] = tool;
+        primaryColors[count] = primary;
+        secondaryColors[count] = secondary;
+        thicknesses[count] = thickness;
+        fills[count] = fill;
+        layerIds[count] = layer;
+        pointStarts[count + 1] = start + pointCount;
+        Rectangle r = computeBounds(count);
+        bounds[count * 4] = r.x;
+        bounds[count * 4 + 1] = r.y;
+        bounds[count * 4 + 2] = r.width;
+        bounds[count * 4 + 3] = r.height;
+        if (tool == DELETE) {
+            deletedBy[pts[0]] = count;
+        } else if (tool == RESIZE) {
+            width = pts[0];
+            height = pts[1];
+            if (width > index.getWidth() || height > index.getHeight()) {
+                growIndex();
+            }
+        } else {
+            index.add(count, r);
+        }
+        size = ++count;
+        return count - 1;
+    }
+
+    //Makes the spatial index cover the canvas after it grew. Every operation
+    //is listed again, since those beyond the old size were clamped into its
+    //edge cells.
+    private void growIndex() {
+        index = new SpatialIndex(Math.max(width, index.getWidth()),
+                Math.max(height, index.getHeight()), CELL_SIZE);
+        Rectangle r = new Rectangle();
+        for (int op = 0; op < count; op++) {
+            if (tools[op] != DELETE && tools[op] != RESIZE) {
+                index.add(op, getBounds(op, r));
+            }
+        }
+    }
+
+    public byte getTool(int op) {
+        return tools[op];
+    }
+
+    public int getPrimaryColor(int op) {
+        return primaryColors[op];
+    }
+
+    public int getSecondaryColor(int op) {
+        return secondaryColors[op];
+    }
+
+    public float getThickness(int op) {
+        return thicknesses[op];
+    }
+
+    public boolean isFilled(int op) {
+        return fills[op];
+    }
+
+    /**
+     * @param op an operation
+     * @return the id of the layer the operation is drawn on
+     */
+    public int getLayerId(int op) {
+        return layerIds[op];
+    }
+
+    /**
+     * @param op an operation
+     * @return the index of the first point of the operation in getPoints
+     */
+    public int getPointStart(int op) {
+        return pointStarts[op];
+    }
+
+    /**
+     * @param op an operation
+     * @return the number of ints the points of the operation take up
+     */
+    public int getPointCount(int op) {
+        return pointStarts[op + 1] - pointStarts[op];
+    }
+
+    /**
+     * @return the points of every operation. The array must not be changed.
+     */
+    public int[] getPoints() {
+        return points;
+    }
+
+    /**
+     * @param op an image operation
+     * @return the image it draws
+     */
+    public BufferedImage getImage(int op) {
+        return images.get(imageCount(op));
+    }
+
+    /**
+     * Tells whether an operation draws anywhere in a region
+     *
+     * @param op the operation
+     * @param x the x coordinate of the region
+     * @param y the y coordinate of the region
+     * @param w the width of the region
+     * @param h the height of the region
+     * @return whether the area the operation draws on intersects the region
+     */
+    public boolean intersects(int op, int x, int y, int w, int h) {
+        int i = op * 4;
+        return bounds[i] < x + w && x < bounds[i] + bounds[i + 2]
+                && bounds[i + 1] < y + h && y < bounds[i + 1] + bounds[i + 3];
+    }
+
+    /**
+     * @param op an operation
+     * @return the area the operation draws on
+     */
+    public Rectangle getBounds(int op) {
+        return getBounds(op, new Rectangle());
+    }
+
+    /**
+     * @param op an operation
+     * @param r the rectangle to set to the area the operation draws on
+     * @return r
+     */
+    public Rectangle getBounds(int op, Rectangle r) {
+        int i = op * 4;
+        r.setBounds(bounds[i], bounds[i + 1], bounds[i + 2], bounds[i + 3]);
+        return r;
+    }
+
+    //The number of image operations before an operation
+    private int imageCount(int op) {
+        int n = 0;
+        for (int i = 0; i < op; i++) {
+            if (tools[i] == IMAGE) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Returns how far the outline of a shape or a repeated line reaches past
+     * its points. They are drawn with the default BasicStroke, whose miter
+     * joins may reach out half the miter limit times the thickness.
+     *
+     * @param thickness the line thickness
+     * @return the distance in pixels, with a margin for anti-aliasing
+     */
+    public static int outlinePad(float thickness) {
+        float miterLimit = 10;
+        return (int) Math.ceil(miterLimit * thickness / 2) + 2;
+    }
+
+    //The area an operation draws on, grown by its line thickness
+    private Rectangle computeBounds(int op) {
+        byte tool = tools[op];
+        if (tool == CLEAR || tool == FILTER) {
+            return new Rectangle(0, 0, width, height);
+        }
+        if (tool == DELETE || tool == RESIZE) {
+            return new Rectangle();
+        }
+        int start = pointStarts[op], end = pointStarts[op + 1];
+        if (start == end) {
+            return new Rectangle();
+        }
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+        for (int i = start; i < end; i += 2) {
+            int x = points[i];
+            int y = points[i + 1];
+            minX = Math.min(minX, x);
+            minY = Math.min(minY, y);
+            maxX = Math.max(maxX, x);
+            maxY = Math.max(maxY, y);
+        }
+        int pad;
+        if (tool == PaintingComponent.FILL) {
+            pad = 0;
+        } else if (tool == IMAGE) {
+            return new Rectangle(minX, minY, maxX - minX, maxY - minY);
+        } else if (tool == PaintingComponent.ERASER) {
+            pad = (int) (10 * thicknesses[op]) + 2;
+        } else if (tool == PaintingComponent.PENCIL) {
+            pad = (int) Math.ceil(thicknesses[op]) + 2;
+        } else {
+            pad = outlinePad(thicknesses[op]);
+        }
+        return new Rectangle(minX - pad, minY - pad,
+                maxX - minX + 1 + 2 * pad, maxY - minY + 1 + 2 * pad);
+    }
+
+    /**
+     * Writes the layers and the operations that have not been undone
+     *
+     * @param out the stream to write to
+     * @throws IOException if the stream cannot be written
+     */
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(initialWidth);
+        out.writeInt(initialHeight);
+        out.writeInt(background);
+        out.writeInt(layers.size());
+        for (Layer layer : layers) {
+            out.writeInt(layer.getId());
+            out.writeUTF(layer.getName());
+            out.writeBoolean(layer.isVisible());
+            out.writeByte(layer.getOpacity());
+            out.writeByte(layer.getMode());
+        }
+        out.writeInt(size);
+        for (int op = 0; op < size; op++) {
+            out.writeInt(layerIds[op]);
+            out.writeByte(tools[op]);
+            out.writeInt(primaryColors[op]);
+            out.writeInt(secondaryColors[op]);
+            out.writeFloat(thicknesses[op]);
+            out.writeBoolean(fills[op]);
+            int n = getPointCount(op);
+            out.writeInt(n);
+            for (int i = pointStarts[op]; i < pointStarts[op + 1]; i++) {
+                out.writeInt(points[i]);
+            }
+            if (tools[op] == IMAGE) {
+                ByteArrayOutputStream png = new ByteArrayOutputStream();
+                ImageIO.write(getImage(op), "png", png);
+                out.writeInt(png.size());
+                png.writeTo(out);
+            }
+        }
+    }
+
+    /**
+     * Reads a document written by write. Documents written before there were
+     * layers are read with everything on the background layer.
+     *
+     * @param in the stream to read from
+     * @return the document
+     * @throws IOException if the stream cannot be read or is not a document,
+     * including one that is truncated or corrupt
+     */
+    public static Document read(DataInputStream in) throws IOException {
+        int magic = in.readInt();
+        check(magic == MAGIC || magic == MAGIC_V1);
+        int width = in.readInt(), height = in.readInt();
+        check(width > 0 && width <= MAX_SIZE && height > 0
+                && height <= MAX_SIZE);
+        Document d = new Document(width, height, in.readInt());
+        if (magic == MAGIC) {
+            d.layers.clear();
+            int layerCount = in.readInt();
+            check(layerCount > 0);
+            for (int i = 0; i < layerCount; i++) {
+                int id = in.readInt();
+                //The background layer comes first, and ids are unique
+                check(i == 0 ? id == BACKGROUND_LAYER
+                        : id > BACKGROUND_LAYER && d.indexOfLayer(id) < 0);
+                Layer layer = new Layer(id, in.readUTF());
+                layer.setVisible(in.readBoolean());
+                layer.setOpacity(in.readUnsignedByte());
+                int mode = in.readUnsignedByte();
+                check(mode < Compositor.MODE_NAMES.length);
+                layer.setMode(mode);
+                d.layers.add(layer);
+                d.nextLayerId = Math.max(d.nextLayerId, layer.getId() + 1);
+            }
+        }
+        int n = in.readInt();
+        check(n >= 0);
+        int[] pts = new int[16];
+        for (int op = 0; op < n; op++) {
+            int layer = magic == MAGIC ? in.readInt() : BACKGROUND_LAYER;
+            check(d.indexOfLayer(layer) >= 0);
+            byte tool = in.readByte();
+            int primary = in.readInt();
+            int secondary = in.readInt();
+            float thickness = in.readFloat();
+            check(thickness >= 0 && thickness < 1e4);
+            boolean fill = in.readBoolean();
+            int count = in.readInt();
+            check(isValid(tool, count));
+            //The points array only grows as the points are read, so a
+            //corrupt count runs out of stream before it runs out of memory
+            for (int i = 0; i < count; i++) {
+                if (i == pts.length) {
+                    pts = Arrays.copyOf(pts, pts.length * 2);
+                }
+                pts[i] = in.readInt();
+            }
+            if (tool == DELETE) {
+                check(pts[0] >= 0 && pts[0] < op
+                        && d.getTool(pts[0]) != DELETE
+                        && d.getTool(pts[0]) != RESIZE);
+            } else if (tool == RESIZE) {
+                check(pts[0] > 0 && pts[0] <= MAX_SIZE && pts[1] > 0
+                        && pts[1] <= MAX_SIZE);
+            }
+            if (tool == IMAGE) {
+                int length = in.readInt();
+                check(length > 0);
+                BufferedImage image = ImageIO.read(
+                        new ByteArrayInputStream(readBytes(in, length)));
+                check(image != null);
+                d.addImage(layer, image, pts[0], pts[1]);
+            } else {
+                d.add(layer, tool, primary, secondary, thickness, fill, pts,
+                        count);
+            }
+        }
+        return d;
+    }
+
+    //Reads a number of bytes a piece at a time, so a corrupt length runs out
+    //of stream before it runs out of memory
+    private static byte[] readBytes(DataInputStream in, int length)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                Math.min(length, 64 * 1024));
+        byte[] piece = new byte[Math.min(length, 64 * 1024)];
+        for (int left = length; left > 0; left -= piece.length) {
+            int n = Math.min(left, piece.length);
+            in.readFully(piece, 0, n);
+            bytes.write(piece, 0, n);
+        }
+        return bytes.toByteArray();
+    }
+
+    //Whether an operation of a tool may have a number of ints of points
+    private static boolean isValid(byte tool, int count) {
+        if (tool == DELETE) {
+            return count == 1;
+        }
+        if (tool < 0 || count < 0 || count % 2 != 0) {
+            return false;
+        }
+        switch (tool) {
+            case CLEAR:
+            case FILTER:
+                return true;
+            case RESIZE:
+                return count == 2;
+            case PaintingComponent.FILL:
+                return count % 4 == 0;
+            case PaintingComponent.ERASER:
+            case PaintingComponent.PENCIL:
+            case PaintingComponent.LINE_REPEATER:
+                return count >= 2;
+            default:
+                //Shapes and images are spanned by two points
+                return count >= 4;
+        }
+    }
+
+    //Throws unless what was read makes sense
+    private static void check(boolean valid) throws IOException {
+        if (!valid) {
+            throw new IOException("Not a paint document");
+        }
+    }
+}
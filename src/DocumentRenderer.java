@@ -0,0 +1,420 @@
+import java.awt.AlphaComposite;
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Composite;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.awt.geom.Path2D;
+import java.util.Arrays;
+
+/**
+ * Draws the operations of a document on a canvas at any scale. The tiles of
+ * the canvas are drawn in parallel, and each tile only replays the operations
+ * the spatial index of the document finds on it. Operations before the last
+ * one that covers the whole canvas, such as a clear, are skipped.
+ *
+ * A filter reads the pixels around each pixel, so every tile must be drawn
+ * up to a filter before it is applied. The operations between filters are
+ * drawn tile by tile as usual, and each filter is applied to the whole
+ * canvas in between.
+ *
+ * Each layer is drawn on a canvas of its own. The background layer is drawn
+ * over the document background, and the other layers over a transparent
+ * canvas, on which the eraser and clear make pixels transparent again.
+ */
+public class DocumentRenderer {
+
+    private DocumentRenderer() {
+    }
+
+    /**
+     * Replaces the contents of a canvas with a document, with its visible
+     * layers blended together. The canvas keeps its rendering hints, so a
+     * document can be drawn again with anti-aliasing turned on or off.
+     *
+     * @param doc the document
+     * @param canvas the canvas, at least as large as the scaled document. Its
+     * background should be the document background, and it must store
+     * opaque pixels in ints if the document has more than one layer.
+     * @param scale how many canvas pixels each document pixel covers
+     */
+    public static void render(Document doc, TiledCanvas canvas,
+            double scale) {
+        Layer bottom = doc.getLayer(0);
+        if (doc.getLayerCount() == 1 && bottom.isPlain()) {
+            render(doc, bottom.getId(), canvas, scale);
+            return;
+        }
+        canvas.fill(new Color(doc.getBackground(), true));
+        Rectangle all = new Rectangle(canvas.getWidth(), canvas.getHeight());
+        for (int i = 0; i < doc.getLayerCount(); i++) {
+            Layer layer = doc.getLayer(i);
+            if (layer.isVisible()) {
+                TiledCanvas layerCanvas = createLayerCanvas(doc, layer,
+                        canvas.getWidth(), canvas.getHeight(), null);
+                layerCanvas.setRenderingHints(canvas.getRenderingHints());
+                render(doc, layer.getId(), layerCanvas, scale);
+                canvas.composite(layerCanvas, all, layer.getMode(),
+                        layer.getOpacity());
+            }
+        }
+    }
+
+    /**
+     * Replaces the contents of a canvas with one layer of a document
+     *
+     * @param doc the document
+     * @param layer the id of the layer
+     * @param canvas the canvas, at least as large as the scaled document, as
+     * made by createLayerCanvas
+     * @param scale how many canvas pixels each document pixel covers
+     */
+    public static void render(Document doc, int layer, TiledCanvas canvas,
+            double scale) {
+        canvas.clear();
+        Rectangle all = new Rectangle(doc.getWidth(), doc.getHeight());
+        int from = 0;
+        for (int op = 0; op < doc.size(); op++) {
+            if (doc.getTool(op) == Document.FILTER
+                    && doc.getLayerId(op) == layer && doc.isVisible(op)) {
+                render(doc, layer, canvas, scale, all, from, op);
+                int start = doc.getPointStart(op);
+                Filter[] filters = Filter.decode(doc.getPoints(), start,
+                        start + doc.getPointCount(op));
+                for (int i = 0; i < filters.length; i++) {
+                    filters[i] = filters[i].scale(scale);
+                }
+                FilterEngine.apply(canvas, filters);
+                from = op + 1;
+            }
+        }
+        render(doc, layer, canvas, scale, all, from, doc.size());
+    }
+
+    /**
+     * Creates a canvas to draw a layer of a document on. The background
+     * layer has the document background, and the other layers are
+     * transparent.
+     *
+     * @param doc the document
+     * @param layer the layer
+     * @param width the width of the canvas
+     * @param height the height of the canvas
+     * @param store where to keep the tile pixels, or null for the heap
+     * @return the canvas
+     */
+    public static TiledCanvas createLayerCanvas(Document doc, Layer layer,
+            int width, int height, MappedTileStore store) {
+        return new TiledCanvas(width, height, BufferedImage.TYPE_INT_ARGB,
+                background(doc, layer.getId()), store);
+    }
+
+    /**
+     * Draws a region of one layer of a document over the same region of a
+     * canvas. Only the operations that draw on the region are replayed, so a
+     * small region is redrawn quickly however many operations the document
+     * has. If a filter was applied to the layer, the filter may spread
+     * changes to the region further, so the whole layer is drawn again
+     * instead.
+     *
+     * @param doc the document
+     * @param layer the id of the layer
+     * @param canvas the canvas, at least as large as the scaled document, as
+     * made by createLayerCanvas
+     * @param scale how many canvas pixels each document pixel covers
+     * @param region the region of the document
+     */
+    public static void render(Document doc, int layer, TiledCanvas canvas,
+            double scale, Rectangle region) {
+        for (int op : doc.query(region, layer)) {
+            if (doc.getTool(op) == Document.FILTER) {
+                render(doc, layer, canvas, scale);
+                return;
+            }
+        }
+        render(doc, layer, canvas, scale, region, 0, doc.size());
+    }
+
+    //Draws the operations of a layer from one index up to another on a
+    //region. The region is cleared to the background first if the
+    //operations start at the beginning of the document.
+    private static void render(final Document doc, int layer,
+            final TiledCanvas canvas, final double scale, Rectangle region,
+            int from, int to) {
+        final boolean clear = from == 0;
+        final Color background = background(doc, layer);
+        final Rectangle scaled = scale(region, scale);
+        int columns = canvas.getColumns();
+        int size = TiledCanvas.TILE_SIZE;
+        int firstColumn = Math.max(0, tile(scaled.x));
+        int firstRow = Math.max(0, tile(scaled.y));
+        int lastColumn = Math.min(columns - 1,
+                tile(scaled.x + scaled.width - 1));
+        int lastRow = Math.min(canvas.getRows() - 1,
+                tile(scaled.y + scaled.height - 1));
+
+        //The index is not thread safe, so every tile's operations are found
+        //before the tiles are drawn
+        boolean[] which = new boolean[columns * canvas.getRows()];
+        final int[][] tileOperations = new int[which.length][];
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int col = firstColumn; col <= lastColumn; col++) {
+                Rectangle r = scaled.intersection(new Rectangle(col * size,
+                        row * size, size, size));
+                int i = row * columns + col;
+                tileOperations[i] = range(doc.query(unscale(r, scale), layer),
+                        from, to);
+                //Blank tiles with nothing to draw on them stay blank
+                which[i] = tileOperations[i].length > 0
+                        || (clear && !canvas.isBlank(i));
+            }
+        }
+
+        canvas.paintTiles(which, new TiledCanvas.Painter() {
+            @Override
+            public void paint(Graphics2D g) {
+                Rectangle clip = g.getClipBounds();
+                int[] ops = tileOperations[(clip.y / TiledCanvas.TILE_SIZE)
+                        * canvas.getColumns() + clip.x / TiledCanvas.TILE_SIZE];
+                g.clipRect(scaled.x, scaled.y, scaled.width, scaled.height);
+                if (clear) {
+                    fillBackground(g, background, g.getClipBounds());
+                }
+                g.scale(scale, scale);
+                for (int i = firstVisible(doc, ops); i < ops.length; i++) {
+                    draw(g, doc, ops[i], background);
+                }
+            }
+        });
+    }
+
+    /**
+     * Draws one operation of a document over what is already on a canvas,
+     * as when it was just added. A filter is applied to the whole canvas.
+     *
+     * @param doc the document
+     * @param op the operation
+     * @param canvas the canvas of the layer of the operation, as made by
+     * createLayerCanvas
+     * @return the region the operation changed
+     */
+    public static Rectangle apply(final Document doc, final int op,
+            TiledCanvas canvas) {
+        Rectangle bounds = doc.getBounds(op);
+        if (doc.getTool(op) == Document.FILTER) {
+            int start = doc.getPointStart(op);
+            FilterEngine.apply(canvas, Filter.decode(doc.getPoints(), start,
+                    start + doc.getPointCount(op)));
+        } else {
+            final Color background = background(doc, doc.getLayerId(op));
+            canvas.paint(bounds, new TiledCanvas.Painter() {
+                @Override
+                public void paint(Graphics2D g) {
+                    draw(g, doc, op, background);
+                }
+            });
+        }
+        return bounds;
+    }
+
+    /**
+     * Draws one operation of a document
+     *
+     * @param g the graphics context, in document coordinates
+     * @param doc the document
+     * @param op the operation
+     * @param background the background color of the layer, or null if it is
+     * transparent
+     */
+    public static void draw(Graphics2D g, Document doc, int op,
+            Color background) {
+        int[] pts = doc.getPoints();
+        int start = doc.getPointStart(op);
+        int end = start + doc.getPointCount(op);
+        float thickness = doc.getThickness(op);
+        byte tool = doc.getTool(op);
+        switch (tool) {
+            case Document.CLEAR:
+                fillBackground(g, background, new Rectangle(doc.getWidth(),
+                        doc.getHeight()));
+                break;
+
+            case Document.DELETE:
+            case Document.FILTER:
+            case Document.RESIZE:
+                break;
+
+            case Document.IMAGE:
+                g.drawImage(doc.getImage(op), pts[start], pts[start + 1],
+                        null);
+                break;
+
+            case PaintingComponent.FILL:
+                g.setColor(new Color(doc.getPrimaryColor(op), true));
+                for (int i = start; i < end; i += 4) {
+                    g.fillRect(pts[i], pts[i + 1], pts[i + 2] - pts[i] + 1, 1);
+                }
+                break;
+
+            case PaintingComponent.ERASER:
+                //A square where the mouse was pressed, then the path
+                int ewidth = (int) (10 * thickness);
+                Composite composite = g.getComposite();
+                useBackground(g, background);
+                g.fillRect(pts[start] - ewidth / 2, pts[start + 1] - ewidth / 2,
+                        ewidth, ewidth);
+                g.setStroke(new BasicStroke(ewidth, BasicStroke.CAP_SQUARE,
+                        BasicStroke.JOIN_ROUND));
+                g.draw(path(pts, start, end, false));
+                g.setComposite(composite);
+                break;
+
+            case PaintingComponent.PENCIL:
+                g.setColor(new Color(doc.getPrimaryColor(op), true));
+                g.setStroke(new BasicStroke(thickness, BasicStroke.CAP_ROUND,
+                        BasicStroke.JOIN_ROUND));
+                g.draw(path(pts, start, end, false));
+                break;
+
+            case PaintingComponent.LINE_REPEATER:
+                g.setColor(new Color(doc.getPrimaryColor(op), true));
+                g.setStroke(new BasicStroke(thickness));
+                g.draw(path(pts, start, end, true));
+                break;
+
+            default:
+                Shape shape = createShape(tool, pts[start], pts[start + 1],
+                        pts[start + 2], pts[start + 3]);
+                if (shape == null) {
+                    break;
+                }
+                g.setStroke(new BasicStroke(thickness));
+                if (doc.isFilled(op) && tool != PaintingComponent.LINE) {
+                    g.setColor(new Color(doc.getSecondaryColor(op), true));
+                    g.fill(shape);
+                }
+                g.setColor(new Color(doc.getPrimaryColor(op), true));
+                g.draw(shape);
+        }
+    }
+
+    /**
+     * Sets a graphics context up to paint the background of a layer. On a
+     * transparent layer that clears pixels, so the composite should be put
+     * back afterwards.
+     *
+     * @param g the graphics context
+     * @param background the background color, or null if it is transparent
+     */
+    public static void useBackground(Graphics2D g, Color background) {
+        if (background != null) {
+            g.setColor(background);
+        } else {
+            g.setComposite(AlphaComposite.Clear);
+        }
+    }
+
+    //Fills a region with the background of a layer
+    private static void fillBackground(Graphics2D g, Color background,
+            Rectangle r) {
+        Composite composite = g.getComposite();
+        useBackground(g, background);
+        g.fill(r);
+        g.setComposite(composite);
+    }
+
+    //The background of a layer: the document background for the background
+    //layer and transparent for the others
+    private static Color background(Document doc, int layer) {
+        return layer == Document.BACKGROUND_LAYER
+                ? new Color(doc.getBackground(), true) : null;
+    }
+
+    /**
+     * Creates the outline of a line or shape tool spanning from the point
+     * where the mouse was pressed to the point where it was released
+     *
+     * @param tool the tool
+     * @param oldX the x coordinate of the pressed point
+     * @param oldY the y coordinate of the pressed point
+     * @param currentX the x coordinate of the released point
+     * @param currentY the y coordinate of the released point
+     * @return the shape, or null if the tool does not draw a shape
+     */
+    public static Shape createShape(byte tool, int oldX, int oldY,
+            int currentX, int currentY) {
+        return new ShapeOutline().set(tool, oldX, oldY, currentX, currentY);
+    }
+
+    //A path through points, or from the first point to each of the others
+    private static Path2D.Float path(int[] pts, int start, int end,
+            boolean fan) {
+        Path2D.Float path = new Path2D.Float();
+        path.moveTo(pts[start], pts[start + 1]);
+        for (int i = start + 2; i < end; i += 2) {
+            if (fan) {
+                path.moveTo(pts[start], pts[start + 1]);
+            }
+            path.lineTo(pts[i], pts[i + 1]);
+        }
+        return path;
+    }
+
+    //The position in a list of operations of the last one that covers the
+    //whole canvas, so nothing before it can be seen
+    private static int firstVisible(Document doc, int[] ops) {
+        Rectangle all = new Rectangle(doc.getWidth(), doc.getHeight());
+        for (int i = ops.length - 1; i >= 0; i--) {
+            byte tool = doc.getTool(ops[i]);
+            if (tool == Document.CLEAR) {
+                return i;
+            }
+            if (tool == Document.IMAGE && doc.getImage(ops[i])
+                    .getTransparency() == Transparency.OPAQUE
+                    && doc.getBounds(ops[i]).contains(all)) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    //The operations of a sorted list from one index up to another
+    private static int[] range(int[] ops, int from, int to) {
+        int first = 0;
+        while (first < ops.length && ops[first] < from) {
+            first++;
+        }
+        int last = first;
+        while (last < ops.length && ops[last] < to) {
+            last++;
+        }
+        return Arrays.copyOfRange(ops, first, last);
+    }
+
+    //A document region scaled to cover every canvas pixel it touches
+    private static Rectangle scale(Rectangle r, double scale) {
+        int x = (int) Math.floor(r.x * scale);
+        int y = (int) Math.floor(r.y * scale);
+        return new Rectangle(x, y,
+                (int) Math.ceil((r.x + r.width) * scale) - x,
+                (int) Math.ceil((r.y + r.height) * scale) - y);
+    }
+
+    //The document region covering a canvas region, grown by a pixel for
+    //lines that reach into neighbouring pixels when scaled
+    private static Rectangle unscale(Rectangle r, double scale) {
+        int x = (int) Math.floor(r.x / scale) - 1;
+        int y = (int) Math.floor(r.y / scale) - 1;
+        return new Rectangle(x, y,
+                (int) Math.ceil((r.x + r.width) / scale) - x + 1,
+                (int) Math.ceil((r.y + r.height) / scale) - y + 1);
+    }
+
+    //The tile a canvas coordinate is in, rounding down
+    private static int tile(int coordinate) {
+        return (int) Math.floor((double) coordinate / TiledCanvas.TILE_SIZE);
+    }
+}
@@ -0,0 +1,144 @@
+import java.awt.event.InputEvent;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseListener;
+import java.awt.event.MouseMotionListener;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import javax.swing.SwingUtilities;
+
+/**
+ * Checks that dragging the mouse allocates nothing with any of the tools.
+ * For each tool, the mouse is pressed and dragged back and forth across the
+ * canvas, and the bytes the event dispatch thread allocates while it is
+ * dragged are counted. The drags are repeated until the code they run is
+ * compiled, and the fewest bytes of any round count, so a round the JIT or
+ * a class load got into does not fail the check.
+ *
+ * It exits with status 1 if any tool allocates, so it can be run after
+ * changes to the tools, and needs a JVM whose ThreadMXBean counts allocated
+ * bytes, as HotSpot's does.
+ *
+ * Usage: java DragAllocationCheck [canvas size] [drags]
+ */
+public class DragAllocationCheck {
+
+    //the rounds of drags of each tool, the first ones warming up
+    private static final int ROUNDS = 5;
+    private final com.sun.management.ThreadMXBean threads;
+    private final PaintingComponent component;
+    private final MouseListener[] mouseListeners;
+    private final MouseMotionListener[] motionListeners;
+    private final MouseEvent[] drags;
+    private final int size;
+
+    private DragAllocationCheck(com.sun.management.ThreadMXBean threads,
+            int size, int count) {
+        this.threads = threads;
+        this.size = size;
+        component = new PaintingComponent(size, size);
+        //A component that was never laid out has no size and paints nothing
+        component.setSize(size, size);
+        mouseListeners = component.getMouseListeners();
+        motionListeners = component.getMouseMotionListeners();
+        //A zigzag over the middle of the canvas, made before it is measured
+        int span = size / 2;
+        drags = new MouseEvent[count];
+        for (int i = 0; i < count; i++) {
+            drags[i] = event(MouseEvent.MOUSE_DRAGGED,
+                    span / 2 + i * 7 % span, span / 2 + i * 13 % span);
+        }
+    }
+
+    /**
+     * Runs the check
+     *
+     * @param args the size of the square canvas and the number of drags of
+     * each round
+     * @throws Exception if the check cannot be run on the event dispatch
+     * thread
+     */
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        final int size = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        final int count = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        Object bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)
+                || !((com.sun.management.ThreadMXBean) bean)
+                .isThreadAllocatedMemorySupported()) {
+            System.out.println("This JVM does not count allocated bytes");
+            System.exit(2);
+        }
+        final com.sun.management.ThreadMXBean threads
+                = (com.sun.management.ThreadMXBean) bean;
+        threads.setThreadAllocatedMemoryEnabled(true);
+        final boolean[] passed = new boolean[1];
+        try {
+            SwingUtilities.invokeAndWait(new Runnable() {
+                @Override
+                public void run() {
+                    passed[0] = new DragAllocationCheck(threads, size, count)
+                            .run();
+                }
+            });
+        } catch (InvocationTargetException ex) {
+            throw new IllegalStateException(ex.getCause());
+        }
+        System.out.println(passed[0] ? "No tool allocates while dragging"
+                : "Dragging allocates");
+        System.exit(passed[0] ? 0 : 1);
+    }
+
+    //Checks every tool and reports what each allocates
+    private boolean run() {
+        System.out.printf("%d drags a round on a %d x %d canvas%n",
+                drags.length, size, size);
+        boolean passed = true;
+        //Every registered tool, the built-in ones and any added later
+        for (byte t = 0; t >= 0; t++) {
+            Tool tool = component.getTool(t);
+            if (tool == null) {
+                continue;
+            }
+            component.setDrawMode(t);
+            long bytes = Long.MAX_VALUE;
+            for (int round = 0; round < ROUNDS; round++) {
+                bytes = Math.min(bytes, measure());
+            }
+            System.out.printf("%-20s %8.2f bytes/drag%n", tool.getName(),
+                    bytes / (double) drags.length);
+            passed &= bytes == 0;
+        }
+        return passed;
+    }
+
+    //Presses the mouse, drags it and releases it, returning the bytes the
+    //drags allocated
+    private long measure() {
+        MouseEvent press = event(MouseEvent.MOUSE_PRESSED,
+                drags[0].getX(), drags[0].getY());
+        MouseEvent release = event(MouseEvent.MOUSE_RELEASED,
+                drags[drags.length - 1].getX(),
+                drags[drags.length - 1].getY());
+        for (MouseListener l : mouseListeners) {
+            l.mousePressed(press);
+        }
+        long id = Thread.currentThread().getId();
+        long start = threads.getThreadAllocatedBytes(id);
+        for (MouseEvent e : drags) {
+            for (MouseMotionListener l : motionListeners) {
+                l.mouseDragged(e);
+            }
+        }
+        long bytes = threads.getThreadAllocatedBytes(id) - start;
+        for (MouseListener l : mouseListeners) {
+            l.mouseReleased(release);
+        }
+        return bytes;
+    }
+
+    private MouseEvent event(int id, int x, int y) {
+        return new MouseEvent(component, id, System.currentTimeMillis(),
+                InputEvent.BUTTON1_DOWN_MASK, x, y, 1, false,
+                MouseEvent.BUTTON1);
+    }
+}
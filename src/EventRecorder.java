@@ -0,0 +1,69 @@
+/**
+ * Records what the program does as Java Flight Recorder events, so a
+ * recording shows the input latency of each tool and the settings that
+ * were changed next to the rest of the JVM's activity. Start the program
+ * with -XX:StartFlightRecording to make a recording.
+ *
+ * The flight recorder implementation is in its own source root and needs
+ * Java 11 or later. When it was not compiled or cannot run, the events are
+ * dropped.
+ */
+public abstract class EventRecorder {
+
+    //the class of the flight recorder implementation, in its own source root
+    private static final String JFR_CLASS = "JfrEventRecorder";
+    private static final EventRecorder RECORDER = load();
+
+    protected EventRecorder() {
+    }
+
+    /**
+     * Records how long an input event took to reach the canvas and the
+     * screen
+     *
+     * @param tool the name of the tool the event was for
+     * @param toRaster nanoseconds from the event to its pixels being drawn
+     * on the canvas, or -1 if it drew nothing on the canvas
+     * @param toScreen nanoseconds from the event to its pixels being painted
+     */
+    public abstract void latency(String tool, long toRaster, long toScreen);
+
+    /**
+     * Records a changed setting
+     *
+     * @param name the name of the setting
+     * @param value its new value
+     */
+    public abstract void setting(String name, String value);
+
+    /**
+     * @return the recorder, which drops the events if the flight recorder
+     * is not available
+     */
+    public static EventRecorder get() {
+        return RECORDER;
+    }
+
+    private static EventRecorder load() {
+        try {
+            return (EventRecorder) Class.forName(JFR_CLASS)
+                    .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError ex) {
+            return new None();
+        }
+    }
+
+    /**
+     * Drops the events
+     */
+    private static class None extends EventRecorder {
+
+        @Override
+        public void latency(String tool, long toRaster, long toScreen) {
+        }
+
+        @Override
+        public void setting(String name, String value) {
+        }
+    }
+}
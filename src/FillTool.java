@@ -0,0 +1,25 @@
+import java.awt.Rectangle;
+
+/**
+ * The fill tool, which fills the area around the clicked point that is about
+ * the same color as it with the primary color.
+ */
+public class FillTool extends ToolAdapter {
+
+    @Override
+    public String getName() {
+        return PaintingComponent.TOOL_NAMES[PaintingComponent.FILL];
+    }
+
+    @Override
+    public void press(Context c, int x, int y) {
+        FloodFill floodFill = new FloodFill(c.getCanvas(),
+                c.getFillTolerance());
+        Rectangle bounds = floodFill.fill(x, y, c.getPrimaryColor().getRGB());
+        if (bounds != null) {
+            c.markChanged(bounds);
+            int[] runs = floodFill.getRuns();
+            c.addOperation(PaintingComponent.FILL, runs, runs.length);
+        }
+    }
+}
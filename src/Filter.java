@@ -0,0 +1,330 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An image filter. A point filter changes each pixel on its own. A kernel
+ * filter reads the pixels within its radius of each pixel, so the tiles it
+ * reads need a border of neighbouring pixels that wide.
+ *
+ * Pixels are packed ints in the format of the canvas tiles; every filter
+ * leaves the top byte (alpha) alone apart from blurring it.
+ */
+public abstract class Filter {
+
+    //The kinds of filter, used to store filters in documents
+    private static final int GRAYSCALE_KIND = 0;
+    private static final int INVERT_KIND = 1;
+    private static final int BLUR_KIND = 2;
+    private static final int SHARPEN_KIND = 3;
+    //the largest blur radius, so a tile only needs its neighbours
+    public static final int MAX_RADIUS = TiledCanvas.TILE_SIZE;
+    public static final Filter GRAYSCALE = new Grayscale();
+    public static final Filter INVERT = new Invert();
+    public static final Filter SHARPEN = new Sharpen();
+    private final int kind, parameter;
+
+    private Filter(int kind, int parameter) {
+        this.kind = kind;
+        this.parameter = parameter;
+    }
+
+    /**
+     * Creates a Gaussian blur
+     *
+     * @param radius how far the blur reaches, from 1 to MAX_RADIUS
+     * @return the filter
+     */
+    public static Filter blur(int radius) {
+        return new GaussianBlur(Math.max(1, Math.min(MAX_RADIUS, radius)));
+    }
+
+    /**
+     * @param scale how much larger the image is than the one the filter was
+     * made for
+     * @return the filter for the scaled image
+     */
+    public Filter scale(double scale) {
+        return this;
+    }
+
+    /**
+     * Parses a list of filters such as "grayscale, blur 4, sharpen". The
+     * filters are separated by commas or spaces, and a blur is followed by
+     * its radius.
+     *
+     * @param s the list
+     * @return the filters
+     * @throws IllegalArgumentException if a filter is not known
+     */
+    public static Filter[] parse(String s) {
+        List<Filter> filters = new ArrayList<Filter>();
+        String[] words = s.trim().toLowerCase().split("[\\s,]+");
+        for (int i = 0; i < words.length; i++) {
+            if (words[i].equals("grayscale") || words[i].equals("greyscale")) {
+                filters.add(GRAYSCALE);
+            } else if (words[i].equals("invert")) {
+                filters.add(INVERT);
+            } else if (words[i].equals("sharpen")) {
+                filters.add(SHARPEN);
+            } else if (words[i].equals("blur") && i + 1 < words.length) {
+                filters.add(blur(Integer.parseInt(words[++i])));
+            } else if (!words[i].isEmpty()) {
+                throw new IllegalArgumentException("Unknown filter: "
+                        + words[i]);
+            }
+        }
+        return filters.toArray(new Filter[filters.size()]);
+    }
+
+    /**
+     * Stores filters as ints, two per filter
+     *
+     * @param filters the filters
+     * @return the ints
+     */
+    public static int[] encode(Filter[] filters) {
+        int[] codes = new int[filters.length * 2];
+        for (int i = 0; i < filters.length; i++) {
+            codes[i * 2] = filters[i].kind;
+            codes[i * 2 + 1] = filters[i].parameter;
+        }
+        return codes;
+    }
+
+    /**
+     * Reads filters stored by encode
+     *
+     * @param codes the ints
+     * @param start the index of the first int
+     * @param end the index after the last int
+     * @return the filters
+     */
+    public static Filter[] decode(int[] codes, int start, int end) {
+        Filter[] filters = new Filter[(end - start) / 2];
+        for (int i = 0; i < filters.length; i++) {
+            int parameter = codes[start + i * 2 + 1];
+            switch (codes[start + i * 2]) {
+                case GRAYSCALE_KIND:
+                    filters[i] = GRAYSCALE;
+                    break;
+                case INVERT_KIND:
+                    filters[i] = INVERT;
+                    break;
+                case BLUR_KIND:
+                    filters[i] = blur(parameter);
+                    break;
+                default:
+                    filters[i] = SHARPEN;
+            }
+        }
+        return filters;
+    }
+
+    /**
+     * A filter that changes each pixel on its own
+     */
+    public abstract static class Point extends Filter {
+
+        private Point(int kind, int parameter) {
+            super(kind, parameter);
+        }
+
+        /**
+         * Filters one pixel
+         *
+         * @param pixel the pixel
+         * @return the filtered pixel
+         */
+        public abstract int filter(int pixel);
+    }
+
+    /**
+     * A filter that reads the pixels around each pixel
+     */
+    public abstract static class Kernel extends Filter {
+
+        private Kernel(int kind, int parameter) {
+            super(kind, parameter);
+        }
+
+        /**
+         * @return how many pixels around a pixel the filter reads
+         */
+        public abstract int getRadius();
+
+        /**
+         * Filters a square of pixels
+         *
+         * @param in the square grown by the radius on every side, row by row
+         * @param out the filtered square, row by row
+         * @param size the width and height of the square
+         */
+        public abstract void filter(int[] in, int[] out, int size);
+    }
+
+    /**
+     * Replaces each pixel with its luminance
+     */
+    private static class Grayscale extends Point {
+
+        private Grayscale() {
+            super(GRAYSCALE_KIND, 0);
+        }
+
+        @Override
+        public int filter(int p) {
+            //0.299 red, 0.587 green and 0.114 blue, in 256ths
+            int y = (77 * (p >> 16 & 0xff) + 150 * (p >> 8 & 0xff)
+                    + 29 * (p & 0xff)) >> 8;
+            return p & 0xff000000 | y << 16 | y << 8 | y;
+        }
+    }
+
+    /**
+     * Inverts the color channels of each pixel
+     */
+    private static class Invert extends Point {
+
+        private Invert() {
+            super(INVERT_KIND, 0);
+        }
+
+        @Override
+        public int filter(int p) {
+            return p ^ 0x00ffffff;
+        }
+    }
+
+    /**
+     * A Gaussian blur, done as a horizontal pass followed by a vertical pass
+     * with the same one dimensional kernel. Each pixel costs 2 * (2r + 1)
+     * multiplications per channel rather than (2r + 1)^2.
+     */
+    private static class GaussianBlur extends Kernel {
+
+        private final int radius;
+        //the kernel in 65536ths, from -radius to radius
+        private final int[] weights;
+
+        private GaussianBlur(int radius) {
+            super(BLUR_KIND, radius);
+            this.radius = radius;
+            //Most of the curve lies within three standard deviations
+            double sigma = radius / 3.0;
+            double[] w = new double[radius * 2 + 1];
+            double sum = 0;
+            for (int i = -radius; i <= radius; i++) {
+                w[i + radius] = Math.exp(-i * i / (2 * sigma * sigma));
+                sum += w[i + radius];
+            }
+            weights = new int[w.length];
+            int total = 0;
+            for (int i = 0; i < w.length; i++) {
+                weights[i] = (int) Math.round(w[i] / sum * 65536);
+                total += weights[i];
+            }
+            //The weights must add up to exactly one
+            weights[radius] += 65536 - total;
+        }
+
+        @Override
+        public int getRadius() {
+            return radius;
+        }
+
+        @Override
+        public Filter scale(double scale) {
+            return blur((int) Math.round(radius * scale));
+        }
+
+        @Override
+        public void filter(int[] in, int[] out, int size) {
+            int inSize = size + 2 * radius;
+            //Each pixel is split into its channels once rather than once
+            //for every tap that reads it
+            int[][] channels = new int[4][inSize];
+            int[][] rows = new int[4][inSize * size];
+            //Blur the rows of the bordered square into size columns
+            for (int y = 0; y < inSize; y++) {
+                int row = y * inSize;
+                for (int x = 0; x < inSize; x++) {
+                    int p = in[row + x];
+                    channels[0][x] = p >>> 24;
+                    channels[1][x] = p >> 16 & 0xff;
+                    channels[2][x] = p >> 8 & 0xff;
+                    channels[3][x] = p & 0xff;
+                }
+                for (int c = 0; c < 4; c++) {
+                    blur(channels[c], 0, 1, rows[c], y * size, 1, size);
+                }
+            }
+            //Then blur the columns
+            int[][] blurred = new int[4][size];
+            for (int x = 0; x < size; x++) {
+                for (int c = 0; c < 4; c++) {
+                    blur(rows[c], x, size, blurred[c], 0, 1, size);
+                }
+                for (int y = 0; y < size; y++) {
+                    out[y * size + x] = blurred[0][y] << 24
+                            | blurred[1][y] << 16 | blurred[2][y] << 8
+                            | blurred[3][y];
+                }
+            }
+        }
+
+        //Blurs count values of one channel, stepping through the input and
+        //output by the given amounts, and rounds the results
+        private void blur(int[] in, int inStart, int inStep, int[] out,
+                int outStart, int outStep, int count) {
+            int taps = weights.length;
+            for (int i = 0; i < count; i++) {
+                int sum = 32768;
+                int j = inStart + i * inStep;
+                for (int k = 0; k < taps; k++, j += inStep) {
+                    sum += in[j] * weights[k];
+                }
+                out[outStart + i * outStep] = sum >> 16;
+            }
+        }
+    }
+
+    /**
+     * Sharpens with the kernel 5 at the center and -1 at the four sides
+     */
+    private static class Sharpen extends Kernel {
+
+        private Sharpen() {
+            super(SHARPEN_KIND, 0);
+        }
+
+        @Override
+        public int getRadius() {
+            return 1;
+        }
+
+        @Override
+        public void filter(int[] in, int[] out, int size) {
+            int inSize = size + 2;
+            for (int y = 0; y < size; y++) {
+                int i = (y + 1) * inSize + 1;
+                for (int x = 0; x < size; x++, i++) {
+                    int c = in[i];
+                    int n = in[i - inSize], s = in[i + inSize];
+                    int w = in[i - 1], e = in[i + 1];
+                    out[y * size + x] = c & 0xff000000
+                            | sharpen(c, n, s, w, e, 16) << 16
+                            | sharpen(c, n, s, w, e, 8) << 8
+                            | sharpen(c, n, s, w, e, 0);
+                }
+            }
+        }
+
+        private static int sharpen(int c, int n, int s, int w, int e,
+                int shift) {
+            int v = 5 * (c >> shift & 0xff) - (n >> shift & 0xff)
+                    - (s >> shift & 0xff) - (w >> shift & 0xff)
+                    - (e >> shift & 0xff);
+            return v < 0 ? 0 : v > 255 ? 255 : v;
+        }
+    }
+}
@@ -0,0 +1,222 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs filters over a canvas one tile at a time, with the tiles spread over
+ * the cores. A kernel filter reads a border of pixels around each tile, its
+ * halo, which is taken from the neighbouring tiles as they were before the
+ * pass, so the tiles can be filtered in any order.
+ *
+ * Filters are grouped into as few passes as possible. Point filters need no
+ * neighbours, so the ones before a kernel filter are applied as the tile and
+ * its halo are read and the ones after it as the tile is written. A pass only
+ * ends when a second kernel filter needs the result of the first.
+ *
+ * On a canvas with alpha, a kernel filter works on premultiplied pixels, so
+ * transparent pixels around a stroke do not darken its edges.
+ */
+public class FilterEngine {
+
+    private static final int SIZE = TiledCanvas.TILE_SIZE;
+    private static final int TILE_SHIFT = Integer.numberOfTrailingZeros(SIZE);
+    private static final int TILE_MASK = SIZE - 1;
+
+    private FilterEngine() {
+    }
+
+    /**
+     * One pass over the canvas: at most one kernel filter, with the point
+     * filters before and after it
+     */
+    private static class Pass {
+
+        private final List<Filter.Point> before
+                = new ArrayList<Filter.Point>();
+        private Filter.Kernel kernel;
+        private final List<Filter.Point> after
+                = new ArrayList<Filter.Point>();
+    }
+
+    /**
+     * Applies filters to a canvas, in order
+     *
+     * @param canvas the canvas
+     * @param filters the filters
+     */
+    public static void apply(TiledCanvas canvas, Filter... filters) {
+        List<Pass> passes = new ArrayList<Pass>();
+        Pass pass = new Pass();
+        passes.add(pass);
+        for (Filter f : filters) {
+            if (f instanceof Filter.Point) {
+                (pass.kernel == null ? pass.before : pass.after).add(
+                        (Filter.Point) f);
+            } else {
+                if (pass.kernel != null) {
+                    pass = new Pass();
+                    passes.add(pass);
+                }
+                pass.kernel = (Filter.Kernel) f;
+            }
+        }
+        for (Pass p : passes) {
+            run(canvas, p);
+        }
+    }
+
+    //Runs one pass over every tile
+    private static void run(final TiledCanvas canvas, Pass pass) {
+        final Filter.Point[] before
+                = pass.before.toArray(new Filter.Point[0]);
+        final Filter.Kernel kernel = pass.kernel;
+        final Filter.Point[] after = pass.after.toArray(new Filter.Point[0]);
+        final int columns = canvas.getColumns();
+        final int rows = canvas.getRows();
+        final int width = canvas.getWidth();
+        final int height = canvas.getHeight();
+
+        //A filter of a blank area is blank, so tiles that were never drawn
+        //on and have no drawn neighbours become one color
+        final int background = canvas.getBackgroundPixel();
+        final int blank = filter(background, before);
+        final int filteredBlank = filter(blank, after);
+        //Transparent pixels look the same whatever their color
+        final boolean blankUnchanged = filteredBlank == background
+                || (canvas.hasAlpha() && (filteredBlank | background) >>> 24
+                == 0);
+        final boolean premultiply = canvas.hasAlpha() && kernel != null;
+        final int[] filledTile = new int[SIZE * SIZE];
+        Arrays.fill(filledTile, filteredBlank);
+
+        //Every tile is read before any is written, so each halo comes from
+        //the canvas as it was before the pass
+        final int[][] source = new int[columns * rows][];
+        canvas.forEachTile(new TiledCanvas.TileWork() {
+            @Override
+            public void compute(int index) {
+                if (!canvas.isBlank(index)) {
+                    int[] pixels = canvas.getTilePixels(index);
+                    for (Filter.Point f : before) {
+                        for (int i = 0; i < pixels.length; i++) {
+                            pixels[i] = f.filter(pixels[i]);
+                        }
+                    }
+                    if (premultiply) {
+                        for (int i = 0; i < pixels.length; i++) {
+                            pixels[i] = premultiply(pixels[i]);
+                        }
+                    }
+                    source[index] = pixels;
+                }
+            }
+        });
+
+        final int radius = kernel != null ? kernel.getRadius() : 0;
+        canvas.forEachTile(new TiledCanvas.TileWork() {
+            @Override
+            public void compute(int index) {
+                int col = index % columns, row = index / columns;
+                if (!needsFiltering(source, columns, rows, col, row,
+                        radius > 0)) {
+                    if (!blankUnchanged) {
+                        canvas.setTilePixels(index, filledTile);
+                    }
+                    return;
+                }
+                int[] pixels;
+                if (kernel == null) {
+                    pixels = source[index];
+                } else {
+                    int inSize = SIZE + 2 * radius;
+                    int[] in = new int[inSize * inSize];
+                    readHalo(source, columns, width, height,
+                            premultiply ? premultiply(blank) : blank,
+                            col * SIZE - radius, row * SIZE - radius,
+                            inSize, in);
+                    pixels = new int[SIZE * SIZE];
+                    kernel.filter(in, pixels, SIZE);
+                    if (premultiply) {
+                        for (int i = 0; i < pixels.length; i++) {
+                            pixels[i] = unpremultiply(pixels[i]);
+                        }
+                    }
+                }
+                for (Filter.Point f : after) {
+                    for (int i = 0; i < pixels.length; i++) {
+                        pixels[i] = f.filter(pixels[i]);
+                    }
+                }
+                canvas.setTilePixels(index, pixels);
+            }
+        });
+    }
+
+    //Whether a tile or, for a kernel filter, one of its neighbours was
+    //drawn on
+    private static boolean needsFiltering(int[][] source, int columns,
+            int rows, int col, int row, boolean neighbours) {
+        int reach = neighbours ? 1 : 0;
+        for (int r = Math.max(0, row - reach);
+                r <= Math.min(rows - 1, row + reach); r++) {
+            for (int c = Math.max(0, col - reach);
+                    c <= Math.min(columns - 1, col + reach); c++) {
+                if (source[r * columns + c] != null) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    //Copies a square of the canvas into an array. Pixels past the edges of
+    //the canvas repeat the nearest edge pixel.
+    private static void readHalo(int[][] source, int columns, int width,
+            int height, int blank, int left, int top, int size, int[] out) {
+        for (int y = 0; y < size; y++) {
+            int cy = Math.max(0, Math.min(height - 1, top + y));
+            int tileRow = (cy >> TILE_SHIFT) * columns;
+            int rowStart = (cy & TILE_MASK) << TILE_SHIFT;
+            int o = y * size;
+            for (int x = 0; x < size; x++) {
+                int cx = Math.max(0, Math.min(width - 1, left + x));
+                int[] tile = source[tileRow + (cx >> TILE_SHIFT)];
+                out[o + x] = tile == null ? blank
+                        : tile[rowStart | (cx & TILE_MASK)];
+            }
+        }
+    }
+
+    //Multiplies the color channels of a pixel by its alpha
+    private static int premultiply(int p) {
+        int a = p >>> 24;
+        if (a == 255) {
+            return p;
+        }
+        return p & 0xff000000
+                | Compositor.mul255(p >> 16 & 0xff, a) << 16
+                | Compositor.mul255(p >> 8 & 0xff, a) << 8
+                | Compositor.mul255(p & 0xff, a);
+    }
+
+    //Divides the color channels of a premultiplied pixel by its alpha
+    private static int unpremultiply(int p) {
+        int a = p >>> 24;
+        if (a == 255 || a == 0) {
+            return a == 0 ? 0 : p;
+        }
+        int half = a / 2;
+        return p & 0xff000000
+                | Math.min(255, ((p >> 16 & 0xff) * 255 + half) / a) << 16
+                | Math.min(255, ((p >> 8 & 0xff) * 255 + half) / a) << 8
+                | Math.min(255, ((p & 0xff) * 255 + half) / a);
+    }
+
+    //Applies point filters to a pixel
+    private static int filter(int pixel, Filter.Point[] filters) {
+        for (Filter.Point f : filters) {
+            pixel = f.filter(pixel);
+        }
+        return pixel;
+    }
+}
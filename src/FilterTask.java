@@ -0,0 +1,120 @@
+import java.awt.Rectangle;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import javax.swing.SwingUtilities;
+
+/**
+ * Runs filters over a copy of a canvas on a background thread, so a slow
+ * filter of a large canvas does not hold up the event dispatch thread. The
+ * copy shares the tiles of the canvas until the filters write them. Every
+ * listener method is called on the event dispatch thread.
+ */
+public class FilterTask implements Runnable {
+
+    private static final ExecutorService EXECUTOR
+            = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Filter");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+    private final TiledCanvas canvas;
+    private final Filter[] filters;
+    private final Listener listener;
+    private volatile boolean canceled = false;
+
+    /**
+     * Receives the filtered canvas
+     */
+    public interface Listener {
+
+        /**
+         * @param filtered the copy of the canvas with the filters applied
+         */
+        void filtersApplied(TiledCanvas filtered);
+
+        void filtersFailed(RuntimeException ex);
+    }
+
+    /**
+     * Creates a task that has not been started. The canvas is copied at once,
+     * so it may change while the filters run.
+     *
+     * @param canvas the canvas to filter a copy of
+     * @param store the store for the tiles of the copy, or null for the heap
+     * @param filters the filters, in order
+     * @param listener the listener that receives the filtered copy
+     */
+    public FilterTask(TiledCanvas canvas, MappedTileStore store,
+            Filter[] filters, Listener listener) {
+        this.canvas = new TiledCanvas(canvas.getWidth(), canvas.getHeight(),
+                canvas.getImageType(), canvas.getBackground(), store);
+        this.canvas.copy(canvas, new Rectangle(canvas.getWidth(),
+                canvas.getHeight()));
+        this.filters = filters.clone();
+        this.listener = listener;
+    }
+
+    /**
+     * Starts filtering in the background
+     */
+    public void start() {
+        EXECUTOR.execute(this);
+    }
+
+    /**
+     * Stops filtering. The listener is not called again.
+     */
+    public void cancel() {
+        canceled = true;
+    }
+
+    @Override
+    public void run() {
+        if (canceled) {
+            return;
+        }
+        try {
+            FilterEngine.apply(canvas, filters);
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.filtersApplied(canvas);
+                }
+            });
+        } catch (RuntimeException ex) {
+            fail(ex);
+        } catch (OutOfMemoryError ex) {
+            //The copies of the tiles of a large canvas may not fit in memory
+            fail(new IllegalStateException(
+                    "Not enough memory to apply the filters", ex));
+        }
+    }
+
+    //Reports a failure on the event dispatch thread
+    private void fail(final RuntimeException ex) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                listener.filtersFailed(ex);
+            }
+        });
+    }
+
+    //Runs a listener call on the event dispatch thread unless canceled
+    private void post(final Runnable r) {
+        if (!canceled) {
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    if (!canceled) {
+                        r.run();
+                    }
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,187 @@
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+/**
+ * Fills the area around a point that has the same color as the point, using
+ * a scanline flood fill. Each run of matching pixels in a row is filled at
+ * once and the rows above and below it are searched for more runs, which are
+ * kept on a stack of primitive ints.
+ *
+ * The fill works on the packed int pixels of the canvas tiles. A tile is only
+ * read when the fill reaches it, and only the tiles that were filled are
+ * written back, so the memory used depends on the size of the filled area
+ * rather than the size of the canvas.
+ */
+public class FloodFill {
+
+    private static final int SIZE = TiledCanvas.TILE_SIZE;
+    private static final int TILE_SHIFT = Integer.numberOfTrailingZeros(SIZE);
+    private static final int TILE_MASK = SIZE - 1;
+    private final TiledCanvas canvas;
+    private final int width, height, columns;
+    private final int tolerance;
+    //the bits of a pixel that hold its color
+    private final int colorMask;
+    //the pixels of each tile the fill reached, and which of them were filled
+    private final int[][] pixels;
+    private final long[][] filled;
+    private final boolean[] changed;
+    private int[] stack = new int[64];
+    private int stackSize = 0;
+    //the first and last pixel of each filled run, as x, y pairs
+    private int[] runs = new int[64];
+    private int runLength = 0;
+    private int target, replacement;
+    private int minX, minY, maxX, maxY;
+
+    /**
+     * Prepares a fill on a canvas
+     *
+     * @param canvas the canvas
+     * @param tolerance how much each color channel may differ from the color
+     * of the starting point for a pixel to be filled, from 0 to 255
+     */
+    public FloodFill(TiledCanvas canvas, int tolerance) {
+        this.canvas = canvas;
+        this.tolerance = tolerance;
+        width = canvas.getWidth();
+        height = canvas.getHeight();
+        columns = canvas.getColumns();
+        colorMask = canvas.hasAlpha() ? 0xffffffff : 0x00ffffff;
+        int tiles = columns * canvas.getRows();
+        pixels = new int[tiles][];
+        filled = new long[tiles][];
+        changed = new boolean[tiles];
+    }
+
+    /**
+     * Fills the area around a point
+     *
+     * @param x the x coordinate of the point
+     * @param y the y coordinate of the point
+     * @param argb the color to fill with
+     * @return the bounds of the filled area, or null if the point is off the
+     * canvas
+     */
+    public Rectangle fill(int x, int y, int argb) {
+        if (x < 0 || y < 0 || x >= width || y >= height) {
+            return null;
+        }
+        target = get(x, y) & colorMask;
+        replacement = canvas.toPixel(argb);
+        minX = maxX = x;
+        minY = maxY = y;
+        push(x, y);
+        while (stackSize > 0) {
+            stackSize -= 2;
+            fillRun(stack[stackSize], stack[stackSize + 1]);
+        }
+        canvas.setTiles(pixels, changed);
+        return new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
+    }
+
+    /**
+     * @return the first and last pixel of each run of pixels filled so far,
+     * as x, y pairs
+     */
+    public int[] getRuns() {
+        return Arrays.copyOf(runs, runLength);
+    }
+
+    //Fills the run of matching pixels through a point, then looks for runs
+    //in the rows above and below it
+    private void fillRun(int x, int y) {
+        if (!matches(x, y)) {
+            return;
+        }
+        int left = x;
+        while (left > 0 && matches(left - 1, y)) {
+            left--;
+        }
+        int right = x;
+        while (right < width - 1 && matches(right + 1, y)) {
+            right++;
+        }
+        for (int i = left; i <= right; i++) {
+            set(i, y);
+        }
+        if (runLength + 4 > runs.length) {
+            runs = Arrays.copyOf(runs, runs.length * 2);
+        }
+        runs[runLength++] = left;
+        runs[runLength++] = y;
+        runs[runLength++] = right;
+        runs[runLength++] = y;
+        minX = Math.min(minX, left);
+        maxX = Math.max(maxX, right);
+        minY = Math.min(minY, y);
+        maxY = Math.max(maxY, y);
+        if (y > 0) {
+            pushRuns(left, right, y - 1);
+        }
+        if (y < height - 1) {
+            pushRuns(left, right, y + 1);
+        }
+    }
+
+    //Pushes the start of each run of matching pixels in part of a row
+    private void pushRuns(int left, int right, int y) {
+        boolean inRun = false;
+        for (int i = left; i <= right; i++) {
+            if (matches(i, y)) {
+                if (!inRun) {
+                    push(i, y);
+                    inRun = true;
+                }
+            } else {
+                inRun = false;
+            }
+        }
+    }
+
+    private void push(int x, int y) {
+        if (stackSize == stack.length) {
+            stack = Arrays.copyOf(stack, stackSize * 2);
+        }
+        stack[stackSize++] = x;
+        stack[stackSize++] = y;
+    }
+
+    //Whether a pixel is not filled yet and close enough to the target color
+    private boolean matches(int x, int y) {
+        int tile = (y >> TILE_SHIFT) * columns + (x >> TILE_SHIFT);
+        int i = (y & TILE_MASK) << TILE_SHIFT | (x & TILE_MASK);
+        long[] done = filled[tile];
+        if (done != null && (done[i >> 6] & 1L << i) != 0) {
+            return false;
+        }
+        int p = get(x, y) & colorMask;
+        if (tolerance == 0) {
+            return p == target;
+        }
+        return Math.abs((p >>> 24) - (target >>> 24)) <= tolerance
+                && Math.abs((p >> 16 & 0xff) - (target >> 16 & 0xff)) <= tolerance
+                && Math.abs((p >> 8 & 0xff) - (target >> 8 & 0xff)) <= tolerance
+                && Math.abs((p & 0xff) - (target & 0xff)) <= tolerance;
+    }
+
+    private int get(int x, int y) {
+        int tile = (y >> TILE_SHIFT) * columns + (x >> TILE_SHIFT);
+        int[] data = pixels[tile];
+        if (data == null) {
+            data = canvas.getTilePixels(tile);
+            pixels[tile] = data;
+            filled[tile] = new long[SIZE * SIZE / 64];
+        }
+        return data[(y & TILE_MASK) << TILE_SHIFT | (x & TILE_MASK)];
+    }
+
+    //Fills a pixel whose tile has already been read by get
+    private void set(int x, int y) {
+        int tile = (y >> TILE_SHIFT) * columns + (x >> TILE_SHIFT);
+        int i = (y & TILE_MASK) << TILE_SHIFT | (x & TILE_MASK);
+        pixels[tile][i] = replacement;
+        filled[tile][i >> 6] |= 1L << i;
+        changed[tile] = true;
+    }
+}
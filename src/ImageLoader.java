@@ -0,0 +1,263 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.event.IIOReadUpdateListener;
+import javax.imageio.stream.ImageInputStream;
+import javax.swing.SwingUtilities;
+
+/**
+ * Reads an image file on a background thread. A subsampled preview of a
+ * large image is read first, then the full image is handed over in bands of
+ * rows as they are decoded. Every listener method is called on the event
+ * dispatch thread.
+ */
+public class ImageLoader implements Runnable {
+
+    //Images larger than this in either dimension get a subsampled preview
+    private static final int PREVIEW_SIZE = 512;
+    //The number of decoded rows handed over at a time
+    private static final int BAND_HEIGHT = TiledCanvas.TILE_SIZE;
+    private static final ExecutorService EXECUTOR
+            = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Image loader");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+    private final ImageInputStream input;
+    private final ImageReader reader;
+    private final Listener listener;
+    private volatile boolean canceled = false;
+    //the rows of the full image that have been decoded and handed over
+    private int decodedRows, loadedRows;
+
+    /**
+     * Receives the pieces of the image as they are read
+     */
+    public interface Listener {
+
+        /**
+         * Called once the size of the image is known
+         *
+         * @param preview a subsampled copy of the image, or null if the image
+         * is small enough not to need one
+         * @param width the width of the full image
+         * @param height the height of the full image
+         */
+        void previewLoaded(BufferedImage preview, int width, int height);
+
+        /**
+         * Called when a band of rows of the full image has been decoded
+         *
+         * @param band the rows
+         * @param y the y coordinate of the first row
+         */
+        void bandLoaded(BufferedImage band, int y);
+
+        /**
+         * Called when the whole image has been decoded and handed over
+         *
+         * @param image the full image
+         */
+        void loadFinished(BufferedImage image);
+
+        void loadFailed(IOException ex);
+    }
+
+    private ImageLoader(ImageInputStream input, ImageReader reader,
+            Listener listener) {
+        this.input = input;
+        this.reader = reader;
+        this.listener = listener;
+    }
+
+    /**
+     * Opens an image file for loading
+     *
+     * @param file the file
+     * @param listener the listener that receives the image
+     * @return a loader that has not been started
+     * @throws IOException if the file cannot be read or is not an image
+     */
+    public static ImageLoader open(File file, Listener listener)
+            throws IOException {
+        ImageInputStream input = ImageIO.createImageInputStream(file);
+        if (input == null) {
+            throw new IOException("Cannot read " + file);
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+        if (!readers.hasNext()) {
+            input.close();
+            throw new IOException("Unsupported image format: " + file);
+        }
+        ImageReader reader = readers.next();
+        reader.setInput(input, false, true);
+        return new ImageLoader(input, reader, listener);
+    }
+
+    /**
+     * Starts reading the image in the background
+     */
+    public void start() {
+        EXECUTOR.execute(this);
+    }
+
+    /**
+     * Stops reading the image. The listener is not called again.
+     */
+    public void cancel() {
+        canceled = true;
+        reader.abort();
+    }
+
+    @Override
+    public void run() {
+        try {
+            final int width = reader.getWidth(0);
+            final int height = reader.getHeight(0);
+            int subsampling = Math.max(width, height) / PREVIEW_SIZE;
+            BufferedImage preview = null;
+            if (subsampling > 1) {
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                preview = reader.read(0, param);
+            }
+            final BufferedImage previewImage = preview;
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.previewLoaded(previewImage, width, height);
+                }
+            });
+
+            reader.addIIOReadUpdateListener(new BandListener());
+            final BufferedImage image = reader.read(0);
+            if (!canceled && loadedRows < height) {
+                loadBand(image, height);
+            }
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.loadFinished(image);
+                }
+            });
+        } catch (IOException ex) {
+            fail(ex);
+        } catch (RuntimeException ex) {
+            //Some readers throw these on malformed files
+            fail(new IOException("Cannot read the image", ex));
+        } finally {
+            reader.dispose();
+            try {
+                input.close();
+            } catch (IOException ex) {
+                //Nothing more can be done with the stream
+            }
+        }
+    }
+
+    //Reports that the image could not be read
+    private void fail(final IOException ex) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                listener.loadFailed(ex);
+            }
+        });
+    }
+
+    //Hands a copy of the decoded rows that have not been handed over yet to
+    //the listener. The rows are copied since a later pass of a progressive
+    //or interlaced image writes them again while the band is being drawn.
+    private void loadBand(BufferedImage image, int endRow) {
+        final int y = loadedRows;
+        BufferedImage rows = image.getSubimage(0, y, image.getWidth(),
+                endRow - y);
+        WritableRaster raster = rows.getRaster()
+                .createCompatibleWritableRaster();
+        rows.copyData(raster);
+        final BufferedImage band = new BufferedImage(image.getColorModel(),
+                raster, image.isAlphaPremultiplied(), null);
+        loadedRows = endRow;
+        post(new Runnable() {
+            @Override
+            public void run() {
+                listener.bandLoaded(band, y);
+            }
+        });
+    }
+
+    //Runs a listener call on the event dispatch thread unless canceled
+    private void post(final Runnable r) {
+        if (!canceled) {
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    if (!canceled) {
+                        r.run();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Keeps track of the rows decoded by the reader. Only contiguous rows from
+     * the top are handed over; each pass of a progressive image starts over,
+     * and interlaced passes are handed over when the whole image is read.
+     */
+    private class BandListener implements IIOReadUpdateListener {
+
+        @Override
+        public void passStarted(ImageReader source, BufferedImage theImage,
+                int pass, int minPass, int maxPass, int minX, int minY,
+                int periodX, int periodY, int[] bands) {
+            decodedRows = 0;
+            loadedRows = 0;
+        }
+
+        @Override
+        public void imageUpdate(ImageReader source, BufferedImage theImage,
+                int minX, int minY, int width, int height, int periodX,
+                int periodY, int[] bands) {
+            if (periodY == 1 && minY <= decodedRows) {
+                decodedRows = Math.max(decodedRows, minY + height);
+                if (decodedRows - loadedRows >= BAND_HEIGHT) {
+                    loadBand(theImage, decodedRows);
+                }
+            }
+        }
+
+        @Override
+        public void passComplete(ImageReader source, BufferedImage theImage) {
+        }
+
+        @Override
+        public void thumbnailPassStarted(ImageReader source,
+                BufferedImage theThumbnail, int pass, int minPass,
+                int maxPass, int minX, int minY, int periodX, int periodY,
+                int[] bands) {
+        }
+
+        @Override
+        public void thumbnailUpdate(ImageReader source,
+                BufferedImage theThumbnail, int minX, int minY, int width,
+                int height, int periodX, int periodY, int[] bands) {
+        }
+
+        @Override
+        public void thumbnailPassComplete(ImageReader source,
+                BufferedImage theThumbnail) {
+        }
+    }
+}
@@ -0,0 +1,223 @@
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.event.IIOWriteProgressListener;
+import javax.imageio.stream.ImageOutputStream;
+import javax.swing.SwingUtilities;
+
+/**
+ * Writes a snapshot of a canvas to a file on a background thread. The image
+ * is written to a temporary file next to the target, which is then renamed,
+ * so the target is never left half written. Every listener method is called
+ * on the event dispatch thread.
+ */
+public class ImageSaver implements Runnable {
+
+    private static final ExecutorService EXECUTOR
+            = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Image saver");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+    private final TiledCanvas.Snapshot snapshot;
+    private final File file;
+    private final String format;
+    private final float quality;
+    private final Listener listener;
+
+    /**
+     * Receives the progress of the save
+     */
+    public interface Listener {
+
+        /**
+         * @param percent how much of the image has been written, from 0 to
+         * 100
+         */
+        void saveProgress(int percent);
+
+        void saveFinished(File file);
+
+        void saveFailed(IOException ex);
+    }
+
+    /**
+     * Creates a saver that has not been started
+     *
+     * @param snapshot the snapshot to save
+     * @param file the file to write
+     * @param format the ImageIO format name, such as png, jpeg or bmp
+     * @param quality the compression quality, from 0 to 1. It is ignored by
+     * formats that cannot be compressed.
+     * @param listener the listener that receives the progress
+     */
+    public ImageSaver(TiledCanvas.Snapshot snapshot, File file, String format,
+            float quality, Listener listener) {
+        this.snapshot = snapshot;
+        this.file = file;
+        this.format = format;
+        this.quality = quality;
+        this.listener = listener;
+    }
+
+    /**
+     * Starts writing the image in the background
+     */
+    public void start() {
+        EXECUTOR.execute(this);
+    }
+
+    @Override
+    public void run() {
+        File temp = null;
+        try {
+            Iterator<ImageWriter> writers
+                    = ImageIO.getImageWritersByFormatName(format);
+            if (!writers.hasNext()) {
+                throw new IOException("Unsupported image format: " + format);
+            }
+            ImageWriter writer = writers.next();
+            BufferedImage image = TiledCanvas.toImage(snapshot);
+            //JPEG and BMP have no alpha channel
+            if (image.getColorModel().hasAlpha() && !format.equals("png")) {
+                image = withoutAlpha(image);
+            }
+
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (param.canWriteCompressed()) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                if (param.getCompressionType() == null) {
+                    param.setCompressionType(param.getCompressionTypes()[0]);
+                }
+                param.setCompressionQuality(quality);
+            }
+            writer.addIIOWriteProgressListener(new ProgressListener());
+
+            temp = File.createTempFile(file.getName(), ".tmp",
+                    file.getAbsoluteFile().getParentFile());
+            ImageOutputStream output = ImageIO.createImageOutputStream(temp);
+            try {
+                writer.setOutput(output);
+                writer.write(null, new IIOImage(image, null, null), param);
+            } finally {
+                writer.dispose();
+                output.close();
+            }
+            move(temp, file);
+            temp = null;
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    listener.saveFinished(file);
+                }
+            });
+        } catch (IOException ex) {
+            fail(ex);
+        } catch (RuntimeException ex) {
+            //Some writers throw these on images they cannot encode
+            fail(new IOException("Cannot write the image", ex));
+        } catch (OutOfMemoryError ex) {
+            //The image of a large canvas may not fit in memory
+            fail(new IOException("Not enough memory to save the image", ex));
+        } finally {
+            if (temp != null) {
+                temp.delete();
+            }
+        }
+    }
+
+    //Reports that the image could not be saved
+    private void fail(final IOException ex) {
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                listener.saveFailed(ex);
+            }
+        });
+    }
+
+    //Renames the temporary file to the target, atomically if possible
+    private static void move(File from, File to) throws IOException {
+        try {
+            Files.move(from.toPath(), to.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(from.toPath(), to.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    //Copies an image into an opaque RGB image
+    private static BufferedImage withoutAlpha(BufferedImage image) {
+        BufferedImage rgb = new BufferedImage(image.getWidth(),
+                image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = rgb.createGraphics();
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        return rgb;
+    }
+
+    /**
+     * Passes the progress of the writer on to the listener
+     */
+    private class ProgressListener implements IIOWriteProgressListener {
+
+        private int lastPercent = -1;
+
+        @Override
+        public void imageProgress(ImageWriter source, float percentageDone) {
+            final int percent = (int) percentageDone;
+            if (percent != lastPercent) {
+                lastPercent = percent;
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.saveProgress(percent);
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void imageStarted(ImageWriter source, int imageIndex) {
+        }
+
+        @Override
+        public void imageComplete(ImageWriter source) {
+        }
+
+        @Override
+        public void thumbnailStarted(ImageWriter source, int imageIndex,
+                int thumbnailIndex) {
+        }
+
+        @Override
+        public void thumbnailProgress(ImageWriter source,
+                float percentageDone) {
+        }
+
+        @Override
+        public void thumbnailComplete(ImageWriter source) {
+        }
+
+        @Override
+        public void writeAborted(ImageWriter source) {
+        }
+    }
+}
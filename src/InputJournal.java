@@ -0,0 +1,183 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Records the input that reaches a painting component, so that it can be
+ * replayed later by an InputReplayer to reproduce exactly what was drawn and
+ * how long it took.
+ *
+ * A journal starts with the magic number, the canvas size and the settings
+ * in use when it started. Each record after that is a type byte, the
+ * microseconds since the record before it and the value of the record.
+ * Times, settings and mouse movements are written as variable length
+ * integers, and mouse positions as the difference from the last position,
+ * so a drag costs about four bytes per event.
+ */
+public class InputJournal implements Closeable {
+
+    //"SPJ1"
+    public static final int MAGIC = 0x53504a31;
+    //The types of records: mouse events with a position
+    public static final byte PRESS = 0;
+    public static final byte DRAG = 1;
+    public static final byte RELEASE = 2;
+    //settings with a value
+    public static final byte TOOL = 3;
+    public static final byte PRIMARY_COLOR = 4;
+    public static final byte SECONDARY_COLOR = 5;
+    public static final byte THICKNESS = 6;
+    public static final byte FILL = 7;
+    public static final byte FILL_TOLERANCE = 8;
+    public static final byte ANTIALIAS = 9;
+    //actions without a value; a frame is when the buffered points of the
+    //pencil, eraser or line repeater were drawn
+    public static final byte CLEAR = 10;
+    public static final byte UNDO = 11;
+    public static final byte REDO = 12;
+    public static final byte FRAME = 13;
+    //the canvas was resized, with the new width and height as its value
+    public static final byte CANVAS_SIZE = 14;
+    //the zoom, as the bits of the float, since mouse positions are recorded
+    //where they were on the zoomed component
+    public static final byte ZOOM = 15;
+
+    private final DataOutputStream out;
+    private long lastTime = System.nanoTime();
+    private int lastX, lastY;
+
+    /**
+     * Creates a journal file and writes its header
+     *
+     * @param file the file
+     * @param width the width of the canvas
+     * @param height the height of the canvas
+     * @throws IOException if the file cannot be written
+     */
+    public InputJournal(File file, int width, int height) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file)));
+        out.writeInt(MAGIC);
+        out.writeInt(width);
+        out.writeInt(height);
+    }
+
+    /**
+     * Records a mouse event
+     *
+     * @param type PRESS, DRAG or RELEASE
+     * @param x the x coordinate of the mouse
+     * @param y the y coordinate of the mouse
+     * @throws IOException if the journal cannot be written
+     */
+    public void mouse(byte type, int x, int y) throws IOException {
+        begin(type);
+        writeVarInt(out, zigzag(x - lastX));
+        writeVarInt(out, zigzag(y - lastY));
+        lastX = x;
+        lastY = y;
+    }
+
+    /**
+     * Records a changed setting
+     *
+     * @param type the setting
+     * @param value the value; colors are in the default ARGB format,
+     * thicknesses and zooms are the bits of the float and flags are 1 or 0
+     * @throws IOException if the journal cannot be written
+     */
+    public void setting(byte type, int value) throws IOException {
+        begin(type);
+        writeVarInt(out, value);
+    }
+
+    /**
+     * Records a resize of the canvas
+     *
+     * @param width the new width
+     * @param height the new height
+     * @throws IOException if the journal cannot be written
+     */
+    public void canvasSize(int width, int height) throws IOException {
+        begin(CANVAS_SIZE);
+        writeVarInt(out, width);
+        writeVarInt(out, height);
+    }
+
+    /**
+     * Records an action
+     *
+     * @param type CLEAR, UNDO, REDO or FRAME
+     * @throws IOException if the journal cannot be written
+     */
+    public void action(byte type) throws IOException {
+        begin(type);
+    }
+
+    /**
+     * Writes what is buffered and closes the file
+     *
+     * @throws IOException if the journal cannot be written
+     */
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    //Writes the type of a record and the time since the last one
+    private void begin(byte type) throws IOException {
+        long now = System.nanoTime();
+        long micros = (now - lastTime) / 1000;
+        out.writeByte(type);
+        writeVarInt(out, (int) Math.min(Integer.MAX_VALUE, micros));
+        //The remainder is kept, so the times do not drift
+        lastTime = now - (now - lastTime) % 1000;
+    }
+
+    /**
+     * Writes an int in as few bytes as it needs, seven bits at a time
+     *
+     * @param out the stream
+     * @param v the int, which takes five bytes if it is negative
+     * @throws IOException if the stream cannot be written
+     */
+    static void writeVarInt(DataOutputStream out, int v) throws IOException {
+        while ((v & ~0x7f) != 0) {
+            out.writeByte((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte(v);
+    }
+
+    /**
+     * Reads an int written by writeVarInt
+     *
+     * @param in the stream
+     * @return the int
+     * @throws IOException if the stream cannot be read or ends
+     */
+    static int readVarInt(DataInputStream in) throws IOException {
+        int v = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("Bad variable length integer");
+    }
+
+    //Maps small negative and positive ints to small positive ones
+    static int zigzag(int v) {
+        return (v << 1) ^ (v >> 31);
+    }
+
+    static int unzigzag(int v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+}
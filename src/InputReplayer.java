@@ -0,0 +1,477 @@
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.event.InputEvent;
+import java.awt.event.MouseEvent;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import javax.swing.SwingUtilities;
+
+/**
+ * Replays a journal written by InputJournal into a painting component. The
+ * mouse events are dispatched to the component as new mouse events and the
+ * settings are set through its setters, one record at a time on the event
+ * dispatch thread. The points buffered by the pencil, eraser and line
+ * repeater are drawn at the frames recorded in the journal rather than by
+ * the frame timer, so the strokes are split into the same paths and the
+ * component draws exactly the same pixels as when the journal was recorded.
+ *
+ * The journal can be replayed in real time, waiting as long between records
+ * as the user did, or as fast as possible. Run from the command line, it
+ * replays a journal as fast as possible into a component that is not shown,
+ * painting a frame for every 16 ms of recorded time, and reports the
+ * throughput and the latency of each tool. This is a benchmark of the whole
+ * path from input to pixels with realistic input.
+ *
+ * Usage: java InputReplayer [--realtime] journal.spj
+ */
+public class InputReplayer implements Runnable {
+
+    private static final ExecutorService EXECUTOR
+            = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Input replayer");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+    //the recorded time a frame is painted for by the command line replay
+    private static final long FRAME_NANOS = 16000000L;
+    private final DataInputStream in;
+    private final int width, height;
+    private final PaintingComponent pc;
+    private final boolean realTime;
+    private final Listener listener;
+    private volatile boolean canceled = false;
+    private int lastX, lastY;
+    //the size of the last canvas resize read
+    private int canvasWidth, canvasHeight;
+
+    /**
+     * Receives the progress of the replay. Every method is called on the
+     * event dispatch thread.
+     */
+    public interface Listener {
+
+        /**
+         * Called after each record is replayed
+         *
+         * @param time the nanoseconds from the start of the journal to the
+         * record
+         */
+        void recordReplayed(long time);
+
+        /**
+         * @param records the number of records replayed
+         * @param nanos how long the replay took
+         */
+        void replayFinished(int records, long nanos);
+
+        void replayFailed(IOException ex);
+    }
+
+    /**
+     * Opens a journal for replaying
+     *
+     * @param file the journal
+     * @param pc the component to replay it into
+     * @param realTime whether to wait between records as long as when they
+     * were recorded, rather than replay them as fast as possible
+     * @param listener the listener that receives the progress
+     * @throws IOException if the file cannot be read or is not a journal
+     */
+    public InputReplayer(File file, PaintingComponent pc, boolean realTime,
+            Listener listener) throws IOException {
+        in = open(file);
+        try {
+            Dimension size = readHeader(in, file);
+            width = size.width;
+            height = size.height;
+        } catch (IOException ex) {
+            in.close();
+            throw ex;
+        }
+        this.pc = pc;
+        this.realTime = realTime;
+        this.listener = listener;
+    }
+
+    /**
+     * Reads the size of the canvas a journal was recorded on
+     *
+     * @param file the journal
+     * @return the size
+     * @throws IOException if the file cannot be read or is not a journal
+     */
+    public static Dimension readCanvasSize(File file) throws IOException {
+        DataInputStream in = open(file);
+        try {
+            return readHeader(in, file);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static DataInputStream open(File file) throws IOException {
+        return new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+    }
+
+    private static Dimension readHeader(DataInputStream in, File file)
+            throws IOException {
+        if (in.readInt() != InputJournal.MAGIC) {
+            throw new IOException("Not an input journal: " + file);
+        }
+        int width = in.readInt();
+        return new Dimension(width, in.readInt());
+    }
+
+    /**
+     * @return the width of the canvas the journal was recorded on
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return the height of the canvas the journal was recorded on
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Starts replaying the journal in the background
+     */
+    public void start() {
+        EXECUTOR.execute(this);
+    }
+
+    /**
+     * Stops replaying the journal. The listener is not called again.
+     */
+    public void cancel() {
+        canceled = true;
+    }
+
+    /**
+     * Replays the journal on the calling thread, which must not be the event
+     * dispatch thread
+     */
+    @Override
+    public void run() {
+        long start = System.nanoTime();
+        long time = 0;
+        int records = 0;
+        try {
+            setReplaying(true);
+            while (!canceled) {
+                final byte type;
+                try {
+                    type = in.readByte();
+                } catch (EOFException ex) {
+                    break;
+                }
+                time += InputJournal.readVarInt(in) * 1000L;
+                final int value = readValue(type);
+                if (realTime) {
+                    long wait = start + time - System.nanoTime();
+                    if (wait > 0) {
+                        Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                    }
+                }
+                final long recordTime = time;
+                SwingUtilities.invokeAndWait(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!canceled) {
+                            replay(type, value);
+                            listener.recordReplayed(recordTime);
+                        }
+                    }
+                });
+                records++;
+            }
+            final int count = records;
+            final long nanos = System.nanoTime() - start;
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.replayFinished(count, nanos);
+                }
+            });
+        } catch (final IOException ex) {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.replayFailed(ex);
+                }
+            });
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (InvocationTargetException ex) {
+            throw new IllegalStateException(ex.getCause());
+        } finally {
+            setReplaying(false);
+            try {
+                in.close();
+            } catch (IOException ex) {
+                //Nothing more can be done with the stream
+            }
+        }
+    }
+
+    //Makes the component leave drawing the buffered points to the journal
+    private void setReplaying(final boolean b) {
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                pc.setReplaying(b);
+            }
+        });
+    }
+
+    //Reads the value of a record, which is the packed position of a mouse
+    //event, or 0 if it has none
+    private int readValue(byte type) throws IOException {
+        switch (type) {
+            case InputJournal.PRESS:
+            case InputJournal.DRAG:
+            case InputJournal.RELEASE:
+                lastX += InputJournal.unzigzag(InputJournal.readVarInt(in));
+                lastY += InputJournal.unzigzag(InputJournal.readVarInt(in));
+                return 0;
+            case InputJournal.CANVAS_SIZE:
+                canvasWidth = InputJournal.readVarInt(in);
+                canvasHeight = InputJournal.readVarInt(in);
+                return 0;
+            case InputJournal.CLEAR:
+            case InputJournal.UNDO:
+            case InputJournal.REDO:
+            case InputJournal.FRAME:
+                return 0;
+            case InputJournal.TOOL:
+            case InputJournal.PRIMARY_COLOR:
+            case InputJournal.SECONDARY_COLOR:
+            case InputJournal.THICKNESS:
+            case InputJournal.FILL:
+            case InputJournal.FILL_TOLERANCE:
+            case InputJournal.ANTIALIAS:
+            case InputJournal.ZOOM:
+                return InputJournal.readVarInt(in);
+            default:
+                throw new IOException("Unknown record type " + type);
+        }
+    }
+
+    //Replays a record into the component. The mouse position is read on
+    //the replaying thread and used here, which invokeAndWait makes safe.
+    private void replay(byte type, int value) {
+        switch (type) {
+            case InputJournal.PRESS:
+                pc.dispatchEvent(mouseEvent(MouseEvent.MOUSE_PRESSED,
+                        InputEvent.BUTTON1_DOWN_MASK));
+                break;
+            case InputJournal.DRAG:
+                pc.dispatchEvent(mouseEvent(MouseEvent.MOUSE_DRAGGED,
+                        InputEvent.BUTTON1_DOWN_MASK));
+                break;
+            case InputJournal.RELEASE:
+                pc.dispatchEvent(mouseEvent(MouseEvent.MOUSE_RELEASED, 0));
+                break;
+            case InputJournal.TOOL:
+                pc.setDrawMode((byte) value);
+                break;
+            case InputJournal.PRIMARY_COLOR:
+                pc.setPrimaryColor(new Color(value, true));
+                break;
+            case InputJournal.SECONDARY_COLOR:
+                pc.setSecondaryColor(new Color(value, true));
+                break;
+            case InputJournal.THICKNESS:
+                pc.setLineThickness(Float.intBitsToFloat(value));
+                break;
+            case InputJournal.FILL:
+                pc.setFill(value != 0);
+                break;
+            case InputJournal.FILL_TOLERANCE:
+                pc.setFillTolerance(value);
+                break;
+            case InputJournal.ANTIALIAS:
+                pc.setAntiAliasing(value != 0);
+                break;
+            case InputJournal.CLEAR:
+                pc.clear();
+                break;
+            case InputJournal.UNDO:
+                pc.undo();
+                break;
+            case InputJournal.REDO:
+                pc.redo();
+                break;
+            case InputJournal.FRAME:
+                pc.drawBufferedPoints();
+                break;
+            case InputJournal.CANVAS_SIZE:
+                pc.setCanvasSize(canvasWidth, canvasHeight);
+                break;
+            case InputJournal.ZOOM:
+                pc.setZoom(Float.intBitsToFloat(value));
+                break;
+        }
+    }
+
+    private MouseEvent mouseEvent(int id, int modifiers) {
+        return new MouseEvent(pc, id, System.currentTimeMillis(), modifiers,
+                lastX, lastY, 1, false, MouseEvent.BUTTON1);
+    }
+
+    //Runs a listener call on the event dispatch thread unless canceled
+    private void post(final Runnable r) {
+        if (!canceled) {
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    if (!canceled) {
+                        r.run();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Replays a journal into a component that is not shown and reports how
+     * long it took
+     *
+     * @param args [--realtime] and the journal file
+     * @throws IOException if the journal cannot be read
+     */
+    public static void main(String[] args) throws IOException {
+        System.setProperty("java.awt.headless", "true");
+        boolean realTime = args.length > 1 && args[0].equals("--realtime");
+        if (args.length == 0) {
+            System.out.println("Usage: java InputReplayer [--realtime] "
+                    + "journal.spj");
+            return;
+        }
+        File file = new File(args[args.length - 1]);
+
+        //The component is created with the size of the journal's canvas
+        Dimension size = readCanvasSize(file);
+        final int width = size.width, height = size.height;
+        final PaintingComponent[] holder = new PaintingComponent[1];
+        try {
+            SwingUtilities.invokeAndWait(new Runnable() {
+                @Override
+                public void run() {
+                    holder[0] = new PaintingComponent(width, height);
+                    holder[0].setSize(width, height);
+                }
+            });
+        } catch (InterruptedException | InvocationTargetException ex) {
+            throw new IllegalStateException(ex);
+        }
+        PaintingComponent pc = holder[0];
+        Frames frames = new Frames(pc, new BufferedImage(Math.min(1920, width),
+                Math.min(1080, height), BufferedImage.TYPE_INT_RGB));
+
+        InputReplayer replayer = new InputReplayer(file, pc, realTime,
+                frames);
+        replayer.run();
+        synchronized (frames) {
+            while (frames.error == null && frames.records < 0) {
+                try {
+                    frames.wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+        if (frames.error != null) {
+            throw frames.error;
+        }
+        double seconds = frames.nanos / 1e9;
+        System.out.printf("%d records and %d frames in %.3f s: %.0f "
+                + "records/s, %.1f frames/s%n", frames.records,
+                frames.painted, seconds, frames.records / seconds,
+                frames.painted / seconds);
+        LatencyMonitor latency = pc.getLatencyMonitor();
+        for (int tool = 0; tool < latency.getToolCount(); tool++) {
+            LatencyHistogram h = latency.getHistogram(tool,
+                    LatencyMonitor.SCREEN);
+            if (h != null && h.getCount() > 0) {
+                System.out.printf("%-20s %6d frames  p50 %6.2f  p99 %6.2f  "
+                        + "max %6.2f ms%n", latency.getToolName(tool),
+                        h.getCount(), h.getPercentile(0.5) / 1e6,
+                        h.getPercentile(0.99) / 1e6, h.getMax() / 1e6);
+            }
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Paints the component into an image the size of a screen for every
+     * 16 ms of recorded time, as a window would, and keeps the totals of the
+     * replay for the command line
+     */
+    private static class Frames implements Listener {
+
+        private final PaintingComponent pc;
+        private final BufferedImage view;
+        private long lastFrame = 0;
+        private int painted = 0;
+        private int records = -1;
+        private long nanos;
+        private IOException error;
+
+        Frames(PaintingComponent pc, BufferedImage view) {
+            this.pc = pc;
+            this.view = view;
+        }
+
+        @Override
+        public void recordReplayed(long time) {
+            if (time - lastFrame >= FRAME_NANOS) {
+                paint();
+                lastFrame = time;
+            }
+        }
+
+        @Override
+        public void replayFinished(int records, long nanos) {
+            paint();
+            synchronized (this) {
+                this.records = records;
+                this.nanos = nanos;
+                notifyAll();
+            }
+        }
+
+        @Override
+        public synchronized void replayFailed(IOException ex) {
+            error = ex;
+            notifyAll();
+        }
+
+        private void paint() {
+            Graphics2D g = view.createGraphics();
+            g.setClip(new Rectangle(view.getWidth(), view.getHeight()));
+            pc.paint(g);
+            g.dispose();
+            painted++;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+import java.util.Arrays;
+
+/**
+ * Measures how long mouse input takes to show on the screen, for each tool.
+ *
+ * Each input event is timed from when its listener is called. The time until
+ * its pixels are drawn on the canvas and the time until they are painted on
+ * the screen are recorded in histograms for the tool, and as flight recorder
+ * events. When several events arrive before a frame is painted, as when the
+ * pencil buffers the points it is dragged through, the oldest one is timed,
+ * since it waited the longest.
+ *
+ * The stages are reported and the tools added on the event dispatch thread.
+ * The histograms may be read from any thread.
+ */
+public class LatencyMonitor {
+
+    //The stages an input event is timed to
+    public static final int RASTER = 0;
+    public static final int SCREEN = 1;
+    public static final String[] STAGE_NAMES = {"canvas", "screen"};
+    private static final long SECOND = 1000000000L;
+
+    //the names of the tools and their histograms by stage, by tool number;
+    //both are null for numbers that no tool has
+    private volatile String[] toolNames = new String[0];
+    private volatile LatencyHistogram[][] histograms
+            = new LatencyHistogram[0][];
+    //when the oldest input that is not on the screen yet arrived, and the
+    //time it took to reach the canvas, or -1
+    private long inputTime = -1;
+    private long rasterTime = -1;
+    private int inputTool;
+    //whether the input changed what is shown, so the next frame shows it
+    private boolean invalidated;
+    //the frames painted with input on them since the frame rate was last
+    //worked out, and when that was
+    private int frames;
+    private long frameWindowStart;
+    private volatile double frameRate;
+
+    /**
+     * Creates empty histograms for a tool, replacing those of the tool that
+     * had its number
+     *
+     * @param tool the number of the tool
+     * @param name the name of the tool
+     */
+    public void addTool(int tool, String name) {
+        String[] names = Arrays.copyOf(toolNames,
+                Math.max(toolNames.length, tool + 1));
+        LatencyHistogram[][] h = Arrays.copyOf(histograms, names.length);
+        names[tool] = name;
+        h[tool] = new LatencyHistogram[STAGE_NAMES.length];
+        for (int i = 0; i < STAGE_NAMES.length; i++) {
+            h[tool][i] = new LatencyHistogram();
+        }
+        histograms = h;
+        toolNames = names;
+    }
+
+    /**
+     * @return one more than the highest tool number
+     */
+    public int getToolCount() {
+        return toolNames.length;
+    }
+
+    /**
+     * Reports that an input event arrived
+     *
+     * @param tool the tool the event is for
+     */
+    public void input(int tool) {
+        if (inputTime < 0) {
+            inputTime = System.nanoTime();
+            inputTool = tool;
+        }
+    }
+
+    /**
+     * Reports that the pixels of the input were drawn on the canvas
+     */
+    public void rasterized() {
+        if (inputTime >= 0 && rasterTime < 0) {
+            rasterTime = System.nanoTime() - inputTime;
+            histograms[inputTool][RASTER].record(rasterTime);
+        }
+    }
+
+    /**
+     * Reports that the input changed what is shown, so the next frame
+     * painted shows it. Frames painted before that, such as the frames of
+     * the latency overlay, do not count.
+     */
+    public void invalidated() {
+        if (inputTime >= 0) {
+            invalidated = true;
+        }
+    }
+
+    /**
+     * Reports that the input ended, as when the mouse is released. If it did
+     * not change what is shown, it is not timed, so it does not count
+     * against the input that comes after it.
+     */
+    public void ended() {
+        if (!invalidated) {
+            inputTime = -1;
+            rasterTime = -1;
+        }
+    }
+
+    /**
+     * Reports that a frame was painted, which shows the input that arrived
+     * before it if the input changed what is shown
+     */
+    public void presented() {
+        if (!invalidated) {
+            return;
+        }
+        long now = System.nanoTime();
+        long screenTime = now - inputTime;
+        histograms[inputTool][SCREEN].record(screenTime);
+        EventRecorder.get().latency(toolNames[inputTool], rasterTime,
+                screenTime);
+        inputTime = -1;
+        rasterTime = -1;
+        invalidated = false;
+
+        //The frame rate is worked out about once a second, and a pause
+        //in the input starts it over
+        if (now - frameWindowStart > 2 * SECOND) {
+            frameWindowStart = now;
+            frames = 0;
+        }
+        frames++;
+        if (now - frameWindowStart >= SECOND) {
+            frameRate = frames * (double) SECOND / (now - frameWindowStart);
+            frameWindowStart = now;
+            frames = 0;
+        }
+    }
+
+    /**
+     * @param tool a tool
+     * @param stage the stage the latencies were timed to, RASTER or SCREEN
+     * @return the latencies of the tool, or null if no tool has the number
+     */
+    public LatencyHistogram getHistogram(int tool, int stage) {
+        LatencyHistogram[] stages = histograms[tool];
+        return stages != null ? stages[stage] : null;
+    }
+
+    /**
+     * @param tool a tool
+     * @return the name of the tool, or null if no tool has the number
+     */
+    public String getToolName(int tool) {
+        return toolNames[tool];
+    }
+
+    /**
+     * @return the frames painted with new input on them each second, over
+     * the last second of steady input
+     */
+    public double getFrameRate() {
+        return frameRate;
+    }
+
+    /**
+     * Forgets the recorded latencies and frame rate
+     */
+    public void reset() {
+        for (LatencyHistogram[] stages : histograms) {
+            if (stages != null) {
+                for (LatencyHistogram h : stages) {
+                    h.reset();
+                }
+            }
+        }
+        frameRate = 0;
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * One layer of a document. Every operation is drawn on a layer, and the
+ * layers are drawn over each other from the bottom up, each with its own
+ * visibility, opacity and blend mode.
+ *
+ * The bottom layer is the background layer. It starts filled with the
+ * background color, and the eraser paints that color on it. Every other
+ * layer starts transparent, and the eraser makes it transparent again.
+ */
+public class Layer {
+
+    //identifies the layer to the operations drawn on it, and never changes
+    private final int id;
+    private String name;
+    private boolean visible = true;
+    //how much of the layer shows, from 0 to 255
+    private int opacity = 255;
+    //how the layer is blended onto the layers below, a Compositor mode
+    private int mode = Compositor.SRC_OVER;
+
+    /**
+     * Creates a visible layer that is fully opaque and blended normally
+     *
+     * @param id the id of the layer, unique in its document
+     * @param name the name shown for the layer
+     */
+    public Layer(int id, String name) {
+        this.id = id;
+        this.name = name;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public boolean isVisible() {
+        return visible;
+    }
+
+    public void setVisible(boolean visible) {
+        this.visible = visible;
+    }
+
+    public int getOpacity() {
+        return opacity;
+    }
+
+    public void setOpacity(int opacity) {
+        this.opacity = Math.max(0, Math.min(255, opacity));
+    }
+
+    public int getMode() {
+        return mode;
+    }
+
+    public void setMode(int mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * @return whether the layer is the one at the bottom of every document
+     */
+    public boolean isBackground() {
+        return id == Document.BACKGROUND_LAYER;
+    }
+
+    /**
+     * @return whether the layer shows exactly as it was drawn, so it can be
+     * drawn straight onto a canvas without compositing
+     */
+    public boolean isPlain() {
+        return visible && opacity == 255 && mode == Compositor.SRC_OVER;
+    }
+}
@@ -0,0 +1,314 @@
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The canvases of the layers of a document, and the image of them blended
+ * together that is shown on the screen.
+ *
+ * The blended image is kept between repaints and only blended again where
+ * it is out of date. Painting on a layer only marks the painted region out
+ * of date, so the cost of a stroke depends on its size rather than on the
+ * size of the canvas.
+ *
+ * The layers below the active layer are blended into a cache of their own,
+ * which only changes when one of those layers does. A region of the image is
+ * brought up to date by copying it from the cache and blending the active
+ * layer and the layers above it on top, so painting on the top layer of a
+ * document with many layers costs the same as painting on a document with
+ * only one. Layers that are mostly empty cost little to blend, since tiles
+ * of a transparent layer that were never drawn on are skipped.
+ */
+public class LayerStack {
+
+    private final Document document;
+    private int width, height;
+    private final MappedTileStore store;
+    private final RenderingHints hints = new RenderingHints(null);
+    //the canvas of each layer, by the id of the layer
+    private final Map<Integer, TiledCanvas> canvases
+            = new HashMap<Integer, TiledCanvas>();
+    //the position of the layer the tools draw on
+    private int active = 0;
+    //the layers below the active one blended together, and all of them
+    private final TiledCanvas below, composite;
+    //the regions of the caches that are out of date
+    private final Rectangle belowDirty = new Rectangle();
+    private final Rectangle dirty = new Rectangle();
+    //the region of the blended image that update changed since it was last
+    //asked for, for copies of the image kept elsewhere
+    private final Rectangle changed = new Rectangle();
+
+    /**
+     * Creates blank canvases for the layers of a document
+     *
+     * @param document the document
+     * @param store where to keep the tile pixels, or null for the heap
+     */
+    public LayerStack(Document document, MappedTileStore store) {
+        this.document = document;
+        this.store = store;
+        width = document.getWidth();
+        height = document.getHeight();
+        Color background = new Color(document.getBackground(), true);
+        below = new TiledCanvas(width, height, BufferedImage.TYPE_INT_RGB,
+                background, store);
+        composite = new TiledCanvas(width, height, BufferedImage.TYPE_INT_RGB,
+                background, store);
+        for (int i = 0; i < document.getLayerCount(); i++) {
+            createCanvas(document.getLayer(i));
+        }
+    }
+
+    public Document getDocument() {
+        return document;
+    }
+
+    /**
+     * @return the position of the layer the tools draw on
+     */
+    public int getActiveIndex() {
+        return active;
+    }
+
+    /**
+     * @return the layer the tools draw on
+     */
+    public Layer getActive() {
+        return document.getLayer(active);
+    }
+
+    /**
+     * @return the canvas of the layer the tools draw on
+     */
+    public TiledCanvas getActiveCanvas() {
+        return getCanvas(getActive());
+    }
+
+    /**
+     * @param layer a layer of the document
+     * @return its canvas
+     */
+    public TiledCanvas getCanvas(Layer layer) {
+        return canvases.get(layer.getId());
+    }
+
+    /**
+     * Makes another layer the one the tools draw on. The layers below it are
+     * blended into the cache again the next time the image is brought up to
+     * date.
+     *
+     * @param index the position of the layer
+     */
+    public void setActive(int index) {
+        if (index != active) {
+            active = index;
+            belowDirty.setBounds(0, 0, width, height);
+        }
+    }
+
+    /**
+     * Adds a transparent layer above the active one and makes it active
+     *
+     * @param name the name of the layer
+     * @return the layer
+     */
+    public Layer addLayer(String name) {
+        Layer layer = document.addLayer(active + 1, name);
+        createCanvas(layer);
+        setActive(document.indexOfLayer(layer.getId()));
+        return layer;
+    }
+
+    /**
+     * Removes a layer other than the background. The layer below it becomes
+     * active if it was.
+     *
+     * @param index the position of the layer
+     */
+    public void removeLayer(int index) {
+        if (index <= 0 || index >= document.getLayerCount()) {
+            return;
+        }
+        canvases.remove(document.getLayer(index).getId());
+        document.removeLayer(index);
+        if (active >= index) {
+            active--;
+        }
+        invalidateAll();
+    }
+
+    /**
+     * Shows or hides a layer
+     *
+     * @param index the position of the layer
+     * @param visible whether to show it
+     */
+    public void setVisible(int index, boolean visible) {
+        document.getLayer(index).setVisible(visible);
+        changed(index);
+    }
+
+    /**
+     * @param index the position of a layer
+     * @param opacity how much of it shows, from 0 to 255
+     */
+    public void setOpacity(int index, int opacity) {
+        document.getLayer(index).setOpacity(opacity);
+        changed(index);
+    }
+
+    /**
+     * @param index the position of a layer
+     * @param mode how it is blended onto the layers below, a Compositor mode
+     */
+    public void setMode(int index, int mode) {
+        document.getLayer(index).setMode(mode);
+        changed(index);
+    }
+
+    /**
+     * Sets a rendering hint of every layer canvas
+     *
+     * @param key the hint key
+     * @param value the hint value
+     */
+    public void setRenderingHint(RenderingHints.Key key, Object value) {
+        hints.put(key, value);
+        for (TiledCanvas c : canvases.values()) {
+            c.setRenderingHint(key, value);
+        }
+    }
+
+    /**
+     * Marks a region of a layer canvas changed, so the image is blended
+     * again there. Canvases of layers that were removed are ignored.
+     *
+     * @param canvas the canvas of the layer
+     * @param r the region
+     */
+    public void invalidate(TiledCanvas canvas, Rectangle r) {
+        for (int i = 0; i < document.getLayerCount(); i++) {
+            if (getCanvas(document.getLayer(i)) == canvas) {
+                if (i < active) {
+                    add(belowDirty, r);
+                }
+                add(dirty, r);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Marks the whole image out of date
+     */
+    public void invalidateAll() {
+        belowDirty.setBounds(0, 0, width, height);
+        dirty.setBounds(0, 0, width, height);
+    }
+
+    /**
+     * Draws every layer again from the document, with the current rendering
+     * hints
+     */
+    public void render() {
+        for (int i = 0; i < document.getLayerCount(); i++) {
+            Layer layer = document.getLayer(i);
+            DocumentRenderer.render(document, layer.getId(), getCanvas(layer),
+                    1);
+        }
+        invalidateAll();
+    }
+
+    /**
+     * Resizes every canvas to the size of the document, which changes when
+     * the canvas is resized and when a resize is undone or redone. The
+     * canvases keep their tiles, so this costs little however large they are.
+     *
+     * @return whether the size changed
+     */
+    public boolean resize() {
+        if (document.getWidth() == width && document.getHeight() == height) {
+            return false;
+        }
+        width = document.getWidth();
+        height = document.getHeight();
+        for (TiledCanvas c : canvases.values()) {
+            c.resize(width, height);
+        }
+        below.resize(width, height);
+        composite.resize(width, height);
+        invalidateAll();
+        return true;
+    }
+
+    /**
+     * Blends the layers again where the image is out of date
+     *
+     * @return the image of the layers blended together
+     */
+    public TiledCanvas update() {
+        if (!belowDirty.isEmpty()) {
+            below.clear(belowDirty);
+            for (int i = 0; i < active; i++) {
+                blend(below, document.getLayer(i), belowDirty);
+            }
+            belowDirty.setBounds(0, 0, 0, 0);
+        }
+        if (!dirty.isEmpty()) {
+            composite.copy(below, dirty);
+            for (int i = active; i < document.getLayerCount(); i++) {
+                blend(composite, document.getLayer(i), dirty);
+            }
+            add(changed, dirty);
+            dirty.setBounds(0, 0, 0, 0);
+        }
+        return composite;
+    }
+
+    /**
+     * Tells where update changed the blended image since the last call, so
+     * a copy of it can be brought up to date
+     *
+     * @param r set to the changed region, which is empty if nothing changed
+     */
+    public void takeChanged(Rectangle r) {
+        r.setBounds(changed);
+        changed.setBounds(0, 0, 0, 0);
+    }
+
+    //Blends a layer onto a cache in a region
+    private void blend(TiledCanvas target, Layer layer, Rectangle r) {
+        if (layer.isVisible()) {
+            target.composite(getCanvas(layer), r, layer.getMode(),
+                    layer.getOpacity());
+        }
+    }
+
+    //Marks the image out of date after a layer changed how it is blended
+    private void changed(int index) {
+        if (index < active) {
+            belowDirty.setBounds(0, 0, width, height);
+        }
+        dirty.setBounds(0, 0, width, height);
+    }
+
+    private void createCanvas(Layer layer) {
+        TiledCanvas canvas = DocumentRenderer.createLayerCanvas(document,
+                layer, width, height, store);
+        canvas.setRenderingHints(hints);
+        canvases.put(layer.getId(), canvas);
+    }
+
+    //Grows a region to include another
+    private static void add(Rectangle region, Rectangle r) {
+        if (region.isEmpty()) {
+            region.setBounds(r);
+        } else {
+            region.add(r);
+        }
+    }
+}
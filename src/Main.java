@@ -1,7 +1,41 @@
+import javax.swing.SwingUtilities;
 
 class Main {
 
+    /**
+     * Starts the paint program. The window is built on the event dispatch
+     * thread, like everything else that touches Swing.
+     *
+     * Usage: java Main [width height]
+     *
+     * @param args optionally the width and height of the canvas
+     */
     public static void main(String[] args) {
-        PaintEnvironment env = new PaintEnvironment();
+        final int width = args.length >= 2 ? size(args[0]) : 0;
+        final int height = args.length >= 2 ? size(args[1]) : 0;
+        if (args.length >= 2 && (width < 1 || height < 1)) {
+            System.out.println("Usage: java Main [width height], where the "
+                    + "width and height are positive whole numbers");
+            return;
+        }
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                if (width > 0) {
+                    new PaintEnvironment(width, height);
+                } else {
+                    new PaintEnvironment();
+                }
+            }
+        });
     }
-}
\ No newline at end of file
+
+    //Reads a width or height, or returns 0 if it is not a number
+    private static int size(String arg) {
+        try {
+            return Integer.parseInt(arg);
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Allocates tile images whose pixels live in a memory-mapped scratch file
+ * instead of on the Java heap. The operating system pages the pixels in and
+ * out, so the heap stays the same size however large the canvas is. Drawing
+ * on these images is slower than on heap images because Java2D cannot use
+ * its fast loops on a custom DataBuffer.
+ *
+ * The file grows in chunks of tiles. A tile's place in the file is reused
+ * once its image has been garbage collected.
+ */
+public class MappedTileStore implements Closeable {
+
+    private static final int TILES_PER_CHUNK = 64;
+    private static final int TILE_INTS
+            = TiledCanvas.TILE_SIZE * TiledCanvas.TILE_SIZE;
+    private static final int[] ZEROS = new int[TILE_INTS];
+    private final FileChannel channel;
+    private final List<IntBuffer> chunks = new ArrayList<IntBuffer>();
+    //places in the file that are not used by any tile
+    private int[] freeSlots = new int[TILES_PER_CHUNK];
+    private int freeCount = 0;
+    private int nextSlot = 0;
+    private boolean closed = false;
+    //the references are kept so they are enqueued when their buffer is
+    //collected
+    private final ReferenceQueue<MappedDataBuffer> released
+            = new ReferenceQueue<MappedDataBuffer>();
+    private final Set<SlotReference> references = new HashSet<SlotReference>();
+
+    /**
+     * A DataBuffer of ints that reads and writes a slice of the mapped file
+     */
+    private static class MappedDataBuffer extends DataBuffer {
+
+        private final IntBuffer data;
+
+        private MappedDataBuffer(IntBuffer data) {
+            super(DataBuffer.TYPE_INT, data.capacity());
+            this.data = data;
+        }
+
+        @Override
+        public int getElem(int bank, int i) {
+            return data.get(i);
+        }
+
+        @Override
+        public void setElem(int bank, int i, int val) {
+            data.put(i, val);
+        }
+    }
+
+    /**
+     * Remembers which place in the file a buffer used after it is collected
+     */
+    private static class SlotReference extends PhantomReference<MappedDataBuffer> {
+
+        private final int slot;
+
+        private SlotReference(MappedDataBuffer buffer, int slot,
+                ReferenceQueue<MappedDataBuffer> queue) {
+            super(buffer, queue);
+            this.slot = slot;
+        }
+    }
+
+    /**
+     * Creates a store backed by a new scratch file, which is deleted when the
+     * program exits
+     *
+     * @param directory the directory for the scratch file
+     * @throws IOException if the file cannot be created
+     */
+    public MappedTileStore(File directory) throws IOException {
+        File file = File.createTempFile("paint", ".tiles", directory);
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        //An open file can be deleted on some systems, which removes it even
+        //if the program does not exit normally
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    /**
+     * Creates a tile image with its pixels in the scratch file. The pixels
+     * are all zero.
+     *
+     * @param imageType a BufferedImage type that stores a pixel in an int
+     * @return the image
+     * @throws IllegalStateException if the file cannot be extended or the
+     * store is closed
+     */
+    public synchronized BufferedImage createImage(int imageType) {
+        if (closed) {
+            throw new IllegalStateException("The tile store is closed");
+        }
+        reclaimSlots();
+        int slot;
+        boolean reused = freeCount > 0;
+        if (reused) {
+            slot = freeSlots[--freeCount];
+        } else {
+            slot = nextSlot++;
+            if (slot / TILES_PER_CHUNK == chunks.size()) {
+                mapChunk();
+            }
+        }
+
+        IntBuffer slice = chunks.get(slot / TILES_PER_CHUNK).duplicate();
+        slice.position((slot % TILES_PER_CHUNK) * TILE_INTS);
+        slice.limit(slice.position() + TILE_INTS);
+        slice = slice.slice();
+        if (reused) {
+            slice.put(ZEROS);
+        }
+        MappedDataBuffer buffer = new MappedDataBuffer(slice);
+        references.add(new SlotReference(buffer, slot, released));
+
+        //Use the color and sample models of a heap image of the same type
+        BufferedImage template = new BufferedImage(1, 1, imageType);
+        ColorModel cm = template.getColorModel();
+        SampleModel sm = template.getSampleModel().createCompatibleSampleModel(
+                TiledCanvas.TILE_SIZE, TiledCanvas.TILE_SIZE);
+        WritableRaster raster = Raster.createWritableRaster(sm, buffer, null);
+        return new BufferedImage(cm, raster, cm.isAlphaPremultiplied(), null);
+    }
+
+    /**
+     * @return the size of the scratch file in bytes
+     */
+    public synchronized long getMappedBytes() {
+        return (long) chunks.size() * TILES_PER_CHUNK * TILE_INTS * 4;
+    }
+
+    /**
+     * Closes the scratch file. No more images can be created, but the images
+     * already created keep their pixels, since a mapping stays valid after
+     * its file is closed. The space they take is given back once they are
+     * garbage collected.
+     *
+     * @throws IOException if the file cannot be closed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        chunks.clear();
+        channel.close();
+    }
+
+    //Makes the places of collected tiles available again
+    private void reclaimSlots() {
+        Reference<? extends MappedDataBuffer> r;
+        while ((r = released.poll()) != null) {
+            references.remove(r);
+            if (freeCount == freeSlots.length) {
+                freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+            }
+            freeSlots[freeCount++] = ((SlotReference) r).slot;
+        }
+    }
+
+    //Extends the file by a chunk and maps it
+    private void mapChunk() {
+        long chunkBytes = (long) TILES_PER_CHUNK * TILE_INTS * 4;
+        try {
+            MappedByteBuffer mapped = channel.map(
+                    FileChannel.MapMode.READ_WRITE,
+                    chunks.size() * chunkBytes, chunkBytes);
+            chunks.add(mapped.order(ByteOrder.nativeOrder()).asIntBuffer());
+        } catch (IOException ex) {
+            throw new IllegalStateException("Cannot extend the tile file", ex);
+        }
+    }
+}
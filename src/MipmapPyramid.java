@@ -0,0 +1,147 @@
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Smaller copies of a canvas for showing it zoomed out. Each level is the
+ * level below it at half the size, so a view at any zoom below 100% is drawn
+ * from the level that is at most twice as large as the view rather than from
+ * every pixel of the canvas, and costs about the same however large the
+ * canvas is.
+ *
+ * Levels are only made when a view first needs them. After that, the
+ * regions of the canvas that change are marked out of date in every level,
+ * and a level is only reduced again in those regions, from the level below
+ * it, when it is next drawn. Tiles of a blank region of the canvas stay
+ * unallocated in every level.
+ */
+public class MipmapPyramid {
+
+    //the canvas the levels are made from and its size when they were, and
+    //levels 1 and up, each half the size of the one before it
+    private TiledCanvas source;
+    private int width, height;
+    private final List<TiledCanvas> levels = new ArrayList<TiledCanvas>();
+    //the region of the canvas that is out of date in each level
+    private final List<Rectangle> stale = new ArrayList<Rectangle>();
+    private final MappedTileStore store;
+
+    /**
+     * @param store where to keep the tile pixels of the levels, or null for
+     * the heap
+     */
+    public MipmapPyramid(MappedTileStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Finds the level a zoom is drawn from, which is the smallest level that
+     * is still at least as large as the view
+     *
+     * @param zoom the zoom, where 1 is 100%
+     * @return the level, 0 for the canvas itself
+     */
+    public static int levelFor(double zoom) {
+        int level = 0;
+        while (zoom <= 0.5) {
+            zoom *= 2;
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * Marks a region of the canvas changed in every level
+     *
+     * @param r the region, in canvas coordinates
+     */
+    public void invalidate(Rectangle r) {
+        if (r.isEmpty()) {
+            return;
+        }
+        for (Rectangle s : stale) {
+            if (s.isEmpty()) {
+                s.setBounds(r);
+            } else {
+                s.add(r);
+            }
+        }
+    }
+
+    /**
+     * Forgets every level, so they are made again when next needed
+     */
+    public void flush() {
+        source = null;
+        levels.clear();
+        stale.clear();
+    }
+
+    /**
+     * Returns a level of a canvas, bringing it and the levels below it up to
+     * date first. The levels are made again if the canvas was replaced or
+     * resized.
+     *
+     * @param canvas the canvas
+     * @param level the level, 0 for the canvas itself
+     * @return the canvas of the level
+     */
+    public TiledCanvas getLevel(TiledCanvas canvas, int level) {
+        if (canvas != source || canvas.getWidth() != width
+                || canvas.getHeight() != height) {
+            flush();
+            source = canvas;
+            width = canvas.getWidth();
+            height = canvas.getHeight();
+        }
+        while (levels.size() < level) {
+            int n = levels.size() + 1;
+            levels.add(new TiledCanvas(half(width, n), half(height, n),
+                    canvas.getImageType(), canvas.getBackground(), store));
+            stale.add(new Rectangle(width, height));
+        }
+        //Each level is reduced from the one below it, which is brought up to
+        //date first
+        TiledCanvas below = canvas;
+        for (int i = 0; i < level; i++) {
+            Rectangle s = stale.get(i);
+            if (!s.isEmpty()) {
+                int n = i + 1;
+                int x = s.x >> n, y = s.y >> n;
+                levels.get(i).downsample(below, new Rectangle(x, y,
+                        half(s.x + s.width, n) - x,
+                        half(s.y + s.height, n) - y));
+                s.setBounds(0, 0, 0, 0);
+            }
+            below = levels.get(i);
+        }
+        return below;
+    }
+
+    /**
+     * Draws a canvas at a zoom below 100%, from the level for the zoom. Only
+     * the tiles inside the clip bounds are drawn.
+     *
+     * @param g the graphics context, in view coordinates
+     * @param canvas the canvas
+     * @param zoom the zoom
+     */
+    public void draw(Graphics2D g, TiledCanvas canvas, double zoom) {
+        int level = levelFor(zoom);
+        TiledCanvas c = getLevel(canvas, level);
+        Graphics2D lg = (Graphics2D) g.create();
+        double scale = zoom * (1 << level);
+        lg.scale(scale, scale);
+        lg.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        c.draw(lg);
+        lg.dispose();
+    }
+
+    //A length divided by 2 to a power, rounded up
+    private static int half(int length, int power) {
+        return (length + (1 << power) - 1) >> power;
+    }
+}
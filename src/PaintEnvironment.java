@@ -8,24 +8,43 @@ import java.awt.GridBagLayout;
 import java.awt.GridLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.InputEvent;
+import java.awt.event.KeyEvent;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.BorderFactory;
+import javax.swing.DefaultListModel;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JCheckBoxMenuItem;
 import javax.swing.JColorChooser;
+import javax.swing.JComboBox;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
+import javax.swing.JList;
 import javax.swing.JMenu;
 import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
+import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JProgressBar;
+import javax.swing.JScrollPane;
 import javax.swing.JSlider;
+import javax.swing.JSpinner;
+import javax.swing.KeyStroke;
+import javax.swing.ListSelectionModel;
+import javax.swing.SpinnerNumberModel;
+import javax.swing.SwingUtilities;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
+import javax.swing.event.ListSelectionEvent;
+import javax.swing.event.ListSelectionListener;
 
 /**
  * Sets up a PaintComponent object with tools for painting
@@ -36,10 +55,10 @@ import javax.swing.event.ChangeListener;
 public class PaintEnvironment {
 
     //Dimensions of PaintEnvironment controls
-    private static final Dimension FRAME_DIMENSION = new Dimension(800, 600);
+    private static final Dimension FRAME_DIMENSION = new Dimension(960, 600);
     private static final Dimension BUTTON_DIMENSION = new Dimension(22, 22);
     private static final Dimension DRAWING_DIMENSION = new Dimension(622, 545);
-    private static final Dimension TOOL_PANEL_DIMENSION = new Dimension(144, 200);
+    private static final Dimension TOOL_PANEL_DIMENSION = new Dimension(144, 240);
     private static final Dimension PREVIEW_BUTTON_DIMENSION
             = new Dimension(33, 33);
     private static final Dimension PAINT_PANEL_DIMENSION = new Dimension(148, 50);
@@ -47,6 +66,10 @@ public class PaintEnvironment {
             = new Dimension(150, 200);
     private static final Dimension SLIDER_DIMENSION = new Dimension(140, 20);
     private static final Dimension TOOL_BUTTON_DIMENSION = new Dimension(70, 25);
+    private static final Dimension LAYER_PANEL_DIMENSION
+            = new Dimension(150, 545);
+    //How many pixels the scroll bar arrows move the canvas
+    private static final int SCROLL_INCREMENT = 16;
     
     //thickness of the border around the color preview buttons (Color 1, 2)
     private static final int BORDER_THICKNESS = 3;
@@ -58,6 +81,9 @@ public class PaintEnvironment {
     //The range of thicknesses for lines and shapes drawn
     private static final int THICKNESS_MIN = 1;
     private static final int THICKNESS_MAX = 10;
+
+    //The largest width and height the canvas can be resized to
+    private static final int CANVAS_SIZE_MAX = 32768;
     
     //Default colors (secondary is the color with which to fill shapes)
     private Color primaryColor = Color.BLACK;
@@ -69,19 +95,54 @@ public class PaintEnvironment {
     
     //The frame
     private JFrame frame = new JFrame("Paint");
-    //The painting component
-    private PaintingComponent pc = new PaintingComponent();
+    //The painting component and the scroll pane that shows part of it
+    private PaintingComponent pc;
+    private JScrollPane scrollPane;
     //The menu bar items
     private JMenuBar menuBar = new JMenuBar();
     private JMenu fileMenu = new JMenu("File");
     private JMenuItem newMenuItem = new JMenuItem("New");
     private JMenuItem openMenuItem = new JMenuItem("Open");
     private JMenuItem saveMenuItem = new JMenuItem("Save");
+    private JMenuItem exportMenuItem = new JMenuItem("Export Scaled...");
+    private JMenuItem openDocumentMenuItem
+            = new JMenuItem("Open Document...");
+    private JMenuItem saveDocumentMenuItem
+            = new JMenuItem("Save Document...");
+    private JCheckBoxMenuItem recordMenuItem
+            = new JCheckBoxMenuItem("Record Input...");
+    private JMenuItem replayMenuItem = new JMenuItem("Replay Input...");
+    private JCheckBoxMenuItem shareMenuItem
+            = new JCheckBoxMenuItem("Share Canvas...");
+    private JMenu editMenu = new JMenu("Edit");
+    private JMenuItem undoMenuItem = new JMenuItem("Undo");
+    private JMenuItem redoMenuItem = new JMenuItem("Redo");
+    private JMenuItem deleteMenuItem = new JMenuItem("Delete");
+    private JMenuItem canvasSizeMenuItem = new JMenuItem("Canvas Size...");
+    private JMenu filterMenu = new JMenu("Filter");
+    private JMenuItem blurMenuItem = new JMenuItem("Blur...");
+    private JMenuItem sharpenMenuItem = new JMenuItem("Sharpen");
+    private JMenuItem grayscaleMenuItem = new JMenuItem("Grayscale");
+    private JMenuItem invertMenuItem = new JMenuItem("Invert");
+    private JMenuItem filterChainMenuItem
+            = new JMenuItem("Several Filters...");
+    private JMenu viewMenu = new JMenu("View");
+    private JMenuItem zoomInMenuItem = new JMenuItem("Zoom In");
+    private JMenuItem zoomOutMenuItem = new JMenuItem("Zoom Out");
+    private JMenuItem actualSizeMenuItem = new JMenuItem("Actual Size");
     private JMenu optionsMenu = new JMenu("Options");
     private JCheckBoxMenuItem antialiasMenuItem
             = new JCheckBoxMenuItem("Anti-Aliasing", true);
     private JCheckBoxMenuItem fillMenuItem
             = new JCheckBoxMenuItem("Fill", true);
+    private JMenuItem fillToleranceMenuItem
+            = new JMenuItem("Fill Tolerance...");
+    private JMenuItem redrawMenuItem = new JMenuItem("Redraw");
+    private JCheckBoxMenuItem vectorMenuItem
+            = new JCheckBoxMenuItem("Vector Compositing");
+    private JCheckBoxMenuItem latencyMenuItem
+            = new JCheckBoxMenuItem("Latency Overlay");
+    private int fillTolerance = 0;
     private boolean primary = true;   //Is the primary color selected?
     private boolean fill = true;      //Should we fill in shapes with 2nd color?
     private boolean antialias = true; //True if antialiasing is turned on
@@ -104,8 +165,11 @@ public class PaintEnvironment {
     private JButton clearButton = new JButton("Clear");
     private JButton primaryPreviewButton = new JButton();
     private JButton secondaryPreviewButton = new JButton();
-    private JColorChooser chooser = new JColorChooser();
+    //the color chooser is slow to build, so it is built when first needed,
+    //or after the window is showing
+    private JColorChooser chooser;
     private JSlider thicknessSlider = new JSlider();
+    private JProgressBar saveProgressBar = new JProgressBar(0, 100);
     //Color buttons
     private JButton whiteButton = new JButton();
     private JButton blackButton = new JButton();
@@ -130,18 +194,52 @@ public class PaintEnvironment {
     private JButton diamondButton = new JButton("Diamond");
     private JButton pentagonButton = new JButton("Pentagon");
     private JButton lineRepeaterButton = new JButton("Line Repeater");
+    private JButton fillButton = new JButton("Fill");
+    private JButton selectButton = new JButton("Select");
+    //The layer panel, which lists the layers from the top down and shows
+    //the settings of the active one
+    private JPanel layerPanel = new JPanel();
+    private DefaultListModel<String> layerListModel
+            = new DefaultListModel<String>();
+    private JList<String> layerList = new JList<String>(layerListModel);
+    private JCheckBox layerVisibleCheckBox = new JCheckBox("Visible", true);
+    private JLabel layerOpacityLabel = new JLabel("Opacity: 100%");
+    private JSlider layerOpacitySlider = new JSlider(0, 100, 100);
+    private JComboBox<String> layerModeComboBox
+            = new JComboBox<String>(Compositor.MODE_NAMES);
+    private JButton newLayerButton = new JButton("New");
+    private JButton deleteLayerButton = new JButton("Delete");
+    //true while the layer controls are set to match the active layer, so
+    //their listeners do nothing
+    private boolean updatingLayers = false;
     private ArrayList<JButton> colorButtons = new ArrayList<JButton>();
     private ArrayList<JButton> toolButtons = new ArrayList<JButton>();
 
     /**
-     * Constructor: Initialize everything
+     * Constructor: Initialize everything with a canvas that fits the window
      */
     public PaintEnvironment() {
+        this(DRAWING_DIMENSION.width, DRAWING_DIMENSION.height);
+    }
+
+    /**
+     * Constructor: Initialize everything. A canvas larger than the window
+     * can be scrolled.
+     *
+     * @param width the width of the canvas
+     * @param height the height of the canvas
+     */
+    public PaintEnvironment(int width, int height) {
+        pc = new PaintingComponent(width, height);
+        scrollPane = new JScrollPane(pc);
         initColorButtons();
         initControlButtons();
         initTools();
         initMenuBar();
+        initSaveProgress();
+        initLayerPanel();
         initPanelsAndLayout();
+        initStartup();
         initFrame();
     }
 
@@ -228,7 +326,8 @@ public class PaintEnvironment {
                 primary = true;
                 secondaryPreviewButton.setBorder(
                         BorderFactory.createLineBorder(BORDER_COLOR, 1));
-                System.out.println("Color 1 selected.");
+                Logger.getLogger(PaintEnvironment.class.getName())
+                        .config("Color 1 selected");
             }
         });
 
@@ -242,7 +341,8 @@ public class PaintEnvironment {
                 primary = false;
                 primaryPreviewButton.setBorder(
                         BorderFactory.createLineBorder(BORDER_COLOR, 1));
-                System.out.println("Color 2 selected.");
+                Logger.getLogger(PaintEnvironment.class.getName())
+                        .config("Color 2 selected");
             }
         });
 
@@ -259,13 +359,13 @@ public class PaintEnvironment {
             @Override
             public void actionPerformed(ActionEvent e) {
                 if (primary) {
-                    primaryColor = JColorChooser.showDialog(chooser,
-                            "Choose Primary Color", primaryColor);
+                    primaryColor = chooseColor("Choose Primary Color",
+                            primaryColor);
                     primaryPreviewButton.setBackground(primaryColor);
                     pc.setPrimaryColor(primaryColor);
                 } else {
-                    secondaryColor = JColorChooser.showDialog(chooser,
-                            "Choose Secondary Color", secondaryColor);
+                    secondaryColor = chooseColor("Choose Secondary Color",
+                            secondaryColor);
                     secondaryPreviewButton.setBackground(secondaryColor);
                     pc.setSecondaryColor(secondaryColor);
                 }
@@ -273,6 +373,200 @@ public class PaintEnvironment {
         });
     }
 
+    /**
+     * @return the color chooser, which is built the first time it is needed
+     */
+    private JColorChooser colorChooser() {
+        if (chooser == null) {
+            chooser = new JColorChooser();
+        }
+        return chooser;
+    }
+
+    /**
+     * Prompts the user for a color
+     *
+     * @param title the title of the dialog
+     * @param color the color to start from
+     * @return the chosen color, or the color started from if the dialog was
+     * canceled
+     */
+    private Color chooseColor(String title, Color color) {
+        final JColorChooser cc = colorChooser();
+        final Color[] chosen = {color};
+        cc.setColor(color);
+        JColorChooser.createDialog(frame, title, true, cc,
+                new ActionListener() {
+                    @Override
+                    public void actionPerformed(ActionEvent e) {
+                        chosen[0] = cc.getColor();
+                    }
+                }, null).setVisible(true);
+        return chosen[0];
+    }
+
+    /**
+     * Reports how long the program took to show its first frame, and then
+     * builds the dialogs that were left out of startup. Swing components
+     * must be built on the event dispatch thread, so each dialog is built
+     * by a task of its own there, and input that arrives in between is
+     * handled between them.
+     *
+     * When the paint.exitAfterStartup system property is true, the program
+     * exits once the dialogs are built. The class data sharing archive is
+     * made from such a run; see build.xml.
+     */
+    private void initStartup() {
+        pc.addPropertyChangeListener("painted", new PropertyChangeListener() {
+            @Override
+            public void propertyChange(PropertyChangeEvent e) {
+                Logger.getLogger(PaintEnvironment.class.getName()).log(
+                        Level.INFO, "First frame after {0} ms",
+                        ManagementFactory.getRuntimeMXBean().getUptime());
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        pc.prepareDialogs();
+                    }
+                });
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        colorChooser();
+                        Logger.getLogger(PaintEnvironment.class.getName())
+                                .log(Level.CONFIG, "Dialogs ready after {0} ms",
+                                        ManagementFactory.getRuntimeMXBean()
+                                        .getUptime());
+                        if (Boolean.getBoolean("paint.exitAfterStartup")) {
+                            System.exit(0);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Shows the progress of saves, which run in the background
+     */
+    private void initSaveProgress() {
+        saveProgressBar.setStringPainted(true);
+        saveProgressBar.setString("Saving...");
+        saveProgressBar.setVisible(false);
+        pc.addPropertyChangeListener("saveProgress",
+                new PropertyChangeListener() {
+                    @Override
+                    public void propertyChange(PropertyChangeEvent e) {
+                        int percent = (Integer) e.getNewValue();
+                        saveProgressBar.setVisible(percent >= 0);
+                        saveProgressBar.setValue(Math.max(0, percent));
+                    }
+                });
+    }
+
+    /**
+     * Initializes the layer panel
+     */
+    private void initLayerPanel() {
+        layerList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        layerOpacitySlider.setPreferredSize(SLIDER_DIMENSION);
+
+        //Makes the selected layer the one the tools draw on
+        layerList.addListSelectionListener(new ListSelectionListener() {
+            @Override
+            public void valueChanged(ListSelectionEvent e) {
+                int selected = layerList.getSelectedIndex();
+                if (!updatingLayers && !e.getValueIsAdjusting()
+                        && selected >= 0) {
+                    pc.setActiveLayer(layerListModel.size() - 1 - selected);
+                    updateLayerPanel();
+                }
+            }
+        });
+
+        //Shows or hides the active layer
+        layerVisibleCheckBox.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                pc.setLayerVisible(pc.getLayers().getActiveIndex(),
+                        layerVisibleCheckBox.isSelected());
+                updateLayerPanel();
+            }
+        });
+
+        //Changes the opacity of the active layer
+        layerOpacitySlider.addChangeListener(new ChangeListener() {
+            @Override
+            public void stateChanged(ChangeEvent e) {
+                layerOpacityLabel.setText("Opacity: "
+                        + layerOpacitySlider.getValue() + "%");
+                if (!updatingLayers) {
+                    pc.setLayerOpacity(pc.getLayers().getActiveIndex(),
+                            (layerOpacitySlider.getValue() * 255 + 50) / 100);
+                }
+            }
+        });
+
+        //Changes how the active layer is blended onto the layers below
+        layerModeComboBox.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                if (!updatingLayers) {
+                    pc.setLayerMode(pc.getLayers().getActiveIndex(),
+                            layerModeComboBox.getSelectedIndex());
+                }
+            }
+        });
+
+        newLayerButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                pc.addLayer();
+            }
+        });
+
+        deleteLayerButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                pc.removeLayer();
+            }
+        });
+
+        //The list is rebuilt when layers are added or removed, or a
+        //document is opened
+        pc.addPropertyChangeListener("layers", new PropertyChangeListener() {
+            @Override
+            public void propertyChange(PropertyChangeEvent e) {
+                updateLayerPanel();
+            }
+        });
+        updateLayerPanel();
+    }
+
+    /**
+     * Lists the layers of the painting component from the top down and sets
+     * the layer controls to match the active layer
+     */
+    private void updateLayerPanel() {
+        updatingLayers = true;
+        LayerStack layers = pc.getLayers();
+        Document doc = layers.getDocument();
+        layerListModel.clear();
+        for (int i = doc.getLayerCount() - 1; i >= 0; i--) {
+            Layer layer = doc.getLayer(i);
+            layerListModel.addElement(layer.getName()
+                    + (layer.isVisible() ? "" : " (hidden)"));
+        }
+        layerList.setSelectedIndex(
+                doc.getLayerCount() - 1 - layers.getActiveIndex());
+        Layer active = layers.getActive();
+        layerVisibleCheckBox.setSelected(active.isVisible());
+        layerOpacitySlider.setValue((active.getOpacity() * 100 + 127) / 255);
+        layerModeComboBox.setSelectedIndex(active.getMode());
+        deleteLayerButton.setEnabled(!active.isBackground());
+        updatingLayers = false;
+    }
+
     /**
      * Initializes the menu bar
      */
@@ -286,6 +580,25 @@ public class PaintEnvironment {
             }
         });
 
+        //Prompts for how far the fill tool spreads into similar colors
+        fillToleranceMenuItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                String s = JOptionPane.showInputDialog(frame,
+                        "Fill tolerance (0-255):", fillTolerance);
+                if (s != null) {
+                    try {
+                        fillTolerance = Math.max(0,
+                                Math.min(255, Integer.parseInt(s.trim())));
+                        pc.setFillTolerance(fillTolerance);
+                    } catch (NumberFormatException ex) {
+                        JOptionPane.showMessageDialog(frame,
+                                "Not a number: " + s);
+                    }
+                }
+            }
+        });
+
         //Toggles antialiasing
         antialiasMenuItem.addActionListener(new ActionListener() {
             @Override
@@ -321,6 +634,145 @@ public class PaintEnvironment {
             }
         });
 
+        //Prompts for a scale and saves the drawing at that scale
+        exportMenuItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                String s = JOptionPane.showInputDialog(frame,
+                        "Scale (for example 4 or 0.5):", 4);
+                if (s != null) {
+                    try {
+                        double scale = Double.parseDouble(s.trim());
+                        if (scale <= 0) {
+                            throw new NumberFormatException();
+                        }
+                        pc.export(scale);
+                    } catch (NumberFormatException ex) {
+                        JOptionPane.showMessageDialog(frame,
+                                "Not a valid scale: " + s);
+                    } catch (IOException ex) {
+                        Logger.getLogger(PaintEnvironment.class.getName())
+                                .log(Level.SEVERE, null, ex);
+                    }
+                }
+            }
+        });
+
+        //Prompt the user to open a document
+        openDocumentMenuItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                try {
+                    pc.openDocument();
+                } catch (IOException ex) {
+                    Logger.getLogger(PaintEnvironment.class.getName())
+                            .log(Level.SEVERE, null, ex);
+                }
+            }
+        });
+
+        //Prompt the user to save the document
+        saveDocumentMenuItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                try {
+                    pc.saveDocument();
+                } catch (IOException ex) {
+                    Logger.getLogger(PaintEnvironment.class.getName())
+                            .log(Level.SEVERE, null, ex);
+                }
+            }
+        });
+
+        //Starts recording the input in a journal, or stops it
+        recordMenuItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                try {
+                    pc.setRecording(recordMenuItem.isSelected());
+                } catch (IOException ex) {
+                    Logger.getLogger(PaintEnvironment.class.getName())
+                            .log(Level.SEVERE, null, ex);
+                }
+                recordMenuItem.setSelected(pc.isRecording());
+            }
+        });
+        //The recording also stops when a replay starts or the journal
+        //cannot be written
+        pc.addPropertyChangeListener("recording", new PropertyChangeListener() {
+            @Override
+            public void propertyChange(PropertyChangeEvent e) {
+                recordMenuItem.setSelected(pc.isRecording());
+            }
+        });
+
+        //Prompt the user for a journal to replay
+        replayMenuItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                try {
+                    pc.replayInput();
+                } catch (IOException ex) {
+                    Logger.getLogger(PaintEnvironment.class.getName())
+                            .log(Level.SEVERE, null, ex);
+                }
+            }
+        });
+
+        //Connect to a canvas server, or disconnect from it
+        shareMenuItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                if (shareMenuItem.isSelected()) {
+                    chooseServer();
+                } else {
+                    pc.disconnect();
+                }
+                shareMenuItem.setSelected(pc.isShared());
+            }
+        });
+        //Sharing also stops when the connection fails. A shared canvas
+        //cannot be resized or have its edits undone.
+        pc.addPropertyChangeListener("shared", new PropertyChangeListener() {
+            @Override
+            public void propertyChange(PropertyChangeEvent e) {
+                shareMenuItem.setSelected(pc.isShared());
+                undoMenuItem.setEnabled(!pc.isShared());
+                redoMenuItem.setEnabled(!pc.isShared());
+                canvasSizeMenuItem.setEnabled(!pc.isShared());
+                redrawMenuItem.setEnabled(!pc.isShared());
+            }
+        });
+
+        //Draws the image again from the document with the current settings
+        redrawMenuItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                pc.redraw();
+            }
+        });
+
+        //Switches between the vector and scalar compositors, if the vector
+        //one could be loaded
+        vectorMenuItem.setEnabled(Compositor.vector() != null);
+        vectorMenuItem.setSelected(Compositor.getDefault()
+                == Compositor.vector());
+        vectorMenuItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                Compositor.setDefault(vectorMenuItem.isSelected()
+                        ? Compositor.vector() : Compositor.scalar());
+            }
+        });
+
+        //Shows or hides the input latency over the canvas
+        latencyMenuItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                pc.setLatencyOverlay(latencyMenuItem.isSelected());
+            }
+        });
+
         //Clears the image
         newMenuItem.addActionListener(new ActionListener() {
             @Override
@@ -329,15 +781,222 @@ public class PaintEnvironment {
             }
         });
 
+        //Undoes the latest edit
+        undoMenuItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Z,
+                InputEvent.CTRL_DOWN_MASK));
+        undoMenuItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                pc.undo();
+            }
+        });
+
+        //Redoes the latest undone edit
+        redoMenuItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Y,
+                InputEvent.CTRL_DOWN_MASK));
+        redoMenuItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                pc.redo();
+            }
+        });
+
+        //Prompts for a radius and blurs the image
+        blurMenuItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                String s = JOptionPane.showInputDialog(frame,
+                        "Blur radius (1-" + Filter.MAX_RADIUS + "):", 4);
+                if (s != null) {
+                    try {
+                        pc.applyFilters(Filter.blur(
+                                Integer.parseInt(s.trim())));
+                    } catch (NumberFormatException ex) {
+                        JOptionPane.showMessageDialog(frame,
+                                "Not a number: " + s);
+                    }
+                }
+            }
+        });
+
+        sharpenMenuItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                pc.applyFilters(Filter.SHARPEN);
+            }
+        });
+
+        grayscaleMenuItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                pc.applyFilters(Filter.GRAYSCALE);
+            }
+        });
+
+        invertMenuItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                pc.applyFilters(Filter.INVERT);
+            }
+        });
+
+        //Prompts for a list of filters and applies them together
+        filterChainMenuItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                String s = JOptionPane.showInputDialog(frame,
+                        "Filters, in order (grayscale, invert, sharpen, "
+                        + "blur <radius>):", "grayscale, blur 2");
+                if (s != null) {
+                    try {
+                        pc.applyFilters(Filter.parse(s));
+                    } catch (IllegalArgumentException ex) {
+                        JOptionPane.showMessageDialog(frame,
+                                ex.getMessage());
+                    }
+                }
+            }
+        });
+
+        //Deletes the shape selected with the select tool
+        deleteMenuItem.setAccelerator(KeyStroke.getKeyStroke(
+                KeyEvent.VK_DELETE, 0));
+        deleteMenuItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                pc.deleteSelection();
+            }
+        });
+
+        //Prompts for a new width and height of the canvas
+        canvasSizeMenuItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                chooseCanvasSize();
+            }
+        });
+
+        //Zooms in and out by a step, or back to 100%. Control and the mouse
+        //wheel zoom around the mouse, and the middle button pans.
+        zoomInMenuItem.setAccelerator(KeyStroke.getKeyStroke(
+                KeyEvent.VK_EQUALS, InputEvent.CTRL_DOWN_MASK));
+        zoomInMenuItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                pc.zoomBy(1);
+            }
+        });
+        zoomOutMenuItem.setAccelerator(KeyStroke.getKeyStroke(
+                KeyEvent.VK_MINUS, InputEvent.CTRL_DOWN_MASK));
+        zoomOutMenuItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                pc.zoomBy(-1);
+            }
+        });
+        actualSizeMenuItem.setAccelerator(KeyStroke.getKeyStroke(
+                KeyEvent.VK_0, InputEvent.CTRL_DOWN_MASK));
+        actualSizeMenuItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                pc.setZoom(1);
+            }
+        });
+
         fileMenu.add(newMenuItem);
         fileMenu.add(openMenuItem);
         fileMenu.add(saveMenuItem);
+        fileMenu.add(exportMenuItem);
+        fileMenu.addSeparator();
+        fileMenu.add(openDocumentMenuItem);
+        fileMenu.add(saveDocumentMenuItem);
+        fileMenu.addSeparator();
+        fileMenu.add(recordMenuItem);
+        fileMenu.add(replayMenuItem);
+        fileMenu.addSeparator();
+        fileMenu.add(shareMenuItem);
+        editMenu.add(undoMenuItem);
+        editMenu.add(redoMenuItem);
+        editMenu.add(deleteMenuItem);
+        editMenu.addSeparator();
+        editMenu.add(canvasSizeMenuItem);
+        filterMenu.add(blurMenuItem);
+        filterMenu.add(sharpenMenuItem);
+        filterMenu.add(grayscaleMenuItem);
+        filterMenu.add(invertMenuItem);
+        filterMenu.addSeparator();
+        filterMenu.add(filterChainMenuItem);
+        viewMenu.add(zoomInMenuItem);
+        viewMenu.add(zoomOutMenuItem);
+        viewMenu.add(actualSizeMenuItem);
         optionsMenu.add(fillMenuItem);
+        optionsMenu.add(fillToleranceMenuItem);
         optionsMenu.add(antialiasMenuItem);
+        optionsMenu.add(vectorMenuItem);
+        optionsMenu.add(latencyMenuItem);
+        optionsMenu.add(redrawMenuItem);
         menuBar.add(fileMenu);
+        menuBar.add(editMenu);
+        menuBar.add(filterMenu);
+        menuBar.add(viewMenu);
         menuBar.add(optionsMenu);
     }
 
+    /**
+     * Shows a dialog with the width and height of the canvas and resizes it
+     * to the ones chosen. The drawing stays where it is, so the canvas grows
+     * or is cropped at the right and bottom.
+     */
+    private void chooseCanvasSize() {
+        Document doc = pc.getLayers().getDocument();
+        JSpinner widthSpinner = new JSpinner(new SpinnerNumberModel(
+                doc.getWidth(), 1, CANVAS_SIZE_MAX, 1));
+        JSpinner heightSpinner = new JSpinner(new SpinnerNumberModel(
+                doc.getHeight(), 1, CANVAS_SIZE_MAX, 1));
+        JPanel panel = new JPanel(new GridLayout(2, 2, 5, 5));
+        panel.add(new JLabel("Width:"));
+        panel.add(widthSpinner);
+        panel.add(new JLabel("Height:"));
+        panel.add(heightSpinner);
+        int option = JOptionPane.showConfirmDialog(frame, panel,
+                "Canvas Size", JOptionPane.OK_CANCEL_OPTION,
+                JOptionPane.PLAIN_MESSAGE);
+        if (option == JOptionPane.OK_OPTION) {
+            pc.setCanvasSize((Integer) widthSpinner.getValue(),
+                    (Integer) heightSpinner.getValue());
+        }
+    }
+
+    /**
+     * Asks for the host and port of a canvas server and shares the canvas
+     * through it
+     */
+    private void chooseServer() {
+        String server = (String) JOptionPane.showInputDialog(frame,
+                "Server (host:port):", "Share Canvas",
+                JOptionPane.PLAIN_MESSAGE, null, null,
+                "localhost:" + CanvasProtocol.DEFAULT_PORT);
+        if (server == null || server.trim().isEmpty()) {
+            return;
+        }
+        server = server.trim();
+        int colon = server.lastIndexOf(':');
+        try {
+            if (colon < 0) {
+                pc.connect(server, CanvasProtocol.DEFAULT_PORT);
+            } else {
+                pc.connect(server.substring(0, colon),
+                        Integer.parseInt(server.substring(colon + 1)));
+            }
+        } catch (IOException | NumberFormatException ex) {
+            Logger.getLogger(PaintEnvironment.class.getName())
+                    .log(Level.SEVERE, null, ex);
+            JOptionPane.showMessageDialog(frame, "Cannot connect to "
+                    + server + ": " + ex.getMessage(), "Share Canvas",
+                    JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
     /**
      * Initializes each tool in the toolPanel
      */
@@ -346,7 +1005,7 @@ public class PaintEnvironment {
         toolButtons.addAll(new ArrayList<JButton>(Arrays.asList(eraserButton,
                 pencilButton, lineButton, boxButton, ellipseButton,
                 iTriangleButton, rTriangleButton, diamondButton, pentagonButton,
-                lineRepeaterButton)));
+                lineRepeaterButton, fillButton, selectButton)));
         
 
         //Set the style, size, and actionLiseners for each tool
@@ -405,6 +1064,24 @@ public class PaintEnvironment {
         //Draw Panel
         drawPanel.setLayout(new FlowLayout(FlowLayout.LEFT));
 
+        //Layer Panel
+        JPanel layerButtonPanel = new JPanel(new GridLayout(1, 2, 3, 0));
+        layerButtonPanel.add(newLayerButton);
+        layerButtonPanel.add(deleteLayerButton);
+        JPanel layerControlPanel = new JPanel(new GridLayout(5, 1, 0, 2));
+        layerControlPanel.add(layerVisibleCheckBox);
+        layerControlPanel.add(layerOpacityLabel);
+        layerControlPanel.add(layerOpacitySlider);
+        layerControlPanel.add(layerModeComboBox);
+        layerControlPanel.add(layerButtonPanel);
+        layerPanel.setLayout(new BorderLayout(0, 3));
+        layerPanel.setBorder(BorderFactory.createCompoundBorder(
+                BorderFactory.createTitledBorder("Layers"),
+                BorderFactory.createEmptyBorder(3, 3, 3, 3)));
+        layerPanel.setPreferredSize(LAYER_PANEL_DIMENSION);
+        layerPanel.add(new JScrollPane(layerList), BorderLayout.CENTER);
+        layerPanel.add(layerControlPanel, BorderLayout.SOUTH);
+
         //Add components to the panels
         //Preview panel
         previewPanel.add(chooseColorButton);
@@ -419,7 +1096,7 @@ public class PaintEnvironment {
         previewPanel.setSize(PREVIEW_PANEL_DIMENSION);
 
         //Draw Panel
-        drawPanel.add(pc);
+        drawPanel.add(scrollPane);
 
         //Side Panel
         c = new GridBagConstraints();
@@ -444,6 +1121,13 @@ public class PaintEnvironment {
         c.weighty = 1.0;
         sidePanel.add(toolPanel, c);
 
+        c.fill = GridBagConstraints.HORIZONTAL;
+        c.gridx = 0;
+        c.gridy = 3;
+        c.weightx = 0.0;
+        c.weighty = 0.0;
+        sidePanel.add(saveProgressBar, c);
+
         c.fill = GridBagConstraints.REMAINDER;
         c.gridx = 0;
         c.gridy = 0;
@@ -491,9 +1175,13 @@ public class PaintEnvironment {
      * Initializes the frame
      */
     private void initFrame() {
-        pc.setPreferredSize(DRAWING_DIMENSION);
+        scrollPane.setPreferredSize(DRAWING_DIMENSION);
+        scrollPane.setBorder(BorderFactory.createEmptyBorder());
+        scrollPane.getHorizontalScrollBar().setUnitIncrement(SCROLL_INCREMENT);
+        scrollPane.getVerticalScrollBar().setUnitIncrement(SCROLL_INCREMENT);
         frame.add(sidePanel, BorderLayout.WEST);
-        frame.add(drawPanel, BorderLayout.EAST);
+        frame.add(drawPanel, BorderLayout.CENTER);
+        frame.add(layerPanel, BorderLayout.EAST);
 
         //Frame attributes
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
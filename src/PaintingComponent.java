@@ -1,23 +1,40 @@
 
-import java.awt.BasicStroke;
 import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Font;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
-import java.awt.Polygon;
+import java.awt.Point;
 import java.awt.Rectangle;
 import java.awt.RenderingHints;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseMotionAdapter;
-import java.awt.geom.Ellipse2D;
+import java.awt.event.MouseWheelEvent;
+import java.awt.event.MouseWheelListener;
 import java.awt.image.BufferedImage;
-import java.awt.image.ColorModel;
-import java.awt.image.WritableRaster;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import javax.imageio.ImageIO;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.BorderFactory;
+import javax.swing.JCheckBox;
 import javax.swing.JFileChooser;
 import javax.swing.JPanel;
+import javax.swing.JSlider;
+import javax.swing.JViewport;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import javax.swing.filechooser.FileNameExtensionFilter;
 
 /**
  * A component that allows the user to draw on the screen using various tools.
@@ -37,343 +54,961 @@ public class PaintingComponent extends JPanel {
     public static final byte DIAMOND = 7;
     public static final byte PENTAGON = 8;
     public static final byte LINE_REPEATER = 9;
-    private final JFileChooser jfc = new JFileChooser("C:/");
-    private final String saveExtension = "png";
+    public static final byte FILL = 10;
+    public static final byte SELECT = 11;
+    public static final String[] TOOL_NAMES = {"Eraser", "Pencil", "Line",
+        "Box", "Ellipse", "Isosceles Triangle", "Right Triangle", "Diamond",
+        "Pentagon", "Line Repeater", "Fill", "Select"};
+    //The range of zooms, from 1% to 3200%
+    public static final float MIN_ZOOM = 0.01f;
+    public static final float MAX_ZOOM = 32;
+    //The default memory limit of the undo history, which may be overridden
+    //with the paint.undoBudget system property (in bytes)
+    private static final long DEFAULT_UNDO_BUDGET = 128L * 1024 * 1024;
+    //The image formats that can be saved. The first extension of each is
+    //used as the ImageIO format name.
+    private static final FileNameExtensionFilter[] SAVE_FORMATS = {
+        new FileNameExtensionFilter("PNG image", "png"),
+        new FileNameExtensionFilter("JPEG image", "jpg", "jpeg"),
+        new FileNameExtensionFilter("Bitmap image", "bmp")
+    };
+    private static final FileNameExtensionFilter DOCUMENT_FORMAT
+            = new FileNameExtensionFilter("Paint document", "spd");
+    private static final FileNameExtensionFilter JOURNAL_FORMAT
+            = new FileNameExtensionFilter("Input journal", "spj");
+    //the file chooser of every dialog and the compression quality in
+    //percent, shown in the save dialog. They are slow to build, so they
+    //are built when first needed, or ahead of time by prepareDialogs.
+    private JFileChooser chooser;
+    private JSlider qualitySlider;
+    private FileNameExtensionFilter saveFormat = SAVE_FORMATS[0];
+    //whether to replay an input journal as fast as possible, shown in the
+    //replay dialog
+    private final JCheckBox fastReplayCheckBox
+            = new JCheckBox("As fast as possible");
+    //the progress of the save in progress, or -1 if there is none
+    private int saveProgress = -1;
     private Color primaryColor = Color.BLACK;
     private Color secondaryColor = Color.YELLOW;
     private Color bgColor = Color.WHITE;
     private boolean antialias = true;
     private byte drawMode = PENCIL;
-    private Graphics2D g2;
-    //the (x,y) coordinates of points upon clicking and dragging
-    private int currentX, currentY, oldX, oldY;
+    //the canvases of the layers and the image of them blended together, and
+    //the canvas of the layer the tools draw on
+    private LayerStack layers;
+    private TiledCanvas canvas;
+    private final MappedTileStore tileStore = createTileStore();
+    //every operation drawn on the layers, which can draw them again at any
+    //size; the canvases only keep the pixels
+    private Document document;
+    //the size of the document when the current edit and load started
+    private int editStart, loadStart;
+    //the tools by number, and the select tool, whose selection is cleared
+    //when the document changes under it
+    private Tool[] tools = new Tool[SELECT + 1];
+    private final SelectTool selectTool = new SelectTool();
+    private final Tool.Context context = new ToolContext();
     private float lineThickness = 1.0f;
     private boolean fill = true; //whether or not to fill shape with 2nd color
-    private BufferedImage image, prevImage;
+    //how much a color channel may differ for the fill tool to spread to it
+    private int fillTolerance = 0;
+    //the canvas as it was before the current tool started drawing
+    private TiledCanvas.Snapshot snapshot;
+    private final UndoHistory history = new UndoHistory(
+            Long.getLong("paint.undoBudget", DEFAULT_UNDO_BUDGET));
+    //the image being loaded in the background, the layer it is loaded on,
+    //and the canvas of that layer before it was
+    private ImageLoader loader;
+    private File loadFile;
+    private int loadLayer;
+    private TiledCanvas loadCanvas;
+    private TiledCanvas.Snapshot loadSnapshot;
+    //the filters being applied to the active layer in the background, and
+    //their codes for the document
+    private FilterTask filterTask;
+    private int[] filterCodes;
+    //Between a press and a release, the tool is called once per frame, so
+    //the pencil, eraser and line repeater can draw the points they were
+    //dragged through at once
+    private static final int FRAME_INTERVAL = 16;
+    //how long the input of each tool takes to show, and whether that is
+    //shown over the canvas
+    private final LatencyMonitor latency = new LatencyMonitor();
+    private boolean latencyOverlay = false;
+    //whether the component has been painted yet
+    private boolean painted = false;
+    //the journal the input is being recorded in, and the replay in
+    //progress, or null
+    private InputJournal journal;
+    private InputReplayer replayer;
+    //true while a journal is replayed, which says when the buffered points
+    //are drawn instead of the frame timer
+    private boolean replaying = false;
+    //the server the background layer is shared through, or null
+    private CanvasClient client;
+    //the background layer while it is shared, which draws what the other
+    //clients draw in the order of the server
+    private SharedCanvas shared;
+    private static final Rectangle OVERLAY_BOUNDS
+            = new Rectangle(8, 8, 330, 58);
+    private static final Font OVERLAY_FONT
+            = new Font(Font.MONOSPACED, Font.PLAIN, 12);
+    private static final Color OVERLAY_BACKGROUND = new Color(0, 0, 0, 160);
+    //the overlay is repainted a few times a second while it is shown
+    private final Timer overlayTimer = new Timer(250, new ActionListener() {
+        @Override
+        public void actionPerformed(ActionEvent e) {
+            repaint(overlayBounds());
+        }
+    });
+    private final Timer frameTimer = new Timer(FRAME_INTERVAL,
+            new ActionListener() {
+                @Override
+                public void actionPerformed(ActionEvent e) {
+                    if (!replaying && tool().frame(context)) {
+                        journal(InputJournal.FRAME);
+                    }
+                }
+            });
+    //the blended layers in the format of the screen, and the region of them
+    //changed since the last paint
+    private final DisplayCache display = new DisplayCache();
+    private final Rectangle displayChanged = new Rectangle();
+    //how many screen pixels each canvas pixel covers, and the smaller copies
+    //of the blended layers the canvas is drawn from when zoomed out
+    private float zoom = 1;
+    private final MipmapPyramid pyramid = new MipmapPyramid(tileStore);
+    //the screen position the canvas is being dragged from with the middle
+    //button, or null if it is not being panned
+    private Point panFrom;
+    //the region of the image changed since the last repaint, and whether a
+    //repaint of that region has been scheduled
+    private final Rectangle dirtyRegion = new Rectangle();
+    private boolean repaintScheduled = false;
+    private final Runnable repaintDirtyRegion = new Runnable() {
+        @Override
+        public void run() {
+            repaint(toView(dirtyRegion));
+            dirtyRegion.setBounds(0, 0, 0, 0);
+            repaintScheduled = false;
+        }
+    };
+
+    //Draws the pieces of an image on the canvas as they are loaded
+    private final ImageLoader.Listener loadListener = new ImageLoader.Listener() {
+        @Override
+        public void previewLoaded(BufferedImage preview, int width,
+                int height) {
+            //The canvas grows to fit the image, as an edit of its own
+            if (snapshot == null && client == null
+                    && (width > document.getWidth()
+                    || height > document.getHeight())) {
+                resizeLayers(Math.max(width, document.getWidth()),
+                        Math.max(height, document.getHeight()));
+            }
+            loadCanvas = canvas;
+            loadLayer = layers.getActive().getId();
+            loadSnapshot = loadCanvas.snapshot();
+            if (shared != null && context.isShared()) {
+                shared.beginChange(loadSnapshot);
+            }
+            loadStart = document.size();
+            loadCanvas.clear();
+            addOperation(Document.CLEAR, new int[0], 0);
+            if (preview != null) {
+                loadCanvas.drawImage(preview, 0, 0, width, height);
+            }
+            layers.invalidate(loadCanvas, new Rectangle(
+                    loadCanvas.getWidth(), loadCanvas.getHeight()));
+            repaint();
+        }
+
+        @Override
+        public void bandLoaded(BufferedImage band, int y) {
+            Rectangle r = new Rectangle(0, y, band.getWidth(),
+                    band.getHeight());
+            //The preview under the band would show through translucent
+            //pixels
+            loadCanvas.clear(r);
+            loadCanvas.drawImage(band, 0, y);
+            changed(loadCanvas, r);
+        }
+
+        @Override
+        public void loadFinished(BufferedImage image) {
+            document.addImage(loadLayer, image, 0, 0);
+            finishLoad();
+            status("Image opened: {0}", loadFile);
+        }
+
+        @Override
+        public void loadFailed(IOException ex) {
+            finishLoad();
+            Logger.getLogger(PaintingComponent.class.getName())
+                    .log(Level.SEVERE, null, ex);
+        }
+    };
+
+    //Puts the filtered copy of the canvas in place as one edit
+    private final FilterTask.Listener filterListener
+            = new FilterTask.Listener() {
+                @Override
+                public void filtersApplied(TiledCanvas filtered) {
+                    int[] codes = filterCodes;
+                    filterTask = null;
+                    beginEdit();
+                    Rectangle all = new Rectangle(canvas.getWidth(),
+                            canvas.getHeight());
+                    canvas.copy(filtered, all);
+                    addOperation(Document.FILTER, codes, codes.length);
+                    endEdit();
+                    changed(canvas, all);
+                    status("Filters applied: {0}", layers.getActive()
+                            .getName());
+                }
+
+                @Override
+                public void filtersFailed(RuntimeException ex) {
+                    filterTask = null;
+                    drawShared();
+                    Logger.getLogger(PaintingComponent.class.getName())
+                            .log(Level.SEVERE, null, ex);
+                }
+            };
+
+    //Reports the progress of saves running in the background
+    private final ImageSaver.Listener saveListener = new ImageSaver.Listener() {
+        @Override
+        public void saveProgress(int percent) {
+            setSaveProgress(percent);
+        }
+
+        @Override
+        public void saveFinished(File file) {
+            setSaveProgress(-1);
+            status("Image saved: {0}", file);
+        }
+
+        @Override
+        public void saveFailed(IOException ex) {
+            setSaveProgress(-1);
+            Logger.getLogger(PaintingComponent.class.getName())
+                    .log(Level.SEVERE, null, ex);
+        }
+    };
+
+    //Reports the end of a replay
+    private final InputReplayer.Listener replayListener
+            = new InputReplayer.Listener() {
+                @Override
+                public void recordReplayed(long time) {
+                }
+
+                @Override
+                public void replayFinished(int records, long nanos) {
+                    replayer = null;
+                    status("Replay finished: {0}", String.format(
+                            "%d records in %.3f s", records, nanos / 1e9));
+                }
+
+                @Override
+                public void replayFailed(IOException ex) {
+                    replayer = null;
+                    Logger.getLogger(PaintingComponent.class.getName())
+                            .log(Level.SEVERE, null, ex);
+                }
+            };
+
+    //Draws what the other clients of the server draw
+    private final CanvasClient.Listener clientListener
+            = new CanvasClient.Listener() {
+                @Override
+                public void connected(int width, int height, int background) {
+                    if (loader != null) {
+                        loader.cancel();
+                        finishLoad();
+                    }
+                    snapshot = null;
+                    setDocument(new Document(width, height, background));
+                    history.clear();
+                    canvasResized();
+                    shared = new SharedCanvas(client, document,
+                            layers.getCanvas(document.getLayer(0)));
+                }
+
+                @Override
+                public void tilesReceived(int[] indices, int[][] pixels) {
+                    shared.receivedTiles(indices, pixels);
+                    drawShared();
+                }
+
+                @Override
+                public void operationReceived(CanvasProtocol.Operation op) {
+                    shared.received(op);
+                    drawShared();
+                }
+
+                @Override
+                public void acknowledged(long sequence) {
+                    shared.acknowledged();
+                    drawShared();
+                }
+
+                @Override
+                public void caughtUp(long sequence) {
+                    status("Caught up with the shared canvas at message {0}",
+                            sequence);
+                }
+
+                @Override
+                public void disconnected(IOException ex) {
+                    stopSharing();
+                    Logger.getLogger(PaintingComponent.class.getName()).log(
+                            Level.WARNING, "Stopped sharing the canvas", ex);
+                }
+            };
 
     /**
-     * Initializes the mouse listeners for the component
+     * Creates a blank canvas and initializes the mouse listeners for the
+     * component. Memory is only used for the parts of the canvas that are
+     * drawn on, so the canvas may be much larger than the screen.
+     *
+     * @param width the width of the canvas
+     * @param height the height of the canvas
      */
-    public PaintingComponent() {
+    public PaintingComponent(int width, int height) {
+        setDocument(new Document(width, height, bgColor.getRGB()));
+        registerTool(ERASER, new StrokeTool(ERASER));
+        registerTool(PENCIL, new StrokeTool(PENCIL));
+        for (byte t = LINE; t <= PENTAGON; t++) {
+            registerTool(t, new ShapeTool(t));
+        }
+        registerTool(LINE_REPEATER, new StrokeTool(LINE_REPEATER));
+        registerTool(FILL, new FillTool());
+        registerTool(SELECT, selectTool);
         addMouseListener(new PaintingComponent.ClickListener());
         addMouseMotionListener(new PaintingComponent.DragListener());
+        addMouseWheelListener(new PaintingComponent.WheelListener());
+    }
+
+    /**
+     * Reports a changed setting to the log and the flight recorder. The log
+     * records are at the CONFIG level, so they are not printed unless the
+     * logging configuration asks for them.
+     *
+     * @param name the name of the setting
+     * @param value its new value
+     */
+    private static void setting(String name, Object value) {
+        Logger.getLogger(PaintingComponent.class.getName()).log(Level.CONFIG,
+                "{0}: {1}", new Object[]{name, value});
+        EventRecorder.get().setting(name, String.valueOf(value));
+    }
+
+    /**
+     * Reports what happened to a file or a layer to the log
+     *
+     * @param message the message, with {0} where the parameter goes
+     * @param parameter the file or the name of the layer, or null
+     */
+    private static void status(String message, Object parameter) {
+        Logger.getLogger(PaintingComponent.class.getName()).log(Level.INFO,
+                message, parameter);
+    }
+
+    /**
+     * Creates a store that keeps the canvas pixels in a memory-mapped file if
+     * the paint.offheap system property is true
+     *
+     * @return the store, or null to keep the pixels on the heap
+     */
+    private static MappedTileStore createTileStore() {
+        if (Boolean.getBoolean("paint.offheap")) {
+            try {
+                return new MappedTileStore(
+                        new File(System.getProperty("java.io.tmpdir")));
+            } catch (IOException ex) {
+                Logger.getLogger(PaintingComponent.class.getName())
+                        .log(Level.WARNING, null, ex);
+            }
+        }
+        return null;
     }
 
     /**
-     * ClickListener is used only for mousePressed
+     * ClickListener handles mousePressed and mouseReleased. Every press
+     * starts an edit that can be undone, which the release ends, unless an
+     * image is loading or filters are being applied. The middle button pans
+     * the canvas instead. The journal records where the mouse was on the
+     * component, and the tools are given the canvas pixel under it.
      */
     private class ClickListener extends MouseAdapter {
 
         @Override
         public void mousePressed(MouseEvent e) {
-            //Only continue if the graphics context exists
-            if (g2 != null) {
-                g2.setColor(primaryColor);
-                oldX = e.getX();
-                oldY = e.getY();
-
-                //The pencil and eraser do not need to preserve the image
-                //Every other tool requires a previousImage to be saved
-                //and repainted upon dragging.
-                if (drawMode > 1) {
-                    prevImage = deepCopy(image);
-                }
+            if (SwingUtilities.isMiddleMouseButton(e)) {
+                panFrom = e.getLocationOnScreen();
+                return;
+            }
+            if (panFrom != null || busy()) {
+                return;
+            }
+            latency.input(drawMode);
+            journal(InputJournal.PRESS, e.getX(), e.getY());
+            beginEdit();
+            tool().press(context, toCanvas(e.getX()), toCanvas(e.getY()));
+            frameTimer.start();
+        }
 
-                //If the eraser is selected, we can erase with one click
-                if (drawMode == 0) {
-                    g2.setColor(bgColor);
-                    int ewidth = (int) (10 * lineThickness);
-                    g2.setColor(bgColor);
-                    g2.fill(new Rectangle(oldX - ewidth / 2,
-                            oldY - ewidth / 2, ewidth, ewidth));
-                    repaint();
+        @Override
+        public void mouseReleased(MouseEvent e) {
+            if (panFrom != null) {
+                if (SwingUtilities.isMiddleMouseButton(e)) {
+                    panFrom = null;
                 }
+                return;
+            }
+            //The press was ignored
+            if (snapshot == null) {
+                return;
             }
+            latency.input(drawMode);
+            journal(InputJournal.RELEASE, e.getX(), e.getY());
+            frameTimer.stop();
+            tool().release(context, toCanvas(e.getX()), toCanvas(e.getY()));
+            endEdit();
+            latency.ended();
         }
     }
 
     /**
-     * DragListener accounts for mouse motion while a button is held down. The
-     * selected tool determines what happens. The eraser draws a white square
-     * and the pencil draws a short line. The line tool draws a line and
-     * repaints the preserved image each time so the user can see the line being
-     * drawn. The line repeater tool functions just like the line tool but
-     * doesn't erase the previous line. The rest of the tools draw shapes which
-     * may or may not be filled in with a second color.
+     * DragListener passes mouse motion while a button is held down to the
+     * selected tool, which should not allocate, since drags arrive many
+     * times per frame.
      */
     private class DragListener extends MouseMotionAdapter {
 
         @Override
         public void mouseDragged(MouseEvent e) {
-            if (g2 != null) {
-                int[] xpts;
-                int[] ypts;
-                switch (drawMode) {
-                    case ERASER:
-                        currentX = e.getX();
-                        currentY = e.getY();
-                        int ewidth = (int) (10 * lineThickness);
-                        g2.setColor(bgColor);
-                        g2.fill(new Rectangle(currentX - ewidth / 2,
-                                currentY - ewidth / 2, ewidth, ewidth));
-                        repaint();
-                        break;
-
-                    case PENCIL:
-                        repaint();
-                        currentX = e.getX();
-                        currentY = e.getY();
-                        g2.setStroke(new BasicStroke(lineThickness));
-                        g2.drawLine(oldX, oldY, currentX, currentY);
-                        oldX = currentX;
-                        oldY = currentY;
-                        break;
-
-                    case LINE:
-                        clear();
-                        currentX = e.getX();
-                        currentY = e.getY();
-                        g2.drawImage(prevImage, 0, 0, null);
-                        g2.drawLine(oldX, oldY, currentX, currentY);
-                        repaint();
-                        break;
-
-                    case BOX:
-                        clear();
-                        currentX = e.getX();
-                        currentY = e.getY();
-                        g2.drawImage(prevImage, 0, 0, null);
-
-                        if (currentX >= oldX && currentY >= oldY) {
-                            if (fill) {
-                                g2.setColor(secondaryColor);
-                                g2.fill(new Rectangle(oldX, oldY,
-                                        currentX - oldX, currentY - oldY));
-                                g2.setColor(primaryColor);
-                            }
-                            g2.draw(new Rectangle(oldX, oldY,
-                                    currentX - oldX, currentY - oldY));
-                        }
-
-                        if (currentX >= oldX && currentY <= oldY) {
-                            if (fill) {
-                                g2.setColor(secondaryColor);
-                                g2.fill(new Rectangle(oldX, currentY,
-                                        currentX - oldX, oldY - currentY));
-                                g2.setColor(primaryColor);
-                            }
-                            g2.draw(new Rectangle(oldX, currentY,
-                                    currentX - oldX, oldY - currentY));
-                        }
-
-                        if (currentX <= oldX && currentY >= oldY) {
-                            if (fill) {
-                                g2.setColor(secondaryColor);
-                                g2.fill(new Rectangle(currentX, oldY,
-                                        oldX - currentX, currentY - oldY));
-                                g2.setColor(primaryColor);
-                            }
-                            g2.draw(new Rectangle(currentX, oldY,
-                                    oldX - currentX, currentY - oldY));
-                        }
-                        if (currentY <= oldY && currentY <= oldY) {
-                            if (fill) {
-                                g2.setColor(secondaryColor);
-                                g2.fill(new Rectangle(currentX, currentY,
-                                        oldX - currentX, oldY - currentY));
-                                g2.setColor(primaryColor);
-                            }
-                            g2.draw(new Rectangle(currentX, currentY,
-                                    oldX - currentX, oldY - currentY));
-                        }
-                        repaint();
-                        break;
-
-                    case ELLIPSE:
-                        clear();
-                        currentX = e.getX();
-                        currentY = e.getY();
-                        g2.drawImage(prevImage, 0, 0, null);
-
-                        if (currentX >= oldX && currentY >= oldY) {
-                            if (fill) {
-                                g2.setColor(secondaryColor);
-                                g2.fill(new Ellipse2D.Double(oldX, oldY,
-                                        currentX - oldX, currentY - oldY));
-                                g2.setColor(primaryColor);
-                            }
-                            g2.draw(new Ellipse2D.Double(oldX, oldY,
-                                    currentX - oldX, currentY - oldY));
-                        }
-
-                        if (currentX >= oldX && currentY <= oldY) {
-                            if (fill) {
-                                g2.setColor(secondaryColor);
-                                g2.fill(new Ellipse2D.Double(oldX, currentY,
-                                        currentX - oldX, oldY - currentY));
-                                g2.setColor(primaryColor);
-                            }
-                            g2.draw(new Ellipse2D.Double(oldX, currentY,
-                                    currentX - oldX, oldY - currentY));
-                        }
-
-                        if (currentX <= oldX && currentY >= oldY) {
-                            if (fill) {
-                                g2.setColor(secondaryColor);
-                                g2.fill(new Ellipse2D.Double(currentX, oldY,
-                                        oldX - currentX, currentY - oldY));
-                                g2.setColor(primaryColor);
-                            }
-                            g2.draw(new Ellipse2D.Double(currentX, oldY,
-                                    oldX - currentX, currentY - oldY));
-                        }
-                        if (currentY <= oldY && currentY <= oldY) {
-                            if (fill) {
-                                g2.setColor(secondaryColor);
-                                g2.fill(new Ellipse2D.Double(currentX, currentY,
-                                        oldX - currentX, oldY - currentY));
-                                g2.setColor(primaryColor);
-                            }
-                            g2.draw(new Ellipse2D.Double(currentX, currentY,
-                                    oldX - currentX, oldY - currentY));
-                        }
-                        repaint();
-                        break;
-
-                    case ISOSCELES:
-                        clear();
-                        currentX = e.getX();
-                        currentY = e.getY();
-                        g2.drawImage(prevImage, 0, 0, null);
-                        xpts = new int[3];
-                        ypts = new int[3];
-                        xpts[0] = oldX;
-                        ypts[0] = oldY;
-                        xpts[1] = (oldX + currentX) / 2;
-                        ypts[1] = currentY;
-                        xpts[2] = currentX;
-                        ypts[2] = oldY;
-                        if (fill) {
-                            g2.setColor(secondaryColor);
-                            g2.fillPolygon(xpts, ypts, 3);
-                            g2.setColor(primaryColor);
-                        }
-                        g2.draw(new Polygon(xpts, ypts, 3));
-                        repaint();
-                        break;
-
-                    case RIGHT_TRIANGLE:
-                        clear();
-                        currentX = e.getX();
-                        currentY = e.getY();
-                        g2.drawImage(prevImage, 0, 0, null);
-                        xpts = new int[3];
-                        ypts = new int[3];
-                        xpts[0] = oldX;
-                        ypts[0] = oldY;
-                        xpts[1] = (oldX);
-                        ypts[1] = currentY;
-                        xpts[2] = currentX;
-                        ypts[2] = currentY;
-                        if (fill) {
-                            g2.setColor(secondaryColor);
-                            g2.fillPolygon(xpts, ypts, 3);
-                            g2.setColor(primaryColor);
-                        }
-                        g2.draw(new Polygon(xpts, ypts, 3));
-                        repaint();
-                        break;
-
-                    case DIAMOND:
-                        clear();
-                        currentX = e.getX();
-                        currentY = e.getY();
-                        g2.drawImage(prevImage, 0, 0, null);
-                        xpts = new int[4];
-                        ypts = new int[4];
-                        xpts[0] = (currentX + oldX) / 2;
-                        ypts[0] = oldY;
-                        xpts[1] = currentX;
-                        ypts[1] = (currentY + oldY) / 2;
-                        xpts[2] = (currentX + oldX) / 2;
-                        ypts[2] = currentY;
-                        xpts[3] = oldX;
-                        ypts[3] = (currentY + oldY) / 2;
-                        if (fill) {
-                            g2.setColor(secondaryColor);
-                            g2.fillPolygon(xpts, ypts, 4);
-                            g2.setColor(primaryColor);
-                        }
-                        g2.draw(new Polygon(xpts, ypts, 4));
-                        repaint();
-                        break;
-
-                    // The pentagon points were found 
-                    // geometrically on pencil and paper :)
-                    case PENTAGON:
-                        clear();
-                        currentX = e.getX();
-                        currentY = e.getY();
-
-                        g2.drawImage(prevImage, 0, 0, null);
-
-                        xpts = new int[5];
-                        ypts = new int[5];
-                        int a = (int) (Math.abs(currentX - oldX) / 2);
-
-                        if (currentX >= oldX) {
-                            xpts[0] = oldX + a;
-                            ypts[0] = oldY;
-                            xpts[1] = currentX;
-                            ypts[1] = oldY + (int) ((tan(36) / 2 * (currentY - oldY)));
-                            xpts[2] = (currentX - (int) ((2 * a - a
-                                    * tan(36)) * tan(18)));
-                            ypts[2] = currentY;
-                            xpts[3] = (oldX + (int) ((2 * a - a * tan(36)) * tan(18)));
-                            ypts[3] = currentY;
-                            xpts[4] = oldX;
-                            ypts[4] = oldY + (int) ((tan(36) / 2
-                                    * (currentY - oldY)));
-                        } else {
-                            xpts[0] = oldX - a;
-                            ypts[0] = oldY;
-                            xpts[1] = oldX;
-                            ypts[1] = oldY + (int) ((tan(36) / 2
-                                    * (currentY - oldY)));
-                            xpts[2] = oldX - (int) ((2 * a - a
-                                    * tan(36)) * tan(18));
-                            ypts[2] = currentY;
-                            xpts[3] = currentX + (int) ((2 * a - a
-                                    * tan(36)) * tan(18));
-                            ypts[3] = currentY;
-                            xpts[4] = currentX;
-                            ypts[4] = oldY + (int) ((tan(36) / 2
-                                    * (currentY - oldY)));
-                        }
-
-                        if (fill) {
-                            g2.setColor(secondaryColor);
-                            g2.fillPolygon(xpts, ypts, 5);
-                            g2.setColor(primaryColor);
-                        }
-                        g2.draw(new Polygon(xpts, ypts, 5));
-                        repaint();
-                        break;
-
-                    case LINE_REPEATER:
-                        currentX = e.getX();
-                        currentY = e.getY();
-                        g2.drawLine(oldX, oldY, currentX, currentY);
-                        repaint();
-                        break;
+            if (panFrom != null) {
+                pan(e.getXOnScreen(), e.getYOnScreen());
+                return;
+            }
+            if (snapshot == null) {
+                return;
+            }
+            latency.input(drawMode);
+            journal(InputJournal.DRAG, e.getX(), e.getY());
+            tool().drag(context, toCanvas(e.getX()), toCanvas(e.getY()));
+        }
+    }
+
+    /**
+     * WheelListener zooms in and out around the mouse when the wheel turns
+     * with control held down. Otherwise the wheel scrolls the canvas as
+     * usual.
+     */
+    private class WheelListener implements MouseWheelListener {
+
+        @Override
+        public void mouseWheelMoved(MouseWheelEvent e) {
+            if (e.isControlDown()) {
+                zoomAt(stepZoom(-e.getWheelRotation()), e.getX(), e.getY());
+            } else if (getParent() != null) {
+                getParent().dispatchEvent(SwingUtilities.convertMouseEvent(
+                        PaintingComponent.this, e, getParent()));
+            }
+        }
+    }
+
+    /**
+     * Lets the tools draw on the active layer and add operations to the
+     * document
+     */
+    private class ToolContext implements Tool.Context {
+
+        @Override
+        public Document getDocument() {
+            return document;
+        }
+
+        @Override
+        public int getLayer() {
+            return layers.getActive().getId();
+        }
+
+        @Override
+        public TiledCanvas getCanvas() {
+            return canvas;
+        }
+
+        @Override
+        public Color getPrimaryColor() {
+            return primaryColor;
+        }
+
+        @Override
+        public Color getSecondaryColor() {
+            return secondaryColor;
+        }
+
+        @Override
+        public float getLineThickness() {
+            return lineThickness;
+        }
+
+        @Override
+        public boolean isFill() {
+            return fill;
+        }
+
+        @Override
+        public int getFillTolerance() {
+            return fillTolerance;
+        }
+
+        @Override
+        public Color getEraseColor() {
+            return eraseColor();
+        }
+
+        @Override
+        public void markChanged(Rectangle r) {
+            PaintingComponent.this.markChanged(r);
+        }
+
+        @Override
+        public void markDirty(Rectangle r) {
+            PaintingComponent.this.markDirty(r);
+        }
+
+        @Override
+        public void addOperation(byte tool, int[] pts, int length) {
+            PaintingComponent.this.addOperation(tool, pts, length);
+        }
+
+        @Override
+        public void redraw(Rectangle r) {
+            DocumentRenderer.render(document, getLayer(), canvas, 1, r);
+            PaintingComponent.this.markChanged(r);
+        }
+
+        @Override
+        public boolean isShared() {
+            return client != null && layers.getActive().isBackground();
+        }
+    }
+
+    /**
+     * Makes a tool available under a number, replacing the tool that had
+     * that number, so that it can be chosen with setDrawMode
+     *
+     * @param number the number of the tool, from 0 to 127
+     * @param tool the tool
+     */
+    public void registerTool(byte number, Tool tool) {
+        if (number < 0) {
+            throw new IllegalArgumentException("Bad tool number: " + number);
+        }
+        if (number >= tools.length) {
+            tools = Arrays.copyOf(tools, number + 1);
+        }
+        if (number == drawMode && tools[number] != null) {
+            tools[number].deactivate(context);
+        }
+        tools[number] = tool;
+        latency.addTool(number, tool.getName());
+    }
+
+    /**
+     * @param number the number of a tool
+     * @return the tool, or null if no tool has that number
+     */
+    public Tool getTool(byte number) {
+        return number >= 0 && number < tools.length ? tools[number] : null;
+    }
+
+    //The selected tool
+    private Tool tool() {
+        return tools[drawMode];
+    }
+
+    /**
+     * Starts an edit by taking a snapshot of the canvas, which only shares
+     * its tiles rather than copying them
+     */
+    private void beginEdit() {
+        snapshot = canvas.snapshot();
+        editStart = document.size();
+        if (shared != null && context.isShared()) {
+            shared.beginChange(snapshot);
+        }
+    }
+
+    /**
+     * Ends an edit by adding the tiles it changed and the operations it added
+     * to the document to the undo history
+     */
+    private void endEdit() {
+        if (snapshot != null) {
+            history.add(new UndoHistory.Edit(canvas,
+                    canvas.changesSince(snapshot), editStart,
+                    document.size()));
+            snapshot = null;
+        }
+        drawShared();
+    }
+
+    /**
+     * Adds an operation of a tool with the current colors, thickness and fill
+     * to the document, on the active layer
+     *
+     * @param tool the tool
+     * @param pts the points of the operation as x, y pairs
+     * @param length the number of ints of pts to use
+     */
+    private void addOperation(byte tool, int[] pts, int length) {
+        int index = document.add(layers.getActive().getId(), tool,
+                primaryColor.getRGB(), secondaryColor.getRGB(), lineThickness,
+                fill, pts, length);
+        if (shared != null && context.isShared()
+                && CanvasProtocol.Operation.isShared(tool)) {
+            shared.send(index, new CanvasProtocol.Operation(tool,
+                    primaryColor.getRGB(), secondaryColor.getRGB(),
+                    lineThickness, fill, antialias, pts, length));
+        }
+    }
+
+    /**
+     * Deletes the selected shape and redraws the region it covered from the
+     * document
+     */
+    public void deleteSelection() {
+        int selection = selectTool.getSelection();
+        if (snapshot == null && !busy() && selection >= 0
+                && !context.isShared()
+                && document.isVisible(selection)) {
+            beginEdit();
+            Rectangle bounds = document.getBounds(selection);
+            document.delete(selection);
+            DocumentRenderer.render(document, layers.getActive().getId(),
+                    canvas, 1, bounds);
+            endEdit();
+            selectTool.clear();
+            markChanged(bounds);
+        }
+    }
+
+    /**
+     * Undoes the latest edit. Nothing is undone while an image is loading or
+     * filters are being applied, or while the canvas is shared, since the
+     * other clients may have drawn over the edit.
+     */
+    public void undo() {
+        journal(InputJournal.UNDO);
+        selectTool.clear();
+        if (snapshot == null && !busy() && client == null) {
+            UndoHistory.Edit e = history.undo();
+            if (e != null) {
+                for (int i = 0; i < e.getCanvasCount(); i++) {
+                    e.getCanvas(i).undo(e.getDelta(i));
+                    changed(e.getCanvas(i), e.getDelta(i).getBounds());
+                }
+                document.setSize(e.getOperationsBefore());
+                if (layers.resize()) {
+                    canvasResized();
                 }
             }
         }
     }
 
-    //helper method to calculate tangent of an angle in degrees
-    private double tan(int degrees) {
-        return Math.tan(degrees * Math.PI / 180);
+    /**
+     * Redoes the latest undone edit, except while an image is loading,
+     * filters are being applied or the canvas is shared
+     */
+    public void redo() {
+        journal(InputJournal.REDO);
+        selectTool.clear();
+        if (snapshot == null && !busy() && client == null) {
+            UndoHistory.Edit e = history.redo();
+            if (e != null) {
+                for (int i = 0; i < e.getCanvasCount(); i++) {
+                    e.getCanvas(i).redo(e.getDelta(i));
+                    changed(e.getCanvas(i), e.getDelta(i).getBounds());
+                }
+                document.setSize(e.getOperationsAfter());
+                if (layers.resize()) {
+                    canvasResized();
+                }
+            }
+        }
+    }
+
+    /**
+     * Draws every layer again from the document, using the current
+     * anti-aliasing setting for every operation. The redraw can be undone.
+     * A shared canvas is not drawn again, since its document does not have
+     * what the other clients drew.
+     */
+    public void redraw() {
+        if (snapshot == null && !busy() && client == null) {
+            int n = document.getLayerCount();
+            TiledCanvas[] canvases = new TiledCanvas[n];
+            TiledCanvas.Snapshot[] before = new TiledCanvas.Snapshot[n];
+            for (int i = 0; i < n; i++) {
+                canvases[i] = layers.getCanvas(document.getLayer(i));
+                before[i] = canvases[i].snapshot();
+            }
+            layers.render();
+            TiledCanvas.TileDelta[] deltas = new TiledCanvas.TileDelta[n];
+            for (int i = 0; i < n; i++) {
+                deltas[i] = canvases[i].changesSince(before[i]);
+            }
+            history.add(new UndoHistory.Edit(canvases, deltas,
+                    document.size(), document.size()));
+            repaint();
+        }
+    }
+
+    /**
+     * Resizes the canvas, keeping the drawing where it is. The canvas grows
+     * or shrinks at the right and bottom edges, and the resize can be undone.
+     * A shared canvas keeps the size of the server.
+     *
+     * @param width the new width
+     * @param height the new height
+     */
+    public void setCanvasSize(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Canvas size " + width + "x"
+                    + height);
+        }
+        if (journal != null) {
+            try {
+                journal.canvasSize(width, height);
+            } catch (IOException ex) {
+                journalFailed(ex);
+            }
+        }
+        if (snapshot == null && !busy() && client == null) {
+            deselect();
+            resizeLayers(width, height);
+        }
+    }
+
+    /**
+     * Resizes the document and every layer as one edit. Only the tile
+     * pointers of the canvases are made again, so this costs the same
+     * however much has been drawn.
+     *
+     * @param width the new width
+     * @param height the new height
+     */
+    private void resizeLayers(int width, int height) {
+        if (width == document.getWidth() && height == document.getHeight()) {
+            return;
+        }
+        int n = document.getLayerCount();
+        TiledCanvas[] canvases = new TiledCanvas[n];
+        TiledCanvas.Snapshot[] before = new TiledCanvas.Snapshot[n];
+        for (int i = 0; i < n; i++) {
+            canvases[i] = layers.getCanvas(document.getLayer(i));
+            before[i] = canvases[i].snapshot();
+        }
+        int start = document.size();
+        Rectangle right = new Rectangle(document.getWidth(), 0,
+                width - document.getWidth(), height);
+        Rectangle bottom = new Rectangle(0, document.getHeight(), width,
+                height - document.getHeight());
+        document.resize(width, height);
+        layers.resize();
+        //Operations that reached past the old edges show where it grew
+        for (int i = 0; i < n; i++) {
+            int id = document.getLayer(i).getId();
+            if (!right.isEmpty()) {
+                DocumentRenderer.render(document, id, canvases[i], 1, right);
+            }
+            if (!bottom.isEmpty()) {
+                DocumentRenderer.render(document, id, canvases[i], 1, bottom);
+            }
+        }
+        TiledCanvas.TileDelta[] deltas = new TiledCanvas.TileDelta[n];
+        for (int i = 0; i < n; i++) {
+            deltas[i] = canvases[i].changesSince(before[i]);
+        }
+        history.add(new UndoHistory.Edit(canvases, deltas, start,
+                document.size()));
+        canvasResized();
+        status("Canvas resized: {0}", width + "x" + height);
+    }
+
+    //Lets the scroll pane know the canvas changed size, and shows it
+    private void canvasResized() {
+        Dimension old = getPreferredSize();
+        setPreferredSize(viewSize());
+        revalidate();
+        repaint();
+        firePropertyChange("canvasSize", old, getPreferredSize());
+    }
+
+    /**
+     * @return how many screen pixels each canvas pixel covers
+     */
+    public float getZoom() {
+        return zoom;
+    }
+
+    /**
+     * Zooms in or out around the middle of the visible part of the canvas
+     *
+     * @param zoom how many screen pixels each canvas pixel covers, from
+     * MIN_ZOOM to MAX_ZOOM
+     */
+    public void setZoom(float zoom) {
+        Rectangle visible = getVisibleRect();
+        zoomAt(zoom, visible.x + visible.width / 2,
+                visible.y + visible.height / 2);
+    }
+
+    /**
+     * Zooms in or out by a step. The steps are powers of the square root of
+     * two, so every other one shows the canvas at a power of two.
+     *
+     * @param steps how many steps to zoom in, or out if negative
+     */
+    public void zoomBy(int steps) {
+        setZoom(stepZoom(steps));
+    }
+
+    //The zoom some steps from the current one
+    private float stepZoom(int steps) {
+        long step = Math.round(2 * Math.log(zoom) / Math.log(2)) + steps;
+        return (float) Math.pow(2, step / 2.0);
+    }
+
+    /**
+     * Zooms in or out, keeping the canvas pixel under a point of the
+     * component where it is on the screen
+     *
+     * @param z the new zoom, which is kept between MIN_ZOOM and MAX_ZOOM
+     * @param x the x coordinate of the point
+     * @param y the y coordinate of the point
+     */
+    private void zoomAt(float z, int x, int y) {
+        z = Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, z));
+        if (z == zoom) {
+            return;
+        }
+        journal(InputJournal.ZOOM, Float.floatToIntBits(z));
+        float old = zoom;
+        double canvasX = x / zoom, canvasY = y / zoom;
+        Rectangle visible = getVisibleRect();
+        zoom = z;
+        setPreferredSize(viewSize());
+        //The view is moved before the scroll pane lays it out again, so it
+        //does not jump
+        if (getParent() instanceof JViewport) {
+            JViewport viewport = (JViewport) getParent();
+            setSize(getPreferredSize());
+            Dimension extent = viewport.getExtentSize();
+            int vx = (int) Math.round(canvasX * zoom) - (x - visible.x);
+            int vy = (int) Math.round(canvasY * zoom) - (y - visible.y);
+            viewport.setViewPosition(new Point(
+                    Math.max(0, Math.min(getWidth() - extent.width, vx)),
+                    Math.max(0, Math.min(getHeight() - extent.height, vy))));
+        }
+        revalidate();
+        repaint();
+        setting("Zoom", Math.round(zoom * 100) + "%");
+        firePropertyChange("zoom", old, zoom);
+    }
+
+    //Scrolls the canvas by how far the mouse moved on the screen since the
+    //last call
+    private void pan(int screenX, int screenY) {
+        if (getParent() instanceof JViewport) {
+            JViewport viewport = (JViewport) getParent();
+            Point p = viewport.getViewPosition();
+            Dimension extent = viewport.getExtentSize();
+            p.translate(panFrom.x - screenX, panFrom.y - screenY);
+            p.x = Math.max(0, Math.min(getWidth() - extent.width, p.x));
+            p.y = Math.max(0, Math.min(getHeight() - extent.height, p.y));
+            viewport.setViewPosition(p);
+        }
+        panFrom.setLocation(screenX, screenY);
+    }
+
+    //The size of the canvas on the screen at the current zoom
+    private Dimension viewSize() {
+        return new Dimension(
+                Math.max(1, (int) Math.ceil(document.getWidth() * zoom)),
+                Math.max(1, (int) Math.ceil(document.getHeight() * zoom)));
+    }
+
+    //The canvas pixel under a component coordinate
+    private int toCanvas(int coordinate) {
+        return zoom == 1 ? coordinate
+                : (int) Math.floor(coordinate / zoom);
+    }
+
+    //The region of the component that shows a region of the canvas, grown
+    //by a pixel for the smoothing of a zoomed out view
+    private Rectangle toView(Rectangle r) {
+        if (zoom == 1) {
+            return r;
+        }
+        int x = (int) Math.floor(r.x * zoom) - 1;
+        int y = (int) Math.floor(r.y * zoom) - 1;
+        return new Rectangle(x, y,
+                (int) Math.ceil((r.x + r.width) * zoom) + 1 - x,
+                (int) Math.ceil((r.y + r.height) * zoom) + 1 - y);
+    }
+
+    /**
+     * Sets the most memory the undo history may use. The oldest edits are
+     * forgotten when it uses more.
+     *
+     * @param bytes the budget in bytes
+     */
+    public void setUndoBudget(long bytes) {
+        history.setByteBudget(bytes);
+    }
+
+    /**
+     * Marks a region of the active layer changed, so the layers are blended
+     * again there and it is repainted
+     *
+     * @param r the region
+     */
+    private void markChanged(Rectangle r) {
+        layers.invalidate(canvas, r);
+        latency.rasterized();
+        markDirty(r);
+    }
+
+    //Marks a region of any layer changed and repaints it
+    private void changed(TiledCanvas c, Rectangle r) {
+        layers.invalidate(c, r);
+        repaint(toView(r));
+    }
+
+    /**
+     * Adds a region of the image to the region that will be repainted. Every
+     * region marked before the repaint runs is merged into a single repaint.
+     *
+     * @param r the region
+     */
+    private void markDirty(Rectangle r) {
+        latency.invalidated();
+        if (dirtyRegion.isEmpty()) {
+            dirtyRegion.setBounds(r);
+        } else {
+            dirtyRegion.add(r);
+        }
+        if (!repaintScheduled) {
+            repaintScheduled = true;
+            SwingUtilities.invokeLater(repaintDirtyRegion);
+        }
     }
 
     /**
@@ -383,7 +1018,20 @@ public class PaintingComponent extends JPanel {
      */
     public void setFill(boolean fill) {
         this.fill = fill;
-        System.out.println("Fill: " + (fill ? "ON" : "OFF"));
+        setting("Fill", fill ? "ON" : "OFF");
+        journal(InputJournal.FILL, fill ? 1 : 0);
+    }
+
+    /**
+     * Sets how much each color channel of a pixel may differ from the pixel
+     * clicked with the fill tool for the fill to spread to it
+     *
+     * @param tolerance the tolerance, from 0 to 255
+     */
+    public void setFillTolerance(int tolerance) {
+        fillTolerance = tolerance;
+        setting("Fill tolerance", tolerance);
+        journal(InputJournal.FILL_TOLERANCE, tolerance);
     }
 
     /**
@@ -392,41 +1040,15 @@ public class PaintingComponent extends JPanel {
      * @param drawMode the draw mode
      */
     public void setDrawMode(byte drawMode) {
-        System.out.print("Draw mode set to ");
-        String s = "";
-        switch (drawMode) {
-            case ERASER:
-                s = "Eraser.";
-                break;
-            case PENCIL:
-                s = "Pencil.";
-                break;
-            case LINE:
-                s = "Line.";
-                break;
-            case BOX:
-                s = "Box.";
-                break;
-            case ELLIPSE:
-                s = "Ellipse.";
-                break;
-            case ISOSCELES:
-                s = "Isosceles Triangle.";
-                break;
-            case RIGHT_TRIANGLE:
-                s = "Right Triangle.";
-                break;
-            case DIAMOND:
-                s = "Diamond.";
-                break;
-            case PENTAGON:
-                s = "Pentagon.";
-                break;
-            case LINE_REPEATER:
-                s = "Line Reapter.";
-                break;
-        }
-        System.out.println(s);
+        Tool tool = getTool(drawMode);
+        if (tool == null) {
+            throw new IllegalArgumentException("No tool " + drawMode);
+        }
+        setting("Draw mode", tool.getName());
+        journal(InputJournal.TOOL, drawMode);
+        if (drawMode != this.drawMode) {
+            tool().deactivate(context);
+        }
         this.drawMode = drawMode;
     }
 
@@ -437,46 +1059,133 @@ public class PaintingComponent extends JPanel {
      */
     public void setAntiAliasing(boolean b) {
         antialias = b;
-        if (b) {
-            g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
-                    RenderingHints.VALUE_ANTIALIAS_ON);
-        } else {
-            g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
-                    RenderingHints.VALUE_ANTIALIAS_OFF);
-        }
-        System.out.println("Anti-Aliasing: " + (b ? "ON" : "OFF"));
+        layers.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                antialiasHint());
+        setting("Anti-aliasing", b ? "ON" : "OFF");
+        journal(InputJournal.ANTIALIAS, b ? 1 : 0);
+    }
+
+    //the rendering hint value for the current anti-aliasing setting
+    private Object antialiasHint() {
+        return antialias ? RenderingHints.VALUE_ANTIALIAS_ON
+                : RenderingHints.VALUE_ANTIALIAS_OFF;
+    }
+
+    //What the eraser paints on the active layer, or null if it makes pixels
+    //transparent
+    private Color eraseColor() {
+        return layers.getActive().isBackground() ? bgColor : null;
     }
 
     @Override
     public void paintComponent(Graphics g) {
-        //If the image is null, create a blank image
-        if (image == null) {
-            image = (BufferedImage) createImage(this.getSize().width,
-                    this.getSize().height);
-            g2 = (Graphics2D) image.getGraphics();
-            g2.setColor(primaryColor);
-            setAntiAliasing(antialias);
-            g2.setStroke(new BasicStroke(lineThickness));
-            clear();
+        //The layers are blended where they changed, and the copy of them
+        //on the screen is brought up to date there. Only the tiles that need
+        //to be repainted are drawn.
+        //Zoomed out, the smaller copies of the image are drawn instead, and
+        //zoomed in, the visible tiles are enlarged.
+        TiledCanvas image = layers.update();
+        layers.takeChanged(displayChanged);
+        display.invalidate(displayChanged);
+        pyramid.invalidate(displayChanged);
+        if (zoom == 1) {
+            display.draw(g, image, getVisibleRect(),
+                    getGraphicsConfiguration());
+        } else if (zoom < 1) {
+            pyramid.draw((Graphics2D) g, image, zoom);
+        } else {
+            Graphics2D zg = (Graphics2D) g.create();
+            zg.scale(zoom, zoom);
+            image.draw(zg);
+            zg.dispose();
+        }
+
+        //Draw what the tool shows on top of the image, such as the shape
+        //being dragged or the selection
+        Graphics2D pg = (Graphics2D) g.create();
+        pg.scale(zoom, zoom);
+        pg.setRenderingHint(RenderingHints.KEY_ANTIALIASING, antialiasHint());
+        tool().paint(context, pg);
+        pg.dispose();
+
+        //The input drawn so far is now on the screen
+        latency.presented();
+        if (latencyOverlay) {
+            drawOverlay((Graphics2D) g);
+        }
+        //The first frame is reported, so the time the program takes to
+        //start can be measured and the work left out of startup can begin
+        if (!painted) {
+            painted = true;
+            firePropertyChange("painted", false, true);
+        }
+    }
+
+    /**
+     * Shows or hides the input latency of the current tool and the frame
+     * rate over the top left corner of the visible canvas. The latencies are
+     * counted again from when it is shown.
+     *
+     * @param b whether to show the overlay
+     */
+    public void setLatencyOverlay(boolean b) {
+        latencyOverlay = b;
+        if (b) {
+            latency.reset();
+            overlayTimer.start();
+        } else {
+            overlayTimer.stop();
         }
+        repaint(overlayBounds());
+        setting("Latency overlay", b ? "ON" : "OFF");
+    }
+
+    /**
+     * @return the input latencies of the tools
+     */
+    public LatencyMonitor getLatencyMonitor() {
+        return latency;
+    }
 
-        g2.setColor(primaryColor);
-        g.drawImage(image, 0, 0, null);
+    //Where the overlay is drawn, which stays in place when the canvas is
+    //scrolled
+    private Rectangle overlayBounds() {
+        Rectangle r = new Rectangle(OVERLAY_BOUNDS);
+        Rectangle visible = getVisibleRect();
+        r.translate(visible.x, visible.y);
+        return r;
     }
 
-    //This code was taken from:
-    //http://stackoverflow.com/questions/3514158/how-do-you-clone-a-bufferedimage
     /**
-     * Copies one image into another (rather than pointing from a normal assign)
+     * Draws the 50th and 99th percentile and the largest latency of the
+     * current tool, to the canvas and to the screen, and the frame rate
      *
-     * @param bi the bufferedImage to be copied
-     * @return a copy of the image
+     * @param graphics the graphics context of the component
      */
-    private static BufferedImage deepCopy(BufferedImage bi) {
-        ColorModel cm = bi.getColorModel();
-        boolean isAlphaPremultiplied = cm.isAlphaPremultiplied();
-        WritableRaster raster = bi.copyData(null);
-        return new BufferedImage(cm, raster, isAlphaPremultiplied, null);
+    private void drawOverlay(Graphics2D graphics) {
+        Graphics2D g = (Graphics2D) graphics.create();
+        Rectangle r = overlayBounds();
+        g.setColor(OVERLAY_BACKGROUND);
+        g.fill(r);
+        g.setColor(Color.WHITE);
+        g.setFont(OVERLAY_FONT);
+        g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+                RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+        int lineHeight = g.getFontMetrics().getHeight();
+        int x = r.x + 6, y = r.y + 4 + g.getFontMetrics().getAscent();
+        g.drawString(String.format("%s  %.0f fps", tool().getName(),
+                latency.getFrameRate()), x, y);
+        for (int stage = 0; stage < LatencyMonitor.STAGE_NAMES.length;
+                stage++) {
+            LatencyHistogram h = latency.getHistogram(drawMode, stage);
+            y += lineHeight;
+            g.drawString(String.format(
+                    "%-6s p50 %5.1f  p99 %5.1f  max %5.1f ms",
+                    LatencyMonitor.STAGE_NAMES[stage],
+                    h.getPercentile(0.5) / 1e6, h.getPercentile(0.99) / 1e6,
+                    h.getMax() / 1e6), x, y);
+        }
+        g.dispose();
     }
 
     /**
@@ -486,64 +1195,629 @@ public class PaintingComponent extends JPanel {
      */
     public void setLineThickness(float f) {
         lineThickness = f;
-        g2.setStroke(new BasicStroke(f));
-        System.out.println("Line thickness set to " + (int) f);
+        setting("Line thickness", (int) f);
+        journal(InputJournal.THICKNESS, Float.floatToIntBits(f));
+    }
+
+    /**
+     * @return the file chooser of the dialogs, which is built the first
+     * time it is needed
+     */
+    private JFileChooser fileChooser() {
+        if (chooser == null) {
+            chooser = new JFileChooser("C:/");
+            qualitySlider = new JSlider(0, 100, 75);
+            qualitySlider.setBorder(
+                    BorderFactory.createTitledBorder("Compression quality"));
+            qualitySlider.setMajorTickSpacing(25);
+            qualitySlider.setPaintLabels(true);
+        }
+        return chooser;
+    }
+
+    /**
+     * Builds the dialogs ahead of time, so the first one opens as quickly as
+     * the others. The program starts without them, and builds them once its
+     * window is showing.
+     */
+    public void prepareDialogs() {
+        fileChooser();
     }
 
     /**
-     * Loads an image by prompting the user
+     * Loads an image by prompting the user. The image is decoded in the
+     * background and drawn as it arrives, so the canvas can be scrolled and
+     * zoomed while a large image is still loading. Nothing can be drawn,
+     * undone or redone until it is loaded, since the bands still to come
+     * would be drawn over it.
      *
      * @throws IOException file not found
      */
     public void load() throws IOException {
-        BufferedImage tmpImage;
+        JFileChooser jfc = fileChooser();
         int status = jfc.showOpenDialog(this);
         File file = jfc.getSelectedFile();
         if (status == JFileChooser.APPROVE_OPTION) {
-            prevImage = deepCopy(image);
-            clear();
-            tmpImage = ImageIO.read(file);
-            g2.drawImage(tmpImage, 0, 0, null);
-            repaint();
-            System.out.println("Image Opened: " + file.toString());
+            //Only one image is loaded at a time, and the filters would be
+            //put in place over it
+            cancelFilters();
+            if (loader != null) {
+                loader.cancel();
+                finishLoad();
+            }
+            loader = ImageLoader.open(file, loadListener);
+            loadFile = file;
+            loader.start();
         }
         if (status == JFileChooser.CANCEL_OPTION) {
-            System.out.println("Open canceled.");
+            status("Open canceled", null);
+        }
+    }
+
+    /**
+     * Adds the loaded image to the undo history as one edit
+     */
+    private void finishLoad() {
+        if (loadSnapshot != null) {
+            TiledCanvas.TileDelta delta = loadCanvas.changesSince(loadSnapshot);
+            history.add(new UndoHistory.Edit(loadCanvas, delta, loadStart,
+                    document.size()));
+            shareTiles(loadCanvas, delta.getBounds());
+            loadSnapshot = null;
+            loadCanvas = null;
         }
+        loader = null;
+        drawShared();
     }
 
     /**
-     * Saves an image by prompting the user
+     * Saves an image by prompting the user for a file, a format and a
+     * compression quality. The image is written in the background from a
+     * snapshot of the layers blended together, so drawing can continue
+     * during the save.
      *
      * @throws IOException file not found
      */
     public void save() throws IOException {
-        jfc.setSelectedFile(new File("untitled." + saveExtension));
+        save(1);
+    }
+
+    /**
+     * Saves an image of the document drawn again at a larger or smaller size.
+     * Lines and shapes stay sharp at any scale since they are drawn from the
+     * document rather than scaled from the canvas pixels.
+     *
+     * @param scale the size of the image relative to the canvas
+     * @throws IOException file not found
+     */
+    public void export(double scale) throws IOException {
+        save(scale);
+    }
+
+    //Prompts for a file and saves the canvas at a scale
+    private void save(double scale) throws IOException {
+        JFileChooser jfc = fileChooser();
+        String extension = saveFormat.getExtensions()[0];
+        jfc.setSelectedFile(new File("untitled." + extension));
+        for (FileNameExtensionFilter f : SAVE_FORMATS) {
+            jfc.addChoosableFileFilter(f);
+        }
+        jfc.setFileFilter(saveFormat);
+        jfc.setAccessory(qualitySlider);
         int status = jfc.showSaveDialog(this);
+        if (jfc.getFileFilter() instanceof FileNameExtensionFilter) {
+            saveFormat = (FileNameExtensionFilter) jfc.getFileFilter();
+        }
+        jfc.setAccessory(null);
+        jfc.resetChoosableFileFilters();
         if (status == JFileChooser.APPROVE_OPTION) {
-            ImageIO.write(image, saveExtension, new File(jfc.getSelectedFile().toString() + "." + saveExtension));
-            System.out.println("Image saved: "
-                    + jfc.getSelectedFile().toString());
+            extension = saveFormat.getExtensions()[0];
+            File file = jfc.getSelectedFile();
+            if (!saveFormat.accept(file)) {
+                file = new File(file.toString() + "." + extension);
+            }
+            setSaveProgress(0);
+            TiledCanvas.Snapshot image = scale == 1
+                    ? layers.update().snapshot()
+                    : renderScaled(scale).snapshot();
+            new ImageSaver(image, file, extension,
+                    qualitySlider.getValue() / 100f, saveListener).start();
         }
         if (status == JFileChooser.CANCEL_OPTION) {
-            System.out.println("Save canceled.");
+            status("Save canceled", null);
+        }
+    }
+
+    /**
+     * Draws the document on a new canvas. If its tiles are in a scratch file
+     * of their own, the file is closed once they are drawn, and they can
+     * still be read.
+     *
+     * @param scale the size of the canvas relative to the document
+     * @return the canvas
+     * @throws IOException if the scratch file cannot be closed
+     */
+    private TiledCanvas renderScaled(double scale) throws IOException {
+        MappedTileStore store = createTileStore();
+        TiledCanvas scaled = new TiledCanvas(
+                (int) Math.ceil(document.getWidth() * scale),
+                (int) Math.ceil(document.getHeight() * scale),
+                BufferedImage.TYPE_INT_RGB, bgColor, store);
+        scaled.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                antialiasHint());
+        try {
+            DocumentRenderer.render(document, scaled, scale);
+        } finally {
+            if (store != null) {
+                store.close();
+            }
+        }
+        return scaled;
+    }
+
+    /**
+     * Saves the document by prompting the user for a file. Unlike an image,
+     * the document can be drawn again at any size after it is opened.
+     *
+     * @throws IOException if the file cannot be written
+     */
+    public void saveDocument() throws IOException {
+        JFileChooser jfc = fileChooser();
+        jfc.setSelectedFile(new File("untitled.spd"));
+        jfc.setFileFilter(DOCUMENT_FORMAT);
+        int status = jfc.showSaveDialog(this);
+        jfc.resetChoosableFileFilters();
+        if (status == JFileChooser.APPROVE_OPTION) {
+            File file = jfc.getSelectedFile();
+            if (!DOCUMENT_FORMAT.accept(file)) {
+                file = new File(file.toString() + ".spd");
+            }
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(file)));
+            try {
+                if (shared != null) {
+                    shared.addToDocument();
+                }
+                document.write(out);
+            } finally {
+                out.close();
+            }
+            status("Document saved: {0}", file);
+        }
+        if (status == JFileChooser.CANCEL_OPTION) {
+            status("Save canceled", null);
+        }
+    }
+
+    /**
+     * Opens a document by prompting the user, replacing the layers and
+     * forgetting the undo history. A shared canvas stops being shared. Each
+     * layer is drawn from the document in parallel, one tile per task.
+     *
+     * @throws IOException if the file cannot be read or is not a document
+     */
+    public void openDocument() throws IOException {
+        JFileChooser jfc = fileChooser();
+        jfc.setFileFilter(DOCUMENT_FORMAT);
+        int status = jfc.showOpenDialog(this);
+        jfc.resetChoosableFileFilters();
+        if (status == JFileChooser.APPROVE_OPTION) {
+            File file = jfc.getSelectedFile();
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file)));
+            Document d;
+            try {
+                d = Document.read(in);
+            } finally {
+                in.close();
+            }
+            if (loader != null) {
+                loader.cancel();
+                finishLoad();
+            }
+            disconnect();
+            setDocument(d);
+            layers.render();
+            history.clear();
+            revalidate();
+            repaint();
+            status("Document opened: {0}", file);
+        }
+        if (status == JFileChooser.CANCEL_OPTION) {
+            status("Open canceled", null);
+        }
+    }
+
+    /**
+     * Sets the progress of the save, which is a bound property so that the
+     * progress can be shown
+     *
+     * @param percent the progress from 0 to 100, or -1 if not saving
+     */
+    private void setSaveProgress(int percent) {
+        int old = saveProgress;
+        saveProgress = percent;
+        firePropertyChange("saveProgress", old, percent);
+    }
+
+    /**
+     * Applies filters to the whole active layer as one edit. The filters run
+     * in the background on a copy of the layer, spread over every core, and
+     * filters that can share a pass over the tiles do. The canvas can be
+     * scrolled and zoomed meanwhile, but nothing can be drawn, undone or
+     * redone until the filtered layer is put in place.
+     *
+     * @param filters the filters, in order
+     */
+    public void applyFilters(Filter... filters) {
+        if (snapshot == null && !busy() && filters.length > 0) {
+            filterCodes = Filter.encode(filters);
+            filterTask = new FilterTask(canvas, tileStore, filters,
+                    filterListener);
+            filterTask.start();
+        }
+    }
+
+    //Stops the filters being applied, if any, without changing the canvas
+    private void cancelFilters() {
+        if (filterTask != null) {
+            filterTask.cancel();
+            filterTask = null;
         }
     }
 
+    //Whether an image is loading or filters are being applied, so the
+    //canvas must not be changed
+    private boolean busy() {
+        return loader != null || filterTask != null;
+    }
+
     /**
-     * Wipe the screen
+     * Wipe the active layer
      */
     public void clear() {
-        if (g2 == null) {
+        journal(InputJournal.CLEAR);
+        selectTool.clear();
+        if (snapshot == null && !busy()) {
+            beginEdit();
+            canvas.clear();
+            addOperation(Document.CLEAR, new int[0], 0);
+            endEdit();
+            changed(canvas, new Rectangle(canvas.getWidth(),
+                    canvas.getHeight()));
+        }
+    }
+
+    /**
+     * Starts or stops recording the input in a journal. When it starts, the
+     * user is prompted for the file.
+     *
+     * @param b whether to record
+     * @throws IOException if the journal cannot be written
+     */
+    public void setRecording(boolean b) throws IOException {
+        if (b && journal == null) {
+            JFileChooser jfc = fileChooser();
+            jfc.setSelectedFile(new File("input.spj"));
+            jfc.setFileFilter(JOURNAL_FORMAT);
+            int status = jfc.showSaveDialog(this);
+            jfc.resetChoosableFileFilters();
+            if (status == JFileChooser.APPROVE_OPTION) {
+                File file = jfc.getSelectedFile();
+                if (!JOURNAL_FORMAT.accept(file)) {
+                    file = new File(file.toString() + ".spj");
+                }
+                startRecording(file);
+            }
+        } else if (!b && journal != null) {
+            InputJournal j = journal;
+            journal = null;
+            j.close();
+            firePropertyChange("recording", true, false);
+            status("Recording stopped", null);
+        }
+    }
+
+    /**
+     * Starts recording the input in a journal, beginning with the current
+     * settings so that a replay starts from them
+     *
+     * @param file the journal
+     * @throws IOException if the journal cannot be written
+     */
+    public void startRecording(File file) throws IOException {
+        if (journal != null || replayer != null) {
+            return;
+        }
+        journal = new InputJournal(file, document.getWidth(),
+                document.getHeight());
+        journal(InputJournal.TOOL, drawMode);
+        journal(InputJournal.PRIMARY_COLOR, primaryColor.getRGB());
+        journal(InputJournal.SECONDARY_COLOR, secondaryColor.getRGB());
+        journal(InputJournal.THICKNESS, Float.floatToIntBits(lineThickness));
+        journal(InputJournal.FILL, fill ? 1 : 0);
+        journal(InputJournal.FILL_TOLERANCE, fillTolerance);
+        journal(InputJournal.ANTIALIAS, antialias ? 1 : 0);
+        journal(InputJournal.ZOOM, Float.floatToIntBits(zoom));
+        firePropertyChange("recording", false, true);
+        status("Recording input to {0}", file);
+    }
+
+    /**
+     * @return whether the input is being recorded
+     */
+    public boolean isRecording() {
+        return journal != null;
+    }
+
+    /**
+     * Replays a journal by prompting the user for it, in real time or as fast
+     * as possible. The journal is replayed onto the current canvas, so a
+     * replay onto a blank canvas reproduces what was drawn when it was
+     * recorded. Recording stops first, since the replayed input would be
+     * recorded again.
+     *
+     * @throws IOException if the file cannot be read or is not a journal
+     */
+    public void replayInput() throws IOException {
+        JFileChooser jfc = fileChooser();
+        jfc.setFileFilter(JOURNAL_FORMAT);
+        jfc.setAccessory(fastReplayCheckBox);
+        int status = jfc.showOpenDialog(this);
+        jfc.setAccessory(null);
+        jfc.resetChoosableFileFilters();
+        if (status == JFileChooser.APPROVE_OPTION) {
+            setRecording(false);
+            if (replayer != null) {
+                replayer.cancel();
+            }
+            replayer = new InputReplayer(jfc.getSelectedFile(), this,
+                    !fastReplayCheckBox.isSelected(), replayListener);
+            replayer.start();
+            status("Replaying {0}", jfc.getSelectedFile());
+        }
+    }
+
+    //Called by a replay of a journal as it starts and ends
+    void setReplaying(boolean b) {
+        replaying = b;
+    }
+
+    //Lets the tool draw at a frame of a journal being replayed
+    void drawBufferedPoints() {
+        tool().frame(context);
+    }
+
+    //Records a mouse event in the journal, if the input is being recorded
+    private void journal(byte type, int x, int y) {
+        if (journal != null) {
+            try {
+                journal.mouse(type, x, y);
+            } catch (IOException ex) {
+                journalFailed(ex);
+            }
+        }
+    }
+
+    //Records a setting in the journal, if the input is being recorded
+    private void journal(byte type, int value) {
+        if (journal != null) {
+            try {
+                journal.setting(type, value);
+            } catch (IOException ex) {
+                journalFailed(ex);
+            }
+        }
+    }
+
+    //Records an action in the journal, if the input is being recorded
+    private void journal(byte type) {
+        if (journal != null) {
+            try {
+                journal.action(type);
+            } catch (IOException ex) {
+                journalFailed(ex);
+            }
+        }
+    }
+
+    //Stops recording after the journal could not be written
+    private void journalFailed(IOException ex) {
+        Logger.getLogger(PaintingComponent.class.getName())
+                .log(Level.SEVERE, null, ex);
+        try {
+            setRecording(false);
+        } catch (IOException closeEx) {
+            //The journal is already broken
+        }
+    }
+
+    /**
+     * Shares the background layer with the other clients of a CanvasServer.
+     * The canvas is replaced by the shared one as soon as the server sends
+     * it, and from then on what is drawn on the background layer is sent to
+     * the server and what the other clients draw is drawn on it. Everything
+     * is drawn in the order the server numbers it, so every client ends up
+     * with the same canvas, and what the other clients draw during an edit
+     * or a load waits until it ends. The other layers stay local. The
+     * canvas cannot be resized, edits cannot be undone and shapes on the
+     * background layer cannot be moved or deleted while it is shared, since
+     * the other clients may have drawn over them.
+     *
+     * @param host the host of the server
+     * @param port the port of the server
+     * @throws IOException if the server cannot be reached
+     */
+    public void connect(String host, int port) throws IOException {
+        disconnect();
+        client = CanvasClient.connect(host, port, clientListener);
+        firePropertyChange("shared", false, true);
+        status("Sharing the canvas through {0}", host + ":" + port);
+    }
+
+    /**
+     * Stops sharing the canvas, keeping what was drawn on it. The edits made
+     * while it was shared cannot be undone.
+     */
+    public void disconnect() {
+        if (client != null) {
+            client.close();
+            stopSharing();
+            status("Stopped sharing the canvas", null);
+        }
+    }
+
+    //Keeps what was drawn on the shared canvas in the document. The edits
+    //made while it was shared are forgotten, as undoing them would undo
+    //what the other clients drew over them.
+    private void stopSharing() {
+        if (shared != null) {
+            shared.addToDocument();
+            shared = null;
+        }
+        client = null;
+        history.clear();
+        firePropertyChange("shared", true, false);
+    }
+
+    /**
+     * @return whether the background layer is shared through a server
+     */
+    public boolean isShared() {
+        return client != null;
+    }
+
+    //Sends the tiles of a region of the background layer to the server, if
+    //it is shared, after the layer changed in a way the operations added to
+    //the document do not describe
+    private void shareTiles(TiledCanvas c, Rectangle r) {
+        if (shared != null && c == layers.getCanvas(document.getLayer(0))) {
+            shared.sendTiles(r);
+        }
+    }
+
+    //Draws what the other clients drew on the background layer, unless an
+    //edit or a load of this client is in progress
+    private void drawShared() {
+        if (shared != null && snapshot == null && !busy()) {
+            Rectangle r = shared.draw();
+            if (r != null) {
+                TiledCanvas c = layers.getCanvas(document.getLayer(0));
+                changed(c, r.intersection(new Rectangle(c.getWidth(),
+                        c.getHeight())));
+            }
+        }
+    }
+
+    /**
+     * Replaces the document and makes blank layers for it, with the
+     * background layer active
+     *
+     * @param d the document
+     */
+    private void setDocument(Document d) {
+        cancelFilters();
+        document = d;
+        layers = new LayerStack(d, tileStore);
+        layers.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                antialiasHint());
+        canvas = layers.getActiveCanvas();
+        selectTool.clear();
+        setPreferredSize(viewSize());
+        firePropertyChange("layers", null, layers);
+    }
+
+    /**
+     * @return the layers of the document
+     */
+    public LayerStack getLayers() {
+        return layers;
+    }
+
+    /**
+     * Makes another layer the one the tools draw on
+     *
+     * @param index the position of the layer, counting up from the bottom
+     */
+    public void setActiveLayer(int index) {
+        if (snapshot == null && !busy() && index != layers.getActiveIndex()) {
+            deselect();
+            layers.setActive(index);
+            canvas = layers.getActiveCanvas();
+            status("Layer selected: {0}", layers.getActive().getName());
+        }
+    }
+
+    /**
+     * Adds a transparent layer above the active one and makes it active
+     */
+    public void addLayer() {
+        if (snapshot == null && !busy()) {
+            deselect();
+            Layer layer = layers.addLayer("Layer "
+                    + document.getLayerCount());
+            canvas = layers.getActiveCanvas();
+            firePropertyChange("layers", null, layers);
+            status("Layer added: {0}", layer.getName());
+        }
+    }
+
+    /**
+     * Removes the active layer, unless it is the background layer. Its
+     * operations stay in the document, so the edits made on it can still be
+     * undone, but it is no longer drawn.
+     */
+    public void removeLayer() {
+        if (snapshot == null && !busy()
+                && !layers.getActive().isBackground()) {
+            deselect();
+            String name = layers.getActive().getName();
+            layers.removeLayer(layers.getActiveIndex());
+            canvas = layers.getActiveCanvas();
+            firePropertyChange("layers", null, layers);
             repaint();
+            status("Layer removed: {0}", name);
         }
-        Color temp = g2.getColor();
-        g2.setColor(bgColor);
-        g2.fill(new Rectangle(this.getWidth(), this.getHeight()));
-        g2.setColor(temp);
+    }
+
+    /**
+     * Shows or hides a layer
+     *
+     * @param index the position of the layer
+     * @param visible whether to show it
+     */
+    public void setLayerVisible(int index, boolean visible) {
+        layers.setVisible(index, visible);
+        repaint();
+    }
+
+    /**
+     * Sets how much of a layer shows
+     *
+     * @param index the position of the layer
+     * @param opacity the opacity, from 0 to 255
+     */
+    public void setLayerOpacity(int index, int opacity) {
+        layers.setOpacity(index, opacity);
         repaint();
     }
 
+    /**
+     * Sets how a layer is blended onto the layers below it
+     *
+     * @param index the position of the layer
+     * @param mode the blend mode, one of the Compositor modes
+     */
+    public void setLayerMode(int index, int mode) {
+        layers.setMode(index, mode);
+        repaint();
+    }
+
+    //Clears the selection, which only applies to the active layer
+    private void deselect() {
+        tool().deactivate(context);
+    }
+
     /**
      * Sets the primary color
      *
@@ -551,7 +1825,8 @@ public class PaintingComponent extends JPanel {
      */
     public void setPrimaryColor(Color c) {
         primaryColor = c;
-        System.out.println("Primary color changed.");
+        setting("Primary color", String.format("#%08x", c.getRGB()));
+        journal(InputJournal.PRIMARY_COLOR, c.getRGB());
     }
 
     /**
@@ -561,6 +1836,7 @@ public class PaintingComponent extends JPanel {
      */
     public void setSecondaryColor(Color c) {
         secondaryColor = c;
-        System.out.println("Secondary color changed.");
+        setting("Secondary color", String.format("#%08x", c.getRGB()));
+        journal(InputJournal.SECONDARY_COLOR, c.getRGB());
     }
 }
@@ -0,0 +1,130 @@
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+
+/**
+ * The select tool, which selects the topmost line or shape of the active
+ * layer under the clicked point. The selection is outlined, and can be
+ * dragged to move it; the document draws it where it is dropped and the
+ * layer is drawn again where it was and is. Nothing is selected on a shared
+ * layer.
+ */
+public class SelectTool extends ToolAdapter {
+
+    private static final BasicStroke SELECTION_STROKE = new BasicStroke(1,
+            BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER, 10,
+            new float[]{4, 4}, 0);
+    //the selected operation, or -1, the point where the mouse was pressed
+    //and how far the selection has been dragged
+    private int selection = -1;
+    private int pressX, pressY;
+    private int moveX, moveY;
+    private final Rectangle bounds = new Rectangle();
+
+    @Override
+    public String getName() {
+        return PaintingComponent.TOOL_NAMES[PaintingComponent.SELECT];
+    }
+
+    @Override
+    public void press(Context c, int x, int y) {
+        deactivate(c);
+        //Moving a shape draws the layer again from the document
+        if (c.isShared()) {
+            return;
+        }
+        selection = c.getDocument().hitTest(x, y, c.getLayer());
+        pressX = x;
+        pressY = y;
+        moveX = 0;
+        moveY = 0;
+        if (selection >= 0) {
+            c.markDirty(selectionBounds(c));
+        }
+    }
+
+    @Override
+    public void drag(Context c, int x, int y) {
+        if (selection >= 0) {
+            c.markDirty(selectionBounds(c));
+            moveX = x - pressX;
+            moveY = y - pressY;
+            c.markDirty(selectionBounds(c));
+        }
+    }
+
+    @Override
+    public void release(Context c, int x, int y) {
+        //Move the dragged shape and draw the layer again where it was and is
+        if (selection >= 0 && (moveX != 0 || moveY != 0)) {
+            Document doc = c.getDocument();
+            Rectangle r = doc.getBounds(selection);
+            selection = doc.move(selection, moveX, moveY);
+            r.add(doc.getBounds(selection, bounds));
+            moveX = 0;
+            moveY = 0;
+            c.redraw(r);
+        }
+    }
+
+    @Override
+    public void paint(Context c, Graphics2D g) {
+        Document doc = c.getDocument();
+        if (selection < 0 || !doc.isVisible(selection)) {
+            return;
+        }
+        //Draw the selection where it is being dragged
+        if (moveX != 0 || moveY != 0) {
+            Graphics2D moved = (Graphics2D) g.create();
+            moved.translate(moveX, moveY);
+            DocumentRenderer.draw(moved, doc, selection, c.getEraseColor());
+            moved.dispose();
+        }
+        Rectangle r = selectionBounds(c);
+        g.setColor(Color.GRAY);
+        g.setStroke(SELECTION_STROKE);
+        g.drawRect(r.x, r.y, r.width - 1, r.height - 1);
+    }
+
+    /**
+     * Clears the selection and repaints where it was outlined
+     *
+     * @param c the component
+     */
+    @Override
+    public void deactivate(Context c) {
+        if (selection >= 0) {
+            c.markDirty(selectionBounds(c));
+            selection = -1;
+        }
+    }
+
+    /**
+     * Forgets the selection without repainting, as when the document
+     * changed under it
+     */
+    public void clear() {
+        selection = -1;
+    }
+
+    /**
+     * @return the selected operation, or -1 if there is none
+     */
+    public int getSelection() {
+        return selection;
+    }
+
+    /**
+     * @param c the component
+     * @return the bounds of the selected shape where it is being dragged,
+     * grown by a pixel for the selection outline. The same rectangle is
+     * returned each time.
+     */
+    private Rectangle selectionBounds(Context c) {
+        c.getDocument().getBounds(selection, bounds);
+        bounds.translate(moveX, moveY);
+        bounds.grow(1, 1);
+        return bounds;
+    }
+}
@@ -0,0 +1,129 @@
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Line2D;
+
+/**
+ * The outline of a line or shape tool, spanning from the point where the
+ * mouse was pressed to the current point. The shapes are kept and changed in
+ * place for each pair of points, so a tool can outline its shape for every
+ * frame without allocating. The shape returned is only valid until the
+ * outline is set again.
+ */
+public class ShapeOutline {
+
+    //The corners of the pentagon are placed with tan 36 and tan 18 degrees
+    private static final double TAN_36 = Math.tan(36 * Math.PI / 180);
+    private static final double TAN_18 = Math.tan(18 * Math.PI / 180);
+
+    private final Line2D.Float line = new Line2D.Float();
+    private final Rectangle box = new Rectangle();
+    private final Ellipse2D.Double ellipse = new Ellipse2D.Double();
+    private final Polygon polygon = new Polygon(new int[5], new int[5], 5);
+
+    /**
+     * Sets the outline of a tool between two points
+     *
+     * @param tool the tool
+     * @param oldX the x coordinate of the pressed point
+     * @param oldY the y coordinate of the pressed point
+     * @param currentX the x coordinate of the current point
+     * @param currentY the y coordinate of the current point
+     * @return the shape, or null if the tool does not draw a shape
+     */
+    public Shape set(byte tool, int oldX, int oldY, int currentX,
+            int currentY) {
+        int[] xpts = polygon.xpoints;
+        int[] ypts = polygon.ypoints;
+        //The bounding box of the shape
+        int left = Math.min(oldX, currentX);
+        int top = Math.min(oldY, currentY);
+        int width = Math.abs(currentX - oldX);
+        int height = Math.abs(currentY - oldY);
+        switch (tool) {
+            case PaintingComponent.LINE:
+                line.setLine(oldX, oldY, currentX, currentY);
+                return line;
+
+            case PaintingComponent.BOX:
+                box.setBounds(left, top, width, height);
+                return box;
+
+            case PaintingComponent.ELLIPSE:
+                ellipse.setFrame(left, top, width, height);
+                return ellipse;
+
+            case PaintingComponent.ISOSCELES:
+                xpts[0] = oldX;
+                ypts[0] = oldY;
+                xpts[1] = (oldX + currentX) / 2;
+                ypts[1] = currentY;
+                xpts[2] = currentX;
+                ypts[2] = oldY;
+                return polygon(3);
+
+            case PaintingComponent.RIGHT_TRIANGLE:
+                xpts[0] = oldX;
+                ypts[0] = oldY;
+                xpts[1] = (oldX);
+                ypts[1] = currentY;
+                xpts[2] = currentX;
+                ypts[2] = currentY;
+                return polygon(3);
+
+            case PaintingComponent.DIAMOND:
+                xpts[0] = (currentX + oldX) / 2;
+                ypts[0] = oldY;
+                xpts[1] = currentX;
+                ypts[1] = (currentY + oldY) / 2;
+                xpts[2] = (currentX + oldX) / 2;
+                ypts[2] = currentY;
+                xpts[3] = oldX;
+                ypts[3] = (currentY + oldY) / 2;
+                return polygon(4);
+
+            // The pentagon points were found
+            // geometrically on pencil and paper :)
+            case PaintingComponent.PENTAGON:
+                int a = (int) (Math.abs(currentX - oldX) / 2);
+                int side = (int) ((TAN_36 / 2 * (currentY - oldY)));
+                int inset = (int) ((2 * a - a * TAN_36) * TAN_18);
+
+                if (currentX >= oldX) {
+                    xpts[0] = oldX + a;
+                    ypts[0] = oldY;
+                    xpts[1] = currentX;
+                    ypts[1] = oldY + side;
+                    xpts[2] = currentX - inset;
+                    ypts[2] = currentY;
+                    xpts[3] = oldX + inset;
+                    ypts[3] = currentY;
+                    xpts[4] = oldX;
+                    ypts[4] = oldY + side;
+                } else {
+                    xpts[0] = oldX - a;
+                    ypts[0] = oldY;
+                    xpts[1] = oldX;
+                    ypts[1] = oldY + side;
+                    xpts[2] = oldX - inset;
+                    ypts[2] = currentY;
+                    xpts[3] = currentX + inset;
+                    ypts[3] = currentY;
+                    xpts[4] = currentX;
+                    ypts[4] = oldY + side;
+                }
+                return polygon(5);
+
+            default:
+                return null;
+        }
+    }
+
+    //The polygon with its first points set; its cached bounds are forgotten
+    private Polygon polygon(int n) {
+        polygon.npoints = n;
+        polygon.invalidate();
+        return polygon;
+    }
+}
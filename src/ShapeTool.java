@@ -0,0 +1,142 @@
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.Shape;
+
+/**
+ * The line and shape tools. A shape spans from the point where the mouse was
+ * pressed to the point it was dragged to. While it is dragged, it is only
+ * previewed on top of the canvas, and it is drawn on the canvas when the
+ * mouse is released. Shapes are filled in with the secondary color when fill
+ * is on and outlined with the primary color.
+ */
+public class ShapeTool extends ToolAdapter {
+
+    private final byte tool;
+    //the pressed point and the point the shape was dragged to
+    private int oldX, oldY, currentX, currentY;
+    //true while the shape is being dragged but not yet drawn
+    private boolean previewing = false;
+    private final ShapeOutline outline = new ShapeOutline();
+    private final Rectangle bounds = new Rectangle();
+    //the ends of the shape, for the document
+    private final int[] ends = new int[4];
+    //the colors the shape is drawn with, and whether it is filled
+    private Color lineColor, fillColor;
+    private boolean filled;
+    //the stroke is only made again when the thickness changes
+    private BasicStroke stroke;
+    private float strokeThickness = -1;
+    private final TiledCanvas.Painter shapePainter = new TiledCanvas.Painter() {
+        @Override
+        public void paint(Graphics2D g) {
+            drawShape(g);
+        }
+    };
+
+    /**
+     * @param tool one of the line and shape tools of PaintingComponent, from
+     * LINE to PENTAGON
+     */
+    public ShapeTool(byte tool) {
+        this.tool = tool;
+    }
+
+    @Override
+    public String getName() {
+        return PaintingComponent.TOOL_NAMES[tool];
+    }
+
+    @Override
+    public void press(Context c, int x, int y) {
+        oldX = x;
+        oldY = y;
+        previewing = false;
+    }
+
+    @Override
+    public void drag(Context c, int x, int y) {
+        //Repaint where the old preview was and where the new one will be
+        if (previewing) {
+            c.markDirty(shapeBounds(c));
+        }
+        currentX = x;
+        currentY = y;
+        previewing = true;
+        c.markDirty(shapeBounds(c));
+    }
+
+    @Override
+    public void release(Context c, int x, int y) {
+        //Commit the previewed shape to the canvas
+        if (previewing) {
+            previewing = false;
+            useSettings(c);
+            c.getCanvas().paint(shapeBounds(c), shapePainter);
+            c.markChanged(bounds);
+            ends[0] = oldX;
+            ends[1] = oldY;
+            ends[2] = currentX;
+            ends[3] = currentY;
+            c.addOperation(tool, ends, 4);
+        }
+    }
+
+    @Override
+    public void paint(Context c, Graphics2D g) {
+        if (previewing) {
+            useSettings(c);
+            drawShape(g);
+        }
+    }
+
+    /**
+     * Takes the colors, fill and stroke to draw the shape with from the
+     * component
+     *
+     * @param c the component
+     */
+    private void useSettings(Context c) {
+        lineColor = c.getPrimaryColor();
+        fillColor = c.getSecondaryColor();
+        filled = c.isFill() && tool != PaintingComponent.LINE;
+        float thickness = c.getLineThickness();
+        if (thickness != strokeThickness) {
+            stroke = new BasicStroke(thickness);
+            strokeThickness = thickness;
+        }
+    }
+
+    //Draws the shape with the settings last taken
+    private void drawShape(Graphics2D g) {
+        Shape shape = outline.set(tool, oldX, oldY, currentX, currentY);
+        if (shape == null) {
+            return;
+        }
+        g.setStroke(stroke);
+        if (filled) {
+            g.setColor(fillColor);
+            g.fill(shape);
+        }
+        g.setColor(lineColor);
+        g.draw(shape);
+    }
+
+    /**
+     * Returns the box spanned by the pressed point and the current point,
+     * grown so that the outline and its miter joins are included. The same
+     * rectangle is returned each time.
+     *
+     * @param c the component
+     * @return the bounds of the shape
+     */
+    private Rectangle shapeBounds(Context c) {
+        int pad = Document.outlinePad(c.getLineThickness());
+        bounds.setBounds(Math.min(oldX, currentX) - pad,
+                Math.min(oldY, currentY) - pad,
+                Math.abs(currentX - oldX) + 2 * pad,
+                Math.abs(currentY - oldY) + 2 * pad);
+        return bounds;
+    }
+}
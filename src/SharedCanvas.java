@@ -0,0 +1,305 @@
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The background layer of a painting component while it is shared through
+ * a CanvasServer. What is drawn here is shown at once and sent to the
+ * server, but the server may number it after what other clients drew at the
+ * same time, and the clients only end up with the same canvas if they all
+ * draw the messages in the order of their numbers. So the changes sent are
+ * kept until the server acknowledges them. When messages of other clients
+ * arrive first, the canvas goes back to how it was before the first change
+ * not yet acknowledged, the acknowledged changes and the messages are drawn
+ * in the order the server numbered them, and the changes not yet
+ * acknowledged are drawn again on top.
+ *
+ * The document gets the operations in the order they are first drawn here,
+ * and not the tiles the other clients send, so it does not describe the
+ * tiles those were drawn on. addToDocument adds images of them to it.
+ */
+public class SharedCanvas {
+
+    //an acknowledgement among the messages received
+    private static final Change ACK = new Change(null, null);
+    private final CanvasClient client;
+    private final Document document;
+    private final TiledCanvas canvas;
+    //the canvas with every message the server numbered before the changes
+    //of acknowledged, or null if the canvas has nothing it did not number;
+    //the acknowledged changes and then the sent ones drawn over it make the
+    //canvas
+    private TiledCanvas.Snapshot base;
+    private final List<Change> acknowledged = new ArrayList<Change>();
+    private final List<Change> sent = new ArrayList<Change>();
+    //the messages of other clients and the acknowledgements that arrived
+    //since the last draw, in order
+    private final List<Change> received = new ArrayList<Change>();
+    //the tiles the document does not describe
+    private final boolean[] undocumented;
+
+    /**
+     * A message: an operation, or the pixels of some tiles
+     */
+    private static class Change {
+
+        private final CanvasProtocol.Operation op;
+        //the index of the operation in the document, or -1 until it is added
+        private int index = -1;
+        //the pixels of each tile of the canvas, or null for the tiles the
+        //change does not replace
+        private final int[][] pixels;
+
+        private Change(CanvasProtocol.Operation op, int[][] pixels) {
+            this.op = op;
+            this.pixels = pixels;
+        }
+    }
+
+    /**
+     * @param client the connection to the server
+     * @param document the document, which only has the background layer of
+     * the server drawn on it so far
+     * @param canvas the canvas of the background layer
+     */
+    public SharedCanvas(CanvasClient client, Document document,
+            TiledCanvas canvas) {
+        this.client = client;
+        this.document = document;
+        this.canvas = canvas;
+        undocumented = new boolean[canvas.getColumns() * canvas.getRows()];
+    }
+
+    /**
+     * Called when a change of the canvas starts here. Until it is sent, the
+     * canvas has drawing the server does not know of, so the messages
+     * received must not be drawn.
+     *
+     * @param before a snapshot of the canvas taken before the change
+     */
+    public void beginChange(TiledCanvas.Snapshot before) {
+        if (base == null) {
+            base = before;
+        }
+    }
+
+    /**
+     * Sends an operation drawn on the canvas
+     *
+     * @param index the index of the operation in the document
+     * @param op the operation
+     */
+    public void send(int index, CanvasProtocol.Operation op) {
+        Change c = new Change(op, null);
+        c.index = index;
+        sent.add(c);
+        client.send(op);
+    }
+
+    /**
+     * Sends the tiles a region of the canvas covers, after they changed in a
+     * way the operations do not describe
+     *
+     * @param region the region
+     */
+    public void sendTiles(Rectangle region) {
+        Rectangle r = region.intersection(new Rectangle(canvas.getWidth(),
+                canvas.getHeight()));
+        if (r.isEmpty()) {
+            return;
+        }
+        int size = TiledCanvas.TILE_SIZE;
+        int[][] pixels = new int[undocumented.length][];
+        for (int row = r.y / size; row <= (r.y + r.height - 1) / size; row++) {
+            for (int col = r.x / size; col <= (r.x + r.width - 1) / size;
+                    col++) {
+                int i = row * canvas.getColumns() + col;
+                pixels[i] = canvas.getTilePixels(i);
+            }
+        }
+        sent.add(new Change(null, pixels));
+        client.sendTiles(pixels, canvas.getBackgroundPixel());
+    }
+
+    /**
+     * Keeps an operation of another client to be drawn
+     *
+     * @param op the operation
+     */
+    public void received(CanvasProtocol.Operation op) {
+        received.add(new Change(op, null));
+    }
+
+    /**
+     * Keeps tiles of another client or of the snapshot to be drawn
+     *
+     * @param indices the index of each tile
+     * @param pixels the pixels of each tile
+     */
+    public void receivedTiles(int[] indices, int[][] pixels) {
+        int[][] tiles = new int[undocumented.length][];
+        for (int i = 0; i < indices.length; i++) {
+            tiles[indices[i]] = pixels[i];
+            undocumented[indices[i]] = true;
+        }
+        received.add(new Change(null, tiles));
+    }
+
+    /**
+     * Keeps the acknowledgement of the first change not yet acknowledged, in
+     * its place among the messages received
+     */
+    public void acknowledged() {
+        received.add(ACK);
+    }
+
+    /**
+     * Draws the messages received since the last time, in the order the
+     * server numbered them. It must not be called while a change of the
+     * canvas is in progress.
+     *
+     * @return the region of the canvas that changed, or null if none did
+     */
+    public Rectangle draw() {
+        Rectangle changed = null;
+        int acks = 0;
+        for (Change c : received) {
+            if (c == ACK) {
+                acks++;
+            }
+        }
+        if (acks == received.size()) {
+            //Only acknowledgements, so the order is already right
+            for (int i = 0; i < acks && !sent.isEmpty(); i++) {
+                acknowledged.add(sent.remove(0));
+            }
+        } else if (sent.isEmpty() && acknowledged.isEmpty()) {
+            //The canvas only has what the server numbered
+            for (Change c : received) {
+                if (c != ACK) {
+                    changed = union(changed, apply(c));
+                }
+            }
+        } else {
+            changed = redraw();
+        }
+        received.clear();
+        if (sent.isEmpty()) {
+            base = null;
+            acknowledged.clear();
+        }
+        return changed;
+    }
+
+    //Draws the changes in the order of the server: the acknowledged ones,
+    //the messages received with the changes they acknowledge, and then the
+    //changes not yet acknowledged
+    private Rectangle redraw() {
+        TiledCanvas.TileDelta delta = canvas.changesSince(base);
+        canvas.undo(delta);
+        Rectangle changed = delta.isEmpty() ? null : delta.getBounds();
+        for (Change c : acknowledged) {
+            changed = union(changed, apply(c));
+        }
+        acknowledged.clear();
+        for (Change c : received) {
+            if (c != ACK) {
+                changed = union(changed, apply(c));
+            } else if (!sent.isEmpty()) {
+                changed = union(changed, apply(sent.remove(0)));
+            }
+        }
+        base = canvas.snapshot();
+        for (Change c : sent) {
+            changed = union(changed, apply(c));
+        }
+        //The document has the operations in the order they arrived
+        if (changed != null) {
+            undocument(changed);
+        }
+        return changed;
+    }
+
+    //Draws a change on the canvas, adding an operation to the document the
+    //first time it is drawn
+    private Rectangle apply(Change c) {
+        if (c.op != null) {
+            if (c.index < 0) {
+                c.index = c.op.addTo(document, Document.BACKGROUND_LAYER);
+            }
+            Object hint = canvas.getRenderingHints().get(
+                    RenderingHints.KEY_ANTIALIASING);
+            Rectangle r = c.op.apply(document, c.index, canvas);
+            //The document is drawn again with the anti-aliasing of the canvas
+            if (c.op.isAntialiased()
+                    != RenderingHints.VALUE_ANTIALIAS_ON.equals(hint)) {
+                undocument(r);
+            }
+            return r;
+        }
+        Rectangle changed = null;
+        for (int i = 0; i < c.pixels.length; i++) {
+            if (c.pixels[i] != null) {
+                canvas.setTilePixels(i, c.pixels[i]);
+                changed = union(changed, tileBounds(i));
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Adds an image of each tile the document does not describe to it, so
+     * drawing it again or saving it keeps the canvas as it is. Each image is
+     * drawn over everything before it.
+     */
+    public void addToDocument() {
+        int size = TiledCanvas.TILE_SIZE;
+        for (int i = 0; i < undocumented.length; i++) {
+            if (undocumented[i]) {
+                Rectangle r = tileBounds(i).intersection(new Rectangle(
+                        canvas.getWidth(), canvas.getHeight()));
+                BufferedImage tile = new BufferedImage(size, size,
+                        canvas.getImageType());
+                tile.getRaster().setDataElements(0, 0, size, size,
+                        canvas.getTilePixels(i));
+                document.addImage(Document.BACKGROUND_LAYER,
+                        tile.getSubimage(0, 0, r.width, r.height), r.x, r.y);
+                undocumented[i] = false;
+            }
+        }
+    }
+
+    //Marks the tiles a region covers as not described by the document
+    private void undocument(Rectangle region) {
+        int size = TiledCanvas.TILE_SIZE;
+        Rectangle r = region.intersection(new Rectangle(canvas.getWidth(),
+                canvas.getHeight()));
+        if (r.isEmpty()) {
+            return;
+        }
+        for (int row = r.y / size; row <= (r.y + r.height - 1) / size; row++) {
+            for (int col = r.x / size; col <= (r.x + r.width - 1) / size;
+                    col++) {
+                undocumented[row * canvas.getColumns() + col] = true;
+            }
+        }
+    }
+
+    private Rectangle tileBounds(int i) {
+        int size = TiledCanvas.TILE_SIZE;
+        return new Rectangle(i % canvas.getColumns() * size,
+                i / canvas.getColumns() * size, size, size);
+    }
+
+    private static Rectangle union(Rectangle a, Rectangle b) {
+        if (a == null) {
+            return b;
+        }
+        if (b != null) {
+            a.add(b);
+        }
+        return a;
+    }
+}
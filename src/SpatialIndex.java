@@ -0,0 +1,191 @@
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+/**
+ * Finds the items whose bounds overlap a point or a region without looking
+ * at every item. The plane is split into a grid of square cells and each
+ * item is listed in every cell its bounds overlap, so a query only looks at
+ * the items in the cells it touches. Items are numbered in the order they
+ * are added and each cell keeps its items in that order, so the topmost
+ * item in a cell is the last one.
+ */
+public class SpatialIndex {
+
+    private final int cellSize;
+    private final int columns, rows;
+    //the items of each cell, and how many there are
+    private final int[][] cells;
+    private final int[] cellSizes;
+    //the query that last returned each item, so it is only returned once
+    private int[] stamps = new int[64];
+    private int stamp = 0;
+
+    /**
+     * Creates an empty index covering a region from the origin. Bounds
+     * outside the region are clamped to it.
+     *
+     * @param width the width of the region
+     * @param height the height of the region
+     * @param cellSize the width and height of a cell
+     */
+    public SpatialIndex(int width, int height, int cellSize) {
+        this.cellSize = cellSize;
+        columns = Math.max(1, (width + cellSize - 1) / cellSize);
+        rows = Math.max(1, (height + cellSize - 1) / cellSize);
+        cells = new int[columns * rows][];
+        cellSizes = new int[columns * rows];
+    }
+
+    /**
+     * @return the width of the region the cells cover, which may be more
+     * than the index was created with
+     */
+    public int getWidth() {
+        return columns * cellSize;
+    }
+
+    /**
+     * @return the height of the region the cells cover
+     */
+    public int getHeight() {
+        return rows * cellSize;
+    }
+
+    /**
+     * Adds an item. Items must be added in increasing order.
+     *
+     * @param item the number of the item
+     * @param bounds the bounds of the item
+     */
+    public void add(int item, Rectangle bounds) {
+        if (bounds.isEmpty()) {
+            return;
+        }
+        int firstColumn = column(bounds.x);
+        int lastColumn = column(bounds.x + bounds.width - 1);
+        int firstRow = row(bounds.y);
+        int lastRow = row(bounds.y + bounds.height - 1);
+        for (int r = firstRow; r <= lastRow; r++) {
+            for (int c = firstColumn; c <= lastColumn; c++) {
+                int cell = r * columns + c;
+                int[] items = cells[cell];
+                if (items == null) {
+                    items = new int[8];
+                    cells[cell] = items;
+                } else if (cellSizes[cell] == items.length) {
+                    items = Arrays.copyOf(items, items.length * 2);
+                    cells[cell] = items;
+                }
+                items[cellSizes[cell]++] = item;
+            }
+        }
+    }
+
+    /**
+     * Removes an item and every item added after it from the cells the
+     * bounds overlap
+     *
+     * @param item the number of the item
+     * @param bounds the bounds the item was added with
+     */
+    public void removeFrom(int item, Rectangle bounds) {
+        if (bounds.isEmpty()) {
+            return;
+        }
+        int firstColumn = column(bounds.x);
+        int lastColumn = column(bounds.x + bounds.width - 1);
+        int firstRow = row(bounds.y);
+        int lastRow = row(bounds.y + bounds.height - 1);
+        for (int r = firstRow; r <= lastRow; r++) {
+            for (int c = firstColumn; c <= lastColumn; c++) {
+                int cell = r * columns + c;
+                while (cellSizes[cell] > 0
+                        && cells[cell][cellSizes[cell] - 1] >= item) {
+                    cellSizes[cell]--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the items listed in the cell containing a point, from the
+     * first added to the last. They are only the items that may contain the
+     * point.
+     *
+     * @param x the x coordinate of the point
+     * @param y the y coordinate of the point
+     * @return the items, which must not be changed, or null for none
+     */
+    public int[] itemsAt(int x, int y) {
+        return cells[row(y) * columns + column(x)];
+    }
+
+    /**
+     * @param x the x coordinate of a point
+     * @param y the y coordinate of a point
+     * @return the number of items itemsAt returns
+     */
+    public int countAt(int x, int y) {
+        return cellSizes[row(y) * columns + column(x)];
+    }
+
+    /**
+     * Finds the items whose cells overlap a region. Each item is returned
+     * once, in the order they were added.
+     *
+     * @param region the region
+     * @param limit items from this number on are left out
+     * @return the items
+     */
+    public int[] query(Rectangle region, int limit) {
+        if (region.isEmpty()) {
+            return new int[0];
+        }
+        if (limit > stamps.length) {
+            stamps = Arrays.copyOf(stamps, Math.max(limit, stamps.length * 2));
+        }
+        if (++stamp == 0) {
+            Arrays.fill(stamps, 0);
+            stamp = 1;
+        }
+        int[] found = new int[16];
+        int count = 0;
+        int firstColumn = column(region.x);
+        int lastColumn = column(region.x + region.width - 1);
+        int firstRow = row(region.y);
+        int lastRow = row(region.y + region.height - 1);
+        for (int r = firstRow; r <= lastRow; r++) {
+            for (int c = firstColumn; c <= lastColumn; c++) {
+                int cell = r * columns + c;
+                int[] items = cells[cell];
+                for (int i = 0; i < cellSizes[cell]; i++) {
+                    int item = items[i];
+                    if (item < limit && stamps[item] != stamp) {
+                        stamps[item] = stamp;
+                        if (count == found.length) {
+                            found = Arrays.copyOf(found, count * 2);
+                        }
+                        found[count++] = item;
+                    }
+                }
+            }
+        }
+        found = Arrays.copyOf(found, count);
+        Arrays.sort(found);
+        return found;
+    }
+
+    private int column(int x) {
+        return Math.max(0, Math.min(columns - 1, floorDiv(x)));
+    }
+
+    private int row(int y) {
+        return Math.max(0, Math.min(rows - 1, floorDiv(y)));
+    }
+
+    //Cell index of a coordinate, rounding down for negative coordinates
+    private int floorDiv(int coordinate) {
+        return coordinate >= 0 ? coordinate / cellSize
+                : (coordinate + 1) / cellSize - 1;
+    }
+}
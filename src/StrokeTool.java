@@ -0,0 +1,194 @@
+import java.awt.AlphaComposite;
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.geom.Path2D;
+import java.util.Arrays;
+
+/**
+ * The pencil, the eraser and the line repeater, which draw as they are
+ * dragged. The points they are dragged through are buffered and drawn once
+ * per frame as a single path. The pencil draws a line through the points and
+ * the eraser a wide square line, and both continue from the last point drawn
+ * so there are no gaps between frames. The line repeater draws a line from
+ * the point where the mouse was pressed to each point without erasing the
+ * previous lines. The eraser also erases a square where it is pressed.
+ *
+ * Every point of the stroke, starting with the pressed point, is added to the
+ * document as one operation when the mouse is released.
+ */
+public class StrokeTool extends ToolAdapter {
+
+    private final byte tool;
+    //the points buffered since the last frame as x, y pairs
+    private int[] points = new int[64];
+    private int pointCount = 0;
+    //every point of the current stroke, for the document
+    private int[] strokePoints = new int[64];
+    private int strokeLength = 0;
+    //the last point drawn, where the next frame continues from, or the
+    //pressed point for the line repeater
+    private int lastX, lastY;
+    private final Path2D.Float path = new Path2D.Float();
+    private final Rectangle pathBounds = new Rectangle();
+    private final Rectangle eraserBox = new Rectangle();
+    //the color the path is drawn with; for the eraser, the erase color
+    private Color pathColor;
+    //the stroke is only made again when the thickness changes
+    private BasicStroke stroke;
+    private float strokeThickness = -1;
+    private final TiledCanvas.Painter pathPainter = new TiledCanvas.Painter() {
+        @Override
+        public void paint(Graphics2D g) {
+            if (tool == PaintingComponent.ERASER) {
+                DocumentRenderer.useBackground(g, pathColor);
+            } else {
+                g.setColor(pathColor);
+            }
+            g.setStroke(stroke);
+            g.draw(path);
+            g.setComposite(AlphaComposite.SrcOver);
+        }
+    };
+    private final TiledCanvas.Painter eraserPainter = new TiledCanvas.Painter() {
+        @Override
+        public void paint(Graphics2D g) {
+            DocumentRenderer.useBackground(g, pathColor);
+            g.fill(eraserBox);
+            g.setComposite(AlphaComposite.SrcOver);
+        }
+    };
+
+    /**
+     * @param tool PaintingComponent.PENCIL, ERASER or LINE_REPEATER
+     */
+    public StrokeTool(byte tool) {
+        this.tool = tool;
+    }
+
+    @Override
+    public String getName() {
+        return PaintingComponent.TOOL_NAMES[tool];
+    }
+
+    @Override
+    public void press(Context c, int x, int y) {
+        lastX = x;
+        lastY = y;
+        pointCount = 0;
+        strokeLength = 0;
+        recordPoint(x, y);
+        //The eraser erases with one click
+        if (tool == PaintingComponent.ERASER) {
+            int ewidth = (int) (10 * c.getLineThickness());
+            eraserBox.setBounds(x - ewidth / 2, y - ewidth / 2, ewidth,
+                    ewidth);
+            pathColor = c.getEraseColor();
+            c.getCanvas().paint(eraserBox, eraserPainter);
+            c.markChanged(eraserBox);
+        }
+    }
+
+    @Override
+    public void drag(Context c, int x, int y) {
+        if (pointCount == points.length) {
+            points = Arrays.copyOf(points, pointCount * 2);
+        }
+        points[pointCount++] = x;
+        points[pointCount++] = y;
+        recordPoint(x, y);
+    }
+
+    @Override
+    public void release(Context c, int x, int y) {
+        //Draw the points that are still buffered
+        frame(c);
+        if (strokeLength > 0) {
+            c.addOperation(tool, strokePoints, strokeLength);
+            strokeLength = 0;
+        }
+    }
+
+    /**
+     * Draws the points buffered since the last frame as one path
+     *
+     * @param c the component the tool draws on
+     * @return whether there were points to draw
+     */
+    @Override
+    public boolean frame(Context c) {
+        if (pointCount == 0) {
+            return false;
+        }
+        path.reset();
+        int minX = lastX, minY = lastY, maxX = lastX, maxY = lastY;
+        if (tool == PaintingComponent.LINE_REPEATER) {
+            for (int i = 0; i < pointCount; i += 2) {
+                path.moveTo(lastX, lastY);
+                path.lineTo(points[i], points[i + 1]);
+            }
+        } else {
+            path.moveTo(lastX, lastY);
+            for (int i = 0; i < pointCount; i += 2) {
+                path.lineTo(points[i], points[i + 1]);
+            }
+            lastX = points[pointCount - 2];
+            lastY = points[pointCount - 1];
+        }
+        for (int i = 0; i < pointCount; i += 2) {
+            minX = Math.min(minX, points[i]);
+            maxX = Math.max(maxX, points[i]);
+            minY = Math.min(minY, points[i + 1]);
+            maxY = Math.max(maxY, points[i + 1]);
+        }
+        pointCount = 0;
+
+        pathColor = tool == PaintingComponent.ERASER ? c.getEraseColor()
+                : c.getPrimaryColor();
+        BasicStroke s = stroke(c.getLineThickness());
+        //A square cap reaches past the end of a diagonal line, and the
+        //miter joins of the line repeater further still
+        int pad = tool == PaintingComponent.LINE_REPEATER
+                ? Document.outlinePad(s.getLineWidth())
+                : (int) Math.ceil(s.getLineWidth()) + 2;
+        pathBounds.setBounds(minX - pad, minY - pad,
+                maxX - minX + 2 * pad, maxY - minY + 2 * pad);
+        c.getCanvas().paint(pathBounds, pathPainter);
+        c.markChanged(pathBounds);
+        return true;
+    }
+
+    /**
+     * Returns the stroke of the tool for a line thickness, making it again
+     * only if the thickness changed. The pencil joins its segments smoothly,
+     * and the eraser is a square ten times as wide as the thickness.
+     *
+     * @param thickness the line thickness
+     * @return the stroke
+     */
+    private BasicStroke stroke(float thickness) {
+        if (thickness != strokeThickness) {
+            if (tool == PaintingComponent.ERASER) {
+                stroke = new BasicStroke((int) (10 * thickness),
+                        BasicStroke.CAP_SQUARE, BasicStroke.JOIN_ROUND);
+            } else if (tool == PaintingComponent.PENCIL) {
+                stroke = new BasicStroke(thickness, BasicStroke.CAP_ROUND,
+                        BasicStroke.JOIN_ROUND);
+            } else {
+                stroke = new BasicStroke(thickness);
+            }
+            strokeThickness = thickness;
+        }
+        return stroke;
+    }
+
+    //Adds a point to the current stroke
+    private void recordPoint(int x, int y) {
+        if (strokeLength == strokePoints.length) {
+            strokePoints = Arrays.copyOf(strokePoints, strokeLength * 2);
+        }
+        strokePoints[strokeLength++] = x;
+        strokePoints[strokeLength++] = y;
+    }
+}
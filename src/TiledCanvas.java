@@ -0,0 +1,1074 @@
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * An image split into square tiles. A tile is only allocated the first time
+ * it is drawn on; until then it is the background color. Snapshots of the
+ * canvas share their tiles with it, and a tile is only copied the first time
+ * it is drawn on after a snapshot was taken, so taking a snapshot costs one
+ * pointer per tile and memory is only spent on the tiles that change.
+ *
+ * The canvas can be resized. Tiles never move, so resizing only makes a new
+ * array of tile pointers; the tiles inside both sizes are kept as they are and
+ * the new ones are left unallocated, so growing a canvas costs nothing per
+ * pixel of it.
+ */
+public class TiledCanvas {
+
+    public static final int TILE_SIZE = 256;
+    private int width, height;
+    private int columns, rows;
+    private final int imageType;
+    private final Color background;
+    private Tile[] tiles;
+    //where tile pixels are stored, or null for the heap
+    private final MappedTileStore store;
+    private final RenderingHints hints = new RenderingHints(null);
+    //the color model of the tiles, used to convert colors to pixels
+    private final ColorModel colorModel;
+    //Work on many tiles at once is split across the cores
+    private static final ForkJoinPool POOL = new ForkJoinPool();
+    //the number of tiles below which a task is not split any further
+    private static final int TILES_PER_TASK = 4;
+
+    /**
+     * Something that draws on the canvas. It is called once for each tile it
+     * touches, with a graphics context that uses canvas coordinates.
+     */
+    public interface Painter {
+
+        void paint(Graphics2D g);
+    }
+
+    /**
+     * Work done on one tile at a time by forEachTile
+     */
+    public interface TileWork {
+
+        void compute(int index);
+    }
+
+    /**
+     * A square piece of the canvas. Once a tile is shared with a snapshot it
+     * is never drawn on again; the canvas draws on a copy of it instead.
+     */
+    private static class Tile {
+
+        private final BufferedImage image;
+        private final int x, y;
+        private Graphics2D graphics;
+        private boolean shared = false;
+
+        private Tile(BufferedImage image, int x, int y) {
+            this.image = image;
+            this.x = x;
+            this.y = y;
+        }
+
+        //The graphics context is created once and reused for every paint
+        private Graphics2D getGraphics(RenderingHints hints) {
+            if (graphics == null) {
+                graphics = image.createGraphics();
+                graphics.translate(-x, -y);
+                graphics.setRenderingHints(hints);
+            }
+            return graphics;
+        }
+    }
+
+    /**
+     * An unchangeable copy of the canvas at the time it was taken.
+     */
+    public static class Snapshot {
+
+        private final int width, height;
+        private final int imageType;
+        private final Color background;
+        private final Tile[] tiles;
+
+        private Snapshot(TiledCanvas canvas) {
+            width = canvas.width;
+            height = canvas.height;
+            imageType = canvas.imageType;
+            background = canvas.background;
+            tiles = canvas.tiles.clone();
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+    }
+
+    /**
+     * The tiles that differ between a snapshot and the canvas. It keeps the
+     * tiles from before and after the change, so the change can be undone
+     * and redone by swapping tiles rather than copying pixels. If the canvas
+     * was resized, the delta keeps every tile pointer of both sizes instead.
+     */
+    public static class TileDelta {
+
+        //the indices of the changed tiles, or null if the canvas was resized
+        //and before and after hold every tile
+        private final int[] indices;
+        private final Tile[] before, after;
+        private final int widthBefore, heightBefore, widthAfter, heightAfter;
+        private final Rectangle bounds;
+        private final long byteSize;
+
+        private TileDelta(int[] indices, Tile[] before, Tile[] after,
+                Rectangle bounds, long byteSize) {
+            this(indices, before, after, 0, 0, 0, 0, bounds, byteSize);
+        }
+
+        private TileDelta(int[] indices, Tile[] before, Tile[] after,
+                int widthBefore, int heightBefore, int widthAfter,
+                int heightAfter, Rectangle bounds, long byteSize) {
+            this.indices = indices;
+            this.before = before;
+            this.after = after;
+            this.widthBefore = widthBefore;
+            this.heightBefore = heightBefore;
+            this.widthAfter = widthAfter;
+            this.heightAfter = heightAfter;
+            this.bounds = bounds;
+            this.byteSize = byteSize;
+        }
+
+        /**
+         * @return the region of the canvas covered by the changed tiles
+         */
+        public Rectangle getBounds() {
+            return new Rectangle(bounds);
+        }
+
+        /**
+         * @return the pixel memory held by the tiles of the delta
+         */
+        public long getByteSize() {
+            return byteSize;
+        }
+
+        public boolean isEmpty() {
+            return indices != null && indices.length == 0;
+        }
+    }
+
+    /**
+     * Creates a canvas filled with the background color. No tiles are
+     * allocated until they are drawn on.
+     *
+     * @param width the width in pixels
+     * @param height the height in pixels
+     * @param imageType the BufferedImage type of the tiles
+     * @param background the color of a blank canvas, or null for transparent
+     */
+    public TiledCanvas(int width, int height, int imageType, Color background) {
+        this(width, height, imageType, background, null);
+    }
+
+    /**
+     * Creates a canvas whose tiles keep their pixels in a memory-mapped file
+     * rather than on the heap
+     *
+     * @param width the width in pixels
+     * @param height the height in pixels
+     * @param imageType the BufferedImage type of the tiles, which must store
+     * a pixel in an int
+     * @param background the color of a blank canvas, or null for transparent
+     * @param store the store that allocates the tiles, or null for the heap
+     */
+    public TiledCanvas(int width, int height, int imageType, Color background,
+            MappedTileStore store) {
+        this.store = store;
+        this.width = width;
+        this.height = height;
+        this.imageType = imageType;
+        this.background = background;
+        colorModel = new BufferedImage(1, 1, imageType).getColorModel();
+        columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+        rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+        tiles = new Tile[columns * rows];
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return the BufferedImage type of the tiles
+     */
+    public int getImageType() {
+        return imageType;
+    }
+
+    /**
+     * @return the color of a blank canvas, or null if it is transparent
+     */
+    public Color getBackground() {
+        return background;
+    }
+
+    /**
+     * @return the number of tiles across the canvas
+     */
+    public int getColumns() {
+        return columns;
+    }
+
+    /**
+     * @return the number of tiles down the canvas
+     */
+    public int getRows() {
+        return rows;
+    }
+
+    /**
+     * Changes the size of the canvas, keeping its pixels where the old and
+     * new sizes overlap. Only the array of tile pointers is made again; the
+     * tiles inside both sizes are kept, and the area the canvas grows by is
+     * background.
+     *
+     * @param width the new width in pixels
+     * @param height the new height in pixels
+     */
+    public void resize(int width, int height) {
+        if (width == this.width && height == this.height) {
+            return;
+        }
+        int newColumns = (width + TILE_SIZE - 1) / TILE_SIZE;
+        int newRows = (height + TILE_SIZE - 1) / TILE_SIZE;
+        Tile[] newTiles = new Tile[newColumns * newRows];
+        for (int row = 0; row < Math.min(rows, newRows); row++) {
+            System.arraycopy(tiles, row * columns, newTiles, row * newColumns,
+                    Math.min(columns, newColumns));
+        }
+        int oldWidth = this.width, oldHeight = this.height;
+        setTiles(width, height, newTiles);
+        //The edge tiles reach past the old size, and may have been drawn on
+        //there even though it was never shown
+        clear(new Rectangle(oldWidth, 0, width - oldWidth, height));
+        clear(new Rectangle(0, oldHeight, width, height - oldHeight));
+    }
+
+    public boolean hasAlpha() {
+        return colorModel.hasAlpha();
+    }
+
+    /**
+     * Converts a color to the packed int pixel stored by the tiles
+     *
+     * @param argb the color in the default ARGB format
+     * @return the pixel
+     */
+    public int toPixel(int argb) {
+        return ((int[]) colorModel.getDataElements(argb, null))[0];
+    }
+
+    /**
+     * Copies the packed int pixels of a tile, row by row. A tile that was
+     * never drawn on is all background.
+     *
+     * @param index the index of the tile, counting across each row of tiles
+     * @return the TILE_SIZE * TILE_SIZE pixels
+     */
+    public int[] getTilePixels(int index) {
+        int[] data = new int[TILE_SIZE * TILE_SIZE];
+        Tile t = tiles[index];
+        if (t != null) {
+            t.image.getRaster().getDataElements(0, 0, TILE_SIZE, TILE_SIZE,
+                    data);
+        } else if (background != null) {
+            Arrays.fill(data, toPixel(background.getRGB()));
+        }
+        return data;
+    }
+
+    /**
+     * Replaces the pixels of some tiles. The tiles are written in parallel.
+     *
+     * @param pixels the pixels of each tile, as from getTilePixels
+     * @param changed which tiles to write
+     */
+    public void setTiles(final int[][] pixels, final boolean[] changed) {
+        POOL.invoke(new TileTask(0, tiles.length) {
+            @Override
+            protected void compute(int index) {
+                if (changed[index]) {
+                    setTilePixels(index, pixels[index]);
+                }
+            }
+        });
+    }
+
+    /**
+     * Replaces the pixels of a tile. Different tiles may be set from
+     * different threads at once.
+     *
+     * @param index the index of the tile
+     * @param pixels the pixels, as from getTilePixels
+     */
+    public void setTilePixels(int index, int[] pixels) {
+        writableTile(index, false).image.getRaster().setDataElements(0, 0,
+                TILE_SIZE, TILE_SIZE, pixels);
+    }
+
+    /**
+     * @param index the index of a tile
+     * @return whether the tile was never drawn on, so it is all background
+     */
+    public boolean isBlank(int index) {
+        return tiles[index] == null;
+    }
+
+    /**
+     * @return the pixel of the background color, or 0 if it is transparent
+     */
+    public int getBackgroundPixel() {
+        return background != null ? toPixel(background.getRGB()) : 0;
+    }
+
+    /**
+     * Runs some work on every tile index in parallel, on the pool the canvas
+     * uses for its own work on many tiles
+     *
+     * @param work the work
+     */
+    public void forEachTile(final TileWork work) {
+        POOL.invoke(new TileTask(0, tiles.length) {
+            @Override
+            protected void compute(int index) {
+                work.compute(index);
+            }
+        });
+    }
+
+    /**
+     * Runs some work on a range of tiles, splitting the range in half until
+     * it is small enough to run on one thread
+     */
+    private abstract static class TileTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private final int from, to;
+
+        private TileTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= TILES_PER_TASK) {
+                for (int i = from; i < to; i++) {
+                    compute(i);
+                }
+            } else {
+                final int middle = (from + to) / 2;
+                final TileTask outer = this;
+                invokeAll(new TileTask(from, middle) {
+                    @Override
+                    protected void compute(int index) {
+                        outer.compute(index);
+                    }
+                }, new TileTask(middle, to) {
+                    @Override
+                    protected void compute(int index) {
+                        outer.compute(index);
+                    }
+                });
+            }
+        }
+
+        //The work done on one tile
+        protected abstract void compute(int index);
+    }
+
+    /**
+     * Sets a rendering hint used when painting on the canvas
+     *
+     * @param key the hint key
+     * @param value the hint value
+     */
+    public void setRenderingHint(RenderingHints.Key key, Object value) {
+        hints.put(key, value);
+        for (Tile t : tiles) {
+            if (t != null && t.graphics != null) {
+                t.graphics.setRenderingHint(key, value);
+            }
+        }
+    }
+
+    /**
+     * @return a copy of the rendering hints used when painting on the canvas
+     */
+    public RenderingHints getRenderingHints() {
+        return (RenderingHints) hints.clone();
+    }
+
+    /**
+     * Sets several rendering hints used when painting on the canvas
+     *
+     * @param h the hints
+     */
+    public void setRenderingHints(RenderingHints h) {
+        for (Object key : h.keySet()) {
+            setRenderingHint((RenderingHints.Key) key, h.get(key));
+        }
+    }
+
+    /**
+     * Lets a painter draw on every tile that intersects a region
+     *
+     * @param bounds the region the painter draws in
+     * @param painter the painter
+     */
+    public void paint(Rectangle bounds, Painter painter) {
+        int firstColumn = Math.max(0, floorDiv(bounds.x));
+        int firstRow = Math.max(0, floorDiv(bounds.y));
+        int lastColumn = Math.min(columns - 1,
+                floorDiv(bounds.x + bounds.width - 1));
+        int lastRow = Math.min(rows - 1,
+                floorDiv(bounds.y + bounds.height - 1));
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int col = firstColumn; col <= lastColumn; col++) {
+                painter.paint(writableTile(row * columns + col, true)
+                        .getGraphics(hints));
+            }
+        }
+    }
+
+    /**
+     * Lets a painter draw on some of the tiles in parallel. The painter is
+     * called from several threads at once, each time with a graphics context
+     * of its own that is clipped to one tile.
+     *
+     * @param which which tiles to draw on
+     * @param painter the painter
+     */
+    public void paintTiles(final boolean[] which, final Painter painter) {
+        POOL.invoke(new TileTask(0, tiles.length) {
+            @Override
+            protected void compute(int index) {
+                if (which[index]) {
+                    Tile t = writableTile(index, true);
+                    Graphics2D g = (Graphics2D) t.getGraphics(hints).create();
+                    g.clipRect(t.x, t.y, TILE_SIZE, TILE_SIZE);
+                    painter.paint(g);
+                    g.dispose();
+                }
+            }
+        });
+    }
+
+    /**
+     * Fills the whole canvas with a color. Filling with the background color
+     * frees every tile. Otherwise shared tiles are replaced instead of copied
+     * since none of their pixels are kept.
+     *
+     * @param c the color
+     */
+    public void fill(Color c) {
+        if (c.equals(background)) {
+            Arrays.fill(tiles, null);
+            return;
+        }
+        for (int i = 0; i < tiles.length; i++) {
+            Graphics2D g = writableTile(i, false).getGraphics(hints);
+            g.setColor(c);
+            g.fillRect(tiles[i].x, tiles[i].y, TILE_SIZE, TILE_SIZE);
+        }
+    }
+
+    /**
+     * Makes the whole canvas background again, freeing every tile
+     */
+    public void clear() {
+        Arrays.fill(tiles, null);
+    }
+
+    /**
+     * Makes a region of the canvas background again. Tiles the region covers
+     * completely are freed.
+     *
+     * @param region the region
+     */
+    public void clear(Rectangle region) {
+        final Rectangle area = region.intersection(
+                new Rectangle(width, height));
+        if (area.isEmpty()) {
+            return;
+        }
+        final int pixel = getBackgroundPixel();
+        POOL.invoke(new TileTask(0, tiles.length) {
+            @Override
+            protected void compute(int index) {
+                Rectangle r = area.intersection(tileBounds(index));
+                if (r.isEmpty() || tiles[index] == null) {
+                    return;
+                }
+                if (r.width == TILE_SIZE && r.height == TILE_SIZE) {
+                    tiles[index] = null;
+                    return;
+                }
+                int[] row = new int[r.width];
+                Arrays.fill(row, pixel);
+                Tile t = writableTile(index, true);
+                for (int py = r.y; py < r.y + r.height; py++) {
+                    t.image.getRaster().setDataElements(r.x - t.x, py - t.y,
+                            r.width, 1, row);
+                }
+            }
+        });
+    }
+
+    /**
+     * Copies a region of another canvas of the same size, type and
+     * background. Tiles the region covers completely are shared with the
+     * other canvas rather than copied.
+     *
+     * @param src the other canvas
+     * @param region the region
+     */
+    public void copy(final TiledCanvas src, Rectangle region) {
+        final Rectangle area = region.intersection(
+                new Rectangle(width, height));
+        if (area.isEmpty()) {
+            return;
+        }
+        final int background = src.getBackgroundPixel();
+        POOL.invoke(new TileTask(0, tiles.length) {
+            @Override
+            protected void compute(int index) {
+                Rectangle r = area.intersection(tileBounds(index));
+                if (r.isEmpty()) {
+                    return;
+                }
+                Tile from = src.tiles[index];
+                if (r.width == TILE_SIZE && r.height == TILE_SIZE) {
+                    if (from != null) {
+                        from.shared = true;
+                    }
+                    tiles[index] = from;
+                    return;
+                }
+                if (from == null && tiles[index] == null) {
+                    return;
+                }
+                int[] row = new int[r.width];
+                if (from == null) {
+                    Arrays.fill(row, background);
+                }
+                Tile t = writableTile(index, true);
+                for (int py = r.y; py < r.y + r.height; py++) {
+                    if (from != null) {
+                        from.image.getRaster().getDataElements(r.x - t.x,
+                                py - t.y, r.width, 1, row);
+                    }
+                    t.image.getRaster().setDataElements(r.x - t.x, py - t.y,
+                            r.width, 1, row);
+                }
+            }
+        });
+    }
+
+    /**
+     * Blends a region of another canvas of the same size onto this one with
+     * the default compositor. This canvas must store opaque pixels in ints.
+     * Tiles of the other canvas that were never drawn on are skipped if its
+     * background is transparent, so a layer that is mostly empty is blended
+     * quickly. The tiles are blended in parallel.
+     *
+     * @param src the other canvas
+     * @param region the region
+     * @param mode the blend mode, one of the Compositor modes
+     * @param opacity how much of the other canvas shows, from 0 to 255
+     */
+    public void composite(final TiledCanvas src, Rectangle region,
+            final int mode, final int opacity) {
+        final Rectangle area = region.intersection(
+                new Rectangle(width, height));
+        if (area.isEmpty() || opacity == 0) {
+            return;
+        }
+        //Pixels of a canvas without alpha are opaque
+        final int alpha = src.hasAlpha() ? 0 : 0xff000000;
+        final int background = src.getBackgroundPixel() | alpha;
+        final Compositor compositor = Compositor.getDefault();
+        POOL.invoke(new TileTask(0, tiles.length) {
+            @Override
+            protected void compute(int index) {
+                Rectangle r = area.intersection(tileBounds(index));
+                Tile from = src.tiles[index];
+                if (r.isEmpty() || (from == null && background >>> 24 == 0)) {
+                    return;
+                }
+                int[] srcRow = new int[r.width];
+                int[] row = new int[r.width];
+                if (from == null) {
+                    Arrays.fill(srcRow, background);
+                }
+                Tile t = writableTile(index, true);
+                for (int py = r.y; py < r.y + r.height; py++) {
+                    if (from != null) {
+                        from.image.getRaster().getDataElements(r.x - t.x,
+                                py - t.y, r.width, 1, srcRow);
+                        if (alpha != 0) {
+                            for (int i = 0; i < srcRow.length; i++) {
+                                srcRow[i] |= alpha;
+                            }
+                        }
+                    }
+                    t.image.getRaster().getDataElements(r.x - t.x, py - t.y,
+                            r.width, 1, row);
+                    compositor.composite(srcRow, 0, row, 0, r.width, mode,
+                            opacity);
+                    t.image.getRaster().setDataElements(r.x - t.x, py - t.y,
+                            r.width, 1, row);
+                }
+            }
+        });
+    }
+
+    /**
+     * Makes a region of this canvas the other canvas at half its size, each
+     * pixel the average of a square of four pixels of the other canvas.
+     * Tiles the region covers completely are left blank where the other
+     * canvas was never drawn on. The tiles are reduced in parallel.
+     *
+     * @param src the other canvas, of the same type and background, which is
+     * this size when halved and rounded up
+     * @param region the region of this canvas
+     */
+    public void downsample(final TiledCanvas src, Rectangle region) {
+        final Rectangle area = region.intersection(
+                new Rectangle(width, height));
+        if (area.isEmpty()) {
+            return;
+        }
+        final int background = src.getBackgroundPixel();
+        POOL.invoke(new TileTask(0, tiles.length) {
+            @Override
+            protected void compute(int index) {
+                Rectangle r = area.intersection(tileBounds(index));
+                if (r.isEmpty()) {
+                    return;
+                }
+                if (src.isBlank(new Rectangle(r.x * 2, r.y * 2, r.width * 2,
+                        r.height * 2))) {
+                    if (r.width == TILE_SIZE && r.height == TILE_SIZE) {
+                        tiles[index] = null;
+                        return;
+                    }
+                    if (tiles[index] == null) {
+                        return;
+                    }
+                }
+                int[] top = new int[r.width * 2];
+                int[] bottom = new int[r.width * 2];
+                int[] piece = new int[TILE_SIZE];
+                int[] row = new int[r.width];
+                Tile t = writableTile(index, true);
+                for (int py = r.y; py < r.y + r.height; py++) {
+                    src.getRow(r.x * 2, py * 2, top, piece, background);
+                    src.getRow(r.x * 2, py * 2 + 1, bottom, piece, background);
+                    for (int i = 0; i < r.width; i++) {
+                        row[i] = average(top[2 * i], top[2 * i + 1],
+                                bottom[2 * i], bottom[2 * i + 1]);
+                    }
+                    t.image.getRaster().setDataElements(r.x - t.x, py - t.y,
+                            r.width, 1, row);
+                }
+            }
+        });
+    }
+
+    /**
+     * Draws an image on the canvas
+     *
+     * @param img the image
+     * @param x the x coordinate of the image
+     * @param y the y coordinate of the image
+     */
+    public void drawImage(BufferedImage img, int x, int y) {
+        if (imageType == BufferedImage.TYPE_INT_RGB) {
+            composite(img, x, y, Compositor.SRC_OVER, 255);
+        } else {
+            drawImage(img, x, y, img.getWidth(), img.getHeight());
+        }
+    }
+
+    /**
+     * Blends an image onto the canvas with the default compositor, one row
+     * at a time. The canvas must store opaque pixels in ints. The tiles are
+     * blended in parallel.
+     *
+     * @param img the image
+     * @param x the x coordinate of the image
+     * @param y the y coordinate of the image
+     * @param mode the blend mode, one of the Compositor modes
+     * @param opacity how much of the image shows, from 0 to 255
+     */
+    public void composite(BufferedImage img, final int x, final int y,
+            final int mode, final int opacity) {
+        final int imgWidth = img.getWidth();
+        final Rectangle area = new Rectangle(x, y, imgWidth, img.getHeight())
+                .intersection(new Rectangle(width, height));
+        if (area.isEmpty()) {
+            return;
+        }
+        final int[] src = img.getRGB(0, 0, imgWidth, img.getHeight(), null,
+                0, imgWidth);
+        final Compositor compositor = Compositor.getDefault();
+        POOL.invoke(new TileTask(0, tiles.length) {
+            @Override
+            protected void compute(int index) {
+                Rectangle r = area.intersection(tileBounds(index));
+                if (r.isEmpty()) {
+                    return;
+                }
+                Tile t = writableTile(index, true);
+                int[] row = new int[r.width];
+                for (int py = r.y; py < r.y + r.height; py++) {
+                    t.image.getRaster().getDataElements(r.x - t.x, py - t.y,
+                            r.width, 1, row);
+                    compositor.composite(src, (py - y) * imgWidth + r.x - x,
+                            row, 0, r.width, mode, opacity);
+                    t.image.getRaster().setDataElements(r.x - t.x, py - t.y,
+                            r.width, 1, row);
+                }
+            }
+        });
+    }
+
+    /**
+     * Draws an image on the canvas, scaled to fit a region
+     *
+     * @param img the image
+     * @param x the x coordinate of the region
+     * @param y the y coordinate of the region
+     * @param width the width of the region
+     * @param height the height of the region
+     */
+    public void drawImage(final BufferedImage img, final int x, final int y,
+            final int width, final int height) {
+        paint(new Rectangle(x, y, width, height), new Painter() {
+            @Override
+            public void paint(Graphics2D g) {
+                g.drawImage(img, x, y, width, height, null);
+            }
+        });
+    }
+
+    /**
+     * Draws the tiles that intersect the clip bounds of a graphics context.
+     * Tiles that were never drawn on are filled with the background color.
+     *
+     * @param g the graphics context, in canvas coordinates
+     */
+    public void draw(Graphics g) {
+        Rectangle clip = g.getClipBounds();
+        if (clip == null) {
+            clip = new Rectangle(width, height);
+        }
+        int firstColumn = Math.max(0, floorDiv(clip.x));
+        int firstRow = Math.max(0, floorDiv(clip.y));
+        int lastColumn = Math.min(columns - 1,
+                floorDiv(clip.x + clip.width - 1));
+        int lastRow = Math.min(rows - 1,
+                floorDiv(clip.y + clip.height - 1));
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int col = firstColumn; col <= lastColumn; col++) {
+                Tile t = tiles[row * columns + col];
+                if (t != null) {
+                    g.drawImage(t.image, t.x, t.y, null);
+                } else if (background != null) {
+                    g.setColor(background);
+                    g.fillRect(col * TILE_SIZE, row * TILE_SIZE,
+                            TILE_SIZE, TILE_SIZE);
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes a snapshot of the canvas. The tiles become shared, so later
+     * changes to the canvas are made on copies of them.
+     *
+     * @return the snapshot
+     */
+    public Snapshot snapshot() {
+        for (Tile t : tiles) {
+            if (t != null) {
+                t.shared = true;
+            }
+        }
+        return new Snapshot(this);
+    }
+
+    /**
+     * Finds the tiles that were changed since a snapshot was taken. The
+     * canvas tiles in the delta become shared, so the delta never changes.
+     *
+     * @param s a snapshot of this canvas
+     * @return the changed tiles
+     */
+    public TileDelta changesSince(Snapshot s) {
+        if (s.width != width || s.height != height) {
+            return resizedSince(s);
+        }
+        int count = 0;
+        for (int i = 0; i < tiles.length; i++) {
+            if (tiles[i] != s.tiles[i]) {
+                count++;
+            }
+        }
+        int[] indices = new int[count];
+        Tile[] before = new Tile[count];
+        Tile[] after = new Tile[count];
+        Rectangle bounds = new Rectangle();
+        long byteSize = 0;
+        count = 0;
+        for (int i = 0; i < tiles.length; i++) {
+            if (tiles[i] != s.tiles[i]) {
+                if (tiles[i] != null) {
+                    tiles[i].shared = true;
+                }
+                indices[count] = i;
+                before[count] = s.tiles[i];
+                after[count] = tiles[i];
+                byteSize += byteSize(s.tiles[i]) + byteSize(tiles[i]);
+                Rectangle r = new Rectangle((i % columns) * TILE_SIZE,
+                        (i / columns) * TILE_SIZE, TILE_SIZE, TILE_SIZE);
+                if (count == 0) {
+                    bounds.setBounds(r);
+                } else {
+                    bounds.add(r);
+                }
+                count++;
+            }
+        }
+        return new TileDelta(indices, before, after, bounds, byteSize);
+    }
+
+    /**
+     * Puts back the tiles from before a change
+     *
+     * @param d the change
+     */
+    public void undo(TileDelta d) {
+        if (d.indices == null) {
+            setTiles(d.widthBefore, d.heightBefore, d.before.clone());
+            return;
+        }
+        for (int i = 0; i < d.indices.length; i++) {
+            tiles[d.indices[i]] = d.before[i];
+        }
+    }
+
+    /**
+     * Puts back the tiles from after a change
+     *
+     * @param d the change
+     */
+    public void redo(TileDelta d) {
+        if (d.indices == null) {
+            setTiles(d.widthAfter, d.heightAfter, d.after.clone());
+            return;
+        }
+        for (int i = 0; i < d.indices.length; i++) {
+            tiles[d.indices[i]] = d.after[i];
+        }
+    }
+
+    /**
+     * Copies the canvas into a single image
+     *
+     * @return the image
+     */
+    public BufferedImage toImage() {
+        return toImage(snapshot());
+    }
+
+    /**
+     * Copies a snapshot into a single image. Snapshots never change, so this
+     * may be called from any thread.
+     *
+     * @param s the snapshot
+     * @return the image
+     */
+    public static BufferedImage toImage(Snapshot s) {
+        BufferedImage img = new BufferedImage(s.width, s.height, s.imageType);
+        Graphics2D g = img.createGraphics();
+        if (s.background != null) {
+            g.setColor(s.background);
+            g.fillRect(0, 0, s.width, s.height);
+        }
+        for (Tile t : s.tiles) {
+            if (t != null) {
+                g.drawImage(t.image, t.x, t.y, null);
+            }
+        }
+        g.dispose();
+        return img;
+    }
+
+    //The change since a snapshot of another size, which keeps every tile of
+    //both sizes. Only the tiles that are not in both count towards its size.
+    private TileDelta resizedSince(Snapshot s) {
+        Tile[] after = snapshot().tiles;
+        int sColumns = (s.width + TILE_SIZE - 1) / TILE_SIZE;
+        int sRows = (s.height + TILE_SIZE - 1) / TILE_SIZE;
+        long byteSize = 0;
+        for (int i = 0; i < s.tiles.length; i++) {
+            int col = i % sColumns, row = i / sColumns;
+            if (col >= columns || row >= rows
+                    || s.tiles[i] != after[row * columns + col]) {
+                byteSize += byteSize(s.tiles[i]);
+            }
+        }
+        for (int i = 0; i < after.length; i++) {
+            int col = i % columns, row = i / columns;
+            if (col >= sColumns || row >= sRows
+                    || after[i] != s.tiles[row * sColumns + col]) {
+                byteSize += byteSize(after[i]);
+            }
+        }
+        return new TileDelta(null, s.tiles, after, s.width, s.height, width,
+                height, new Rectangle(Math.max(s.width, width),
+                        Math.max(s.height, height)), byteSize);
+    }
+
+    //Replaces the size and the tile pointers of the canvas
+    private void setTiles(int width, int height, Tile[] tiles) {
+        this.width = width;
+        this.height = height;
+        columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+        rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+        this.tiles = tiles;
+    }
+
+    //Returns the tile at an index, allocating it first if it was never drawn
+    //on, or replacing it if it is shared
+    private Tile writableTile(int index, boolean preserve) {
+        Tile t = tiles[index];
+        if (t == null) {
+            t = newTile(index, true);
+            tiles[index] = t;
+        } else if (t.shared) {
+            Tile copy = newTile(index, !preserve);
+            if (preserve) {
+                //Copied a row of pixels at a time, rather than a sample at
+                //a time as BufferedImage.setData does
+                copy.image.getRaster().setDataElements(0, 0,
+                        t.image.getRaster());
+            }
+            tiles[index] = copy;
+            t = copy;
+        }
+        return t;
+    }
+
+    //Creates a tile, filled with the background color if it is to be blank
+    private Tile newTile(int index, boolean blank) {
+        BufferedImage img = store != null ? store.createImage(imageType)
+                : new BufferedImage(TILE_SIZE, TILE_SIZE, imageType);
+        Tile t = new Tile(img, (index % columns) * TILE_SIZE,
+                (index / columns) * TILE_SIZE);
+        if (blank && background != null) {
+            Graphics2D g = img.createGraphics();
+            g.setColor(background);
+            g.fillRect(0, 0, TILE_SIZE, TILE_SIZE);
+            g.dispose();
+        }
+        return t;
+    }
+
+    //Whether every tile a region touches was never drawn on
+    private boolean isBlank(Rectangle region) {
+        int lastColumn = Math.min(columns - 1,
+                (region.x + region.width - 1) / TILE_SIZE);
+        int lastRow = Math.min(rows - 1,
+                (region.y + region.height - 1) / TILE_SIZE);
+        for (int row = region.y / TILE_SIZE; row <= lastRow; row++) {
+            for (int col = region.x / TILE_SIZE; col <= lastColumn; col++) {
+                if (tiles[row * columns + col] != null) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    //Copies a row of pixels that may cross several tiles, a piece of a tile
+    //at a time. Tiles that were never drawn on, and pixels past the edge of
+    //the canvas, give the background pixel.
+    private void getRow(int x, int y, int[] row, int[] piece,
+            int background) {
+        int tileRow = y / TILE_SIZE;
+        int end = y < height ? Math.min(row.length, width - x) : 0;
+        Arrays.fill(row, Math.max(0, end), row.length, background);
+        int i = 0;
+        while (i < end) {
+            int col = (x + i) / TILE_SIZE;
+            int tx = x + i - col * TILE_SIZE;
+            int n = Math.min(end - i, TILE_SIZE - tx);
+            Tile t = tiles[tileRow * columns + col];
+            if (t != null) {
+                t.image.getRaster().getDataElements(tx, y - t.y, n, 1, piece);
+                System.arraycopy(piece, 0, row, i, n);
+            } else {
+                Arrays.fill(row, i, i + n, background);
+            }
+            i += n;
+        }
+    }
+
+    //The average of four packed pixels, channel by channel and rounded.
+    //Two channels are added at once, each in sixteen bits.
+    private static int average(int a, int b, int c, int d) {
+        int low = (a & 0xff00ff) + (b & 0xff00ff) + (c & 0xff00ff)
+                + (d & 0xff00ff) + 0x20002;
+        int high = ((a >>> 8) & 0xff00ff) + ((b >>> 8) & 0xff00ff)
+                + ((c >>> 8) & 0xff00ff) + ((d >>> 8) & 0xff00ff) + 0x20002;
+        return (((high >>> 2) & 0xff00ff) << 8) | ((low >>> 2) & 0xff00ff);
+    }
+
+    //The number of bytes of pixel data in a tile
+    private static long byteSize(Tile t) {
+        if (t == null) {
+            return 0;
+        }
+        DataBuffer db = t.image.getRaster().getDataBuffer();
+        return (long) db.getSize() * db.getNumBanks()
+                * DataBuffer.getDataTypeSize(db.getDataType()) / 8;
+    }
+
+    //The region of the canvas a tile covers
+    private Rectangle tileBounds(int index) {
+        return new Rectangle((index % columns) * TILE_SIZE,
+                (index / columns) * TILE_SIZE, TILE_SIZE, TILE_SIZE);
+    }
+
+    //Tile index of a coordinate, rounding down for negative coordinates
+    private static int floorDiv(int coordinate) {
+        return coordinate >= 0 ? coordinate / TILE_SIZE
+                : (coordinate + 1) / TILE_SIZE - 1;
+    }
+}
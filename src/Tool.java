@@ -0,0 +1,164 @@
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+
+/**
+ * A tool that draws on the active layer of a painting component as the mouse
+ * is pressed, dragged and released. Tools are registered with the component
+ * under a number, which the tool buttons and input journals use to choose
+ * them, so a new tool can be added without changing the component.
+ *
+ * A tool is called on the event dispatch thread. Drags arrive far more often
+ * than frames are painted, so drag should not allocate: a tool keeps the
+ * points, shapes and strokes it needs and reuses them for every drag. What a
+ * tool draws should also be added to the document as operations, so that
+ * the canvas can be drawn again from the document.
+ */
+public interface Tool {
+
+    /**
+     * @return the name of the tool, as it is shown and logged
+     */
+    String getName();
+
+    /**
+     * Called when the mouse is pressed. An edit that can be undone has
+     * started, and lasts until the mouse is released.
+     *
+     * @param c the component the tool draws on
+     * @param x the x coordinate of the mouse
+     * @param y the y coordinate of the mouse
+     */
+    void press(Context c, int x, int y);
+
+    /**
+     * Called when the mouse is dragged with a button held down
+     *
+     * @param c the component the tool draws on
+     * @param x the x coordinate of the mouse
+     * @param y the y coordinate of the mouse
+     */
+    void drag(Context c, int x, int y);
+
+    /**
+     * Called when the mouse is released, before the edit ends
+     *
+     * @param c the component the tool draws on
+     * @param x the x coordinate of the mouse
+     * @param y the y coordinate of the mouse
+     */
+    void release(Context c, int x, int y);
+
+    /**
+     * Called once per frame between a press and a release, so a tool can
+     * draw what it was dragged through since the last frame at once rather
+     * than on every drag
+     *
+     * @param c the component the tool draws on
+     * @return whether anything was drawn
+     */
+    boolean frame(Context c);
+
+    /**
+     * Draws what the tool shows over the canvas but has not drawn on it,
+     * such as a shape being dragged
+     *
+     * @param c the component the tool draws on
+     * @param g the graphics context of the component, with its
+     * anti-aliasing set
+     */
+    void paint(Context c, Graphics2D g);
+
+    /**
+     * Called when another tool is chosen or the active layer changes
+     *
+     * @param c the component the tool draws on
+     */
+    void deactivate(Context c);
+
+    /**
+     * What a painting component lets its tools see and change. The
+     * rectangles passed to it are not kept, so a tool may reuse them.
+     */
+    interface Context {
+
+        /**
+         * @return the document of the component
+         */
+        Document getDocument();
+
+        /**
+         * @return the id of the active layer
+         */
+        int getLayer();
+
+        /**
+         * @return the canvas of the active layer
+         */
+        TiledCanvas getCanvas();
+
+        Color getPrimaryColor();
+
+        Color getSecondaryColor();
+
+        float getLineThickness();
+
+        /**
+         * @return whether shapes are filled with the secondary color
+         */
+        boolean isFill();
+
+        /**
+         * @return how much a color channel may differ for a fill to spread
+         */
+        int getFillTolerance();
+
+        /**
+         * @return what the eraser paints on the active layer, or null if it
+         * makes pixels transparent
+         */
+        Color getEraseColor();
+
+        /**
+         * Reports that a region of the canvas was drawn on, so it is blended
+         * with the other layers again and repainted
+         *
+         * @param r the region
+         */
+        void markChanged(Rectangle r);
+
+        /**
+         * Repaints a region of the component without changing the canvas,
+         * as when a preview moves
+         *
+         * @param r the region
+         */
+        void markDirty(Rectangle r);
+
+        /**
+         * Adds an operation with the current colors, thickness and fill to
+         * the document, on the active layer
+         *
+         * @param tool the tool that draws the operation, which is a built-in
+         * tool or one of the Document operations
+         * @param pts the points of the operation as x, y pairs
+         * @param length the number of ints of pts to use
+         */
+        void addOperation(byte tool, int[] pts, int length);
+
+        /**
+         * Draws a region of the active layer again from the document, and
+         * marks it changed
+         *
+         * @param r the region
+         */
+        void redraw(Rectangle r);
+
+        /**
+         * @return whether the active layer is shared with other painting
+         * components. The document does not have everything drawn on a
+         * shared layer, so it cannot be drawn again from the document.
+         */
+        boolean isShared();
+    }
+}
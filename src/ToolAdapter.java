@@ -0,0 +1,33 @@
+import java.awt.Graphics2D;
+
+/**
+ * A tool that does nothing, so a tool only has to override the callbacks it
+ * uses.
+ */
+public abstract class ToolAdapter implements Tool {
+
+    @Override
+    public void press(Context c, int x, int y) {
+    }
+
+    @Override
+    public void drag(Context c, int x, int y) {
+    }
+
+    @Override
+    public void release(Context c, int x, int y) {
+    }
+
+    @Override
+    public boolean frame(Context c) {
+        return false;
+    }
+
+    @Override
+    public void paint(Context c, Graphics2D g) {
+    }
+
+    @Override
+    public void deactivate(Context c) {
+    }
+}
@@ -0,0 +1,199 @@
+import java.util.LinkedList;
+
+/**
+ * Keeps the changes made to canvases so they can be undone and redone. The
+ * history is limited by the memory its tiles use rather than by a number of
+ * steps; when it grows past its budget, the oldest changes are forgotten.
+ */
+public class UndoHistory {
+
+    /**
+     * A change to one or more canvases, and the operations of the document
+     * that made it. Undoing the change sets the document size back to the
+     * number of operations it had before.
+     */
+    public static class Edit {
+
+        private final TiledCanvas[] canvases;
+        private final TiledCanvas.TileDelta[] deltas;
+        private final int operationsBefore, operationsAfter;
+
+        /**
+         * @param canvas the canvas that changed
+         * @param delta the tiles that changed
+         * @param operationsBefore the size of the document before the change
+         * @param operationsAfter the size of the document after the change
+         */
+        public Edit(TiledCanvas canvas, TiledCanvas.TileDelta delta,
+                int operationsBefore, int operationsAfter) {
+            this(new TiledCanvas[]{canvas}, new TiledCanvas.TileDelta[]{delta},
+                    operationsBefore, operationsAfter);
+        }
+
+        /**
+         * @param canvases the canvases that changed
+         * @param deltas the tiles that changed on each canvas
+         * @param operationsBefore the size of the document before the change
+         * @param operationsAfter the size of the document after the change
+         */
+        public Edit(TiledCanvas[] canvases, TiledCanvas.TileDelta[] deltas,
+                int operationsBefore, int operationsAfter) {
+            this.canvases = canvases;
+            this.deltas = deltas;
+            this.operationsBefore = operationsBefore;
+            this.operationsAfter = operationsAfter;
+        }
+
+        /**
+         * @return the number of canvases that changed
+         */
+        public int getCanvasCount() {
+            return canvases.length;
+        }
+
+        public TiledCanvas getCanvas(int i) {
+            return canvases[i];
+        }
+
+        public TiledCanvas.TileDelta getDelta(int i) {
+            return deltas[i];
+        }
+
+        public int getOperationsBefore() {
+            return operationsBefore;
+        }
+
+        public int getOperationsAfter() {
+            return operationsAfter;
+        }
+
+        //Whether the edit changed neither the canvases nor the document
+        private boolean isEmpty() {
+            for (TiledCanvas.TileDelta d : deltas) {
+                if (!d.isEmpty()) {
+                    return false;
+                }
+            }
+            return operationsBefore == operationsAfter;
+        }
+
+        private long getByteSize() {
+            long n = 0;
+            for (TiledCanvas.TileDelta d : deltas) {
+                n += d.getByteSize();
+            }
+            return n;
+        }
+    }
+
+    private final LinkedList<Edit> undoList
+            = new LinkedList<Edit>();
+    private final LinkedList<Edit> redoList
+            = new LinkedList<Edit>();
+    private long byteBudget;
+    private long byteSize = 0;
+
+    /**
+     * Creates an empty history
+     *
+     * @param byteBudget the most memory the history may use, in bytes
+     */
+    public UndoHistory(long byteBudget) {
+        this.byteBudget = byteBudget;
+    }
+
+    /**
+     * Sets the most memory the history may use, forgetting the oldest changes
+     * if it already uses more
+     *
+     * @param byteBudget the budget in bytes
+     */
+    public void setByteBudget(long byteBudget) {
+        this.byteBudget = byteBudget;
+        trim();
+    }
+
+    /**
+     * @return the memory used by the history, in bytes. Tiles shared by two
+     * changes are counted twice, so this may overestimate.
+     */
+    public long getByteSize() {
+        return byteSize;
+    }
+
+    /**
+     * Adds a change to the history. Changes that were undone can no longer be
+     * redone.
+     *
+     * @param d the change
+     */
+    public void add(Edit d) {
+        if (d.isEmpty()) {
+            return;
+        }
+        for (Edit r : redoList) {
+            byteSize -= r.getByteSize();
+        }
+        redoList.clear();
+        undoList.addLast(d);
+        byteSize += d.getByteSize();
+        trim();
+    }
+
+    public boolean canUndo() {
+        return !undoList.isEmpty();
+    }
+
+    public boolean canRedo() {
+        return !redoList.isEmpty();
+    }
+
+    /**
+     * Moves the latest change to the redo list
+     *
+     * @return the change to undo, or null if there is none
+     */
+    public Edit undo() {
+        if (undoList.isEmpty()) {
+            return null;
+        }
+        Edit d = undoList.removeLast();
+        redoList.addLast(d);
+        return d;
+    }
+
+    /**
+     * Moves the latest undone change back to the undo list
+     *
+     * @return the change to redo, or null if there is none
+     */
+    public Edit redo() {
+        if (redoList.isEmpty()) {
+            return null;
+        }
+        Edit d = redoList.removeLast();
+        undoList.addLast(d);
+        return d;
+    }
+
+    /**
+     * Forgets every change
+     */
+    public void clear() {
+        undoList.clear();
+        redoList.clear();
+        byteSize = 0;
+    }
+
+    //Forgets the oldest changes until the history fits in its budget
+    private void trim() {
+        while (byteSize > byteBudget && !undoList.isEmpty()) {
+            byteSize -= undoList.removeFirst().getByteSize();
+        }
+        //The first change in the redo list is the one furthest from the
+        //current canvas
+        while (byteSize > byteBudget && !redoList.isEmpty()) {
+            byteSize -= redoList.removeFirst().getByteSize();
+        }
+    }
+}